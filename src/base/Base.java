@@ -1,6 +1,7 @@
 package base;
 
 import gamestructure.GameHandler;
+import gamestructure.RegionIndex;
 import micro.UnitTask;
 
 import java.awt.Point;
@@ -92,6 +93,11 @@ public class Base {
 		return location;
 	}
 
+	/** @return the id of the region the base is in, for {@link RegionIndex} */
+	public int getRegionId() {
+		return RegionIndex.getRegionId(location.getPosition());
+	}
+
 	public void setPlayer(Player p) {
 		player = p;
 		lastScouted = GameHandler.getFrameCount();
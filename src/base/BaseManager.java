@@ -1,6 +1,8 @@
 package base;
 
+import gamestructure.CommandBuffer;
 import gamestructure.GameHandler;
+import gamestructure.RegionIndex;
 import gamestructure.debug.DebugManager;
 import gamestructure.debug.DebugModule;
 import gamestructure.debug.DrawEngine;
@@ -27,7 +29,6 @@ import bwta.BaseLocation;
 
 public final class BaseManager {
 	private static Map<BaseLocation, Base> bases;
-	private static Set<Unit> enemyBuildings;
 	public static Base main;
 	public static Base natural;
 	/**
@@ -89,8 +90,6 @@ public final class BaseManager {
 			e.printStackTrace();
 		}
 
-		enemyBuildings = new HashSet<>();
-
 		registerDebugFunctions();
 		System.out.println("Success!");
 	}
@@ -126,13 +125,15 @@ public final class BaseManager {
 		bases.values().stream().filter(b -> b.workers.size() < b.minerals.size() * 2).map(b -> b.commandCenter)
 				.filter(o -> o.isPresent()).map(o -> o.get()).filter(c -> !c.isTraining()).forEach(c -> {
 					if (GameHandler.getSelfPlayer().minerals() >= 50)
-						c.train(UnitType.Terran_SCV);
+						CommandBuffer.train(c, UnitType.Terran_SCV);
 				});
 	}
 
 	public static void expand() {
-		// Expand to the base that is closest by ground
-		bases.values().stream().filter(b -> b.getPlayer() == GameHandler.getNeutralPlayer()).map(b -> b.getLocation())
+		// Expand to the base that is closest by ground, avoiding any with
+		// enemy buildings nearby
+		bases.values().stream().filter(b -> b.getPlayer() == GameHandler.getNeutralPlayer())
+				.filter(b -> RegionIndex.getEnemyBuildingCount(b.getRegionId()) == 0).map(b -> b.getLocation())
 				.sorted((b1, b2) -> BWTA.getGroundDistance2(main.getLocation().getTilePosition(), b2.getTilePosition())
 						- BWTA.getGroundDistance2(main.getLocation().getTilePosition(), b1.getTilePosition()))
 				.findFirst()
@@ -200,10 +201,6 @@ public final class BaseManager {
 	}
 
 	public static void onUnitShow(Unit unit) {
-		if (unit.getPlayer() == GameHandler.getEnemyPlayer() && unit.getType().isBuilding()) {
-			enemyBuildings.add(unit);
-		}
-
 		if (unit.getType().isResourceDepot()) {
 			getClosestBase(unit.getPosition()).ifPresent(b -> {
 				b.commandCenter = Optional.of(unit);
@@ -288,6 +285,8 @@ public final class BaseManager {
 
 				DrawEngine.drawTextMap(b.getX() + 5, b.getY() + 5,
 						"Status: " + playerType + " @ " + b.getLastScouted());
+				DrawEngine.drawTextMap(b.getX() + 5, b.getY() + 35,
+						"Enemy army: " + RegionIndex.getEnemyArmyValue(b.getRegionId()));
 				if (b.getLocation().isStartLocation()) {
 					DrawEngine.drawTextMap(b.getX() + 5, b.getY() - 5, "Starting Location");
 				}
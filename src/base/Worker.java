@@ -6,7 +6,9 @@ import build.BuildingPlan;
 import bwapi.Position;
 import bwapi.Unit;
 import bwapi.UnitType;
+import gamestructure.CommandBuffer;
 import gamestructure.GameHandler;
+import gamestructure.MotionTracker;
 import micro.GroundAgent;
 import micro.UnitTask;
 import pathing.NoPathFoundException;
@@ -15,7 +17,8 @@ public class Worker extends GroundAgent {
 	private Resource currentResource;
 	private Base base;
 	private boolean hasResetGasBuild;
-	private static final double VELOCITY_SCALE_FACTOR = 5;
+	/** How far ahead a gas-freezing worker's position is predicted, in frames */
+	private static final int GAS_FREEZE_LEAD_FRAMES = 5;
 	private static final int GAS_FREEZE_STOP_DISTANCE = 13;
 	private static final int FOG_OF_WAR_DISTANCE = 100;
 
@@ -24,7 +27,7 @@ public class Worker extends GroundAgent {
 	}
 
 	public void move(int x, int y) {
-		unit.move(new Position(x, y));
+		CommandBuffer.move(id, unit, new Position(x, y));
 	}
 
 	public void build(BuildingPlan toBuild) {
@@ -81,6 +84,15 @@ public class Worker extends GroundAgent {
 		return currentResource;
 	}
 
+	@Override
+	protected int getUpdatePeriod() {
+		// A worker that already has a resource keeps mining it by itself
+		if ((task == UnitTask.MINERALS || task == UnitTask.GAS) && currentResource != null) {
+			return 8;
+		}
+		return 1;
+	}
+
 	@Override
 	public void act() {
 		super.act();
@@ -93,8 +105,8 @@ public class Worker extends GroundAgent {
 			}
 			// Get back to work
 			if (currentResource != null) {
-				if (!unit.isGatheringMinerals()) {
-					unit.gather(currentResource.unit);
+				if (!isGatheringMinerals()) {
+					CommandBuffer.gather(id, unit, currentResource.unit);
 				}
 				return;
 			}
@@ -111,7 +123,7 @@ public class Worker extends GroundAgent {
 				for (MineralResource m : base.minerals) {
 					if (m.getNumGatherers() < maxMiners) {
 						// Find closest mineral patch
-						double newDistance = Point.distance(unit.getX(), unit.getY(), m.getX(), m.getY());
+						double newDistance = Point.distance(getX(), getY(), m.getX(), m.getY());
 						if (mineral == null || newDistance < distance) {
 							mineral = m;
 							distance = newDistance;
@@ -132,44 +144,45 @@ public class Worker extends GroundAgent {
 		if (task == UnitTask.GAS) {
 			// Get back to work
 			if (currentResource != null) {
-				if (!unit.isGatheringGas()) {
-					unit.gather(currentResource.unit);
+				if (!isGatheringGas()) {
+					CommandBuffer.gather(id, unit, currentResource.unit);
 				}
 				return;
 			}
 		}
 		if (task == UnitTask.GAS_FREEZE) {
-			int predictedUnitX = (int) Math
-					.round(unit.getPosition().getX() + unit.getVelocityX() * VELOCITY_SCALE_FACTOR);
-			int predictedUnitY = (int) Math
-					.round(unit.getPosition().getY() + unit.getVelocityY() * VELOCITY_SCALE_FACTOR);
+			int predictedUnitX = MotionTracker.predictX(id, GAS_FREEZE_LEAD_FRAMES);
+			int predictedUnitY = MotionTracker.predictY(id, GAS_FREEZE_LEAD_FRAMES);
 			Position predictedPosition = new Position(predictedUnitX, predictedUnitY);
 			if (predictedPosition.getDistance(currentResource.unit) > GAS_FREEZE_STOP_DISTANCE) {
 				if (currentResource.unit.getType() == UnitType.Resource_Vespene_Geyser) {
 					if (predictedPosition.getDistance(currentResource.unit) > FOG_OF_WAR_DISTANCE) {
-						unit.move(currentResource.unit.getInitialPosition());
+						CommandBuffer.move(id, unit, currentResource.unit.getInitialPosition());
 					} else {
-						unit.build(UnitType.Terran_Refinery, currentResource.unit.getTilePosition());
+						CommandBuffer.build(id, unit, UnitType.Terran_Refinery,
+								currentResource.unit.getTilePosition());
 						hasResetGasBuild = false;
 					}
 				} else if (currentResource.unit.getPlayer().equals(GameHandler.getSelfPlayer())) {
-					if (unit.getVelocityX() == 0 && unit.getVelocityY() == 0 && !hasResetGasBuild) {
-						unit.haltConstruction();
+					if (getVelocityX() == 0 && getVelocityY() == 0 && !hasResetGasBuild) {
+						CommandBuffer.haltConstruction(id, unit);
 						hasResetGasBuild = true;
 					} else {
-						unit.rightClick(currentResource.unit);
+						CommandBuffer.rightClick(id, unit, currentResource.unit);
 						hasResetGasBuild = false;
 					}
 				}
 			} else {
-				if (unit.isConstructing()) {
-					unit.haltConstruction();
+				// Halting construction also stops the worker
+				if (isConstructing()) {
+					CommandBuffer.haltConstruction(id, unit);
+				} else {
+					CommandBuffer.stop(id, unit);
 				}
-				unit.stop();
-				if (unit.getVelocityX() == 0 && unit.getVelocityY() == 0
+				if (getVelocityX() == 0 && getVelocityY() == 0
 						&& currentResource.getUnit().getPlayer().equals(GameHandler.getSelfPlayer())
 						&& !currentResource.unit.isCompleted())
-					currentResource.getUnit().cancelConstruction();
+					CommandBuffer.cancelConstruction(currentResource.getUnit().getID(), currentResource.getUnit());
 			}
 		}
 	}
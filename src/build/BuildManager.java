@@ -3,11 +3,9 @@ package build;
 import java.awt.Point;
 import java.awt.Rectangle;
 import java.util.ArrayDeque;
-import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Map.Entry;
 import java.util.Queue;
-import java.util.Set;
 
 import base.Base;
 import base.BaseManager;
@@ -16,7 +14,10 @@ import bwapi.Color;
 import bwapi.TilePosition;
 import bwapi.Unit;
 import bwapi.UnitType;
+import gamestructure.CommandBuffer;
 import gamestructure.GameHandler;
+import gamestructure.UnitRegistry;
+import gamestructure.UnitTypeTable;
 import gamestructure.debug.DebugManager;
 import gamestructure.debug.DrawEngine;
 
@@ -25,14 +26,14 @@ public final class BuildManager {
 	public static Queue<BuildingPlan> buildingQueue;
 	public static Queue<UnitType> unitQueue;
 	// Only contains my units under construction
-	public static Set<Unit> unitsUnderConstruction;
+	public static UnitRegistry<Unit> unitsUnderConstruction;
 
 	public static void init() {
 		System.out.print("Starting BuildManager... ");
 		unitMinimums = new Hashtable<UnitType, Integer>();
 		buildingQueue = new ArrayDeque<BuildingPlan>();
 		unitQueue = new ArrayDeque<UnitType>();
-		unitsUnderConstruction = new HashSet<Unit>();
+		unitsUnderConstruction = new UnitRegistry<Unit>();
 
 		registerDebugFunctions();
 		System.out.println("Success!");
@@ -117,7 +118,7 @@ public final class BuildManager {
 				// become a gas miner!
 				GasResource r = new GasResource(u);
 				BaseManager.getClosestBase(u.getPosition()).ifPresent(b -> b.gas.add(r));
-				u.gather(r.getUnit());
+				CommandBuffer.gather(u.getID(), u, r.getUnit());
 			}
 		}
 	}
@@ -127,7 +128,7 @@ public final class BuildManager {
 			return buildingQueue.stream().anyMatch(bp -> bp.getType() == unitType);
 		}
 		return unitQueue.stream().anyMatch(u -> u == unitType)
-				|| unitsUnderConstruction.stream().anyMatch(u -> u.getType() == unitType);
+				|| unitsUnderConstruction.getCount(UnitTypeTable.getId(unitType)) > 0;
 	}
 
 	public static long getCountInQueue(UnitType unitType) {
@@ -138,7 +139,7 @@ public final class BuildManager {
 	}
 
 	public static long getTrainingCount(UnitType unitType) {
-		return unitsUnderConstruction.stream().filter(u -> u.getType() == unitType).count();
+		return unitsUnderConstruction.getCount(UnitTypeTable.getId(unitType));
 	}
 
 	public static int getMyUnitCount(UnitType type) {
@@ -5,6 +5,7 @@ import java.awt.Rectangle;
 import base.Worker;
 import bwapi.TilePosition;
 import bwapi.UnitType;
+import gamestructure.UnitTypeTable;
 
 public class BuildingPlan {
 	private UnitType type;
@@ -16,8 +17,8 @@ public class BuildingPlan {
 	public BuildingPlan(int itx, int ity, UnitType itype) {
 		type = itype;
 		tilePosition = new TilePosition(itx, ity);
-		boundingBox = new Rectangle(tilePosition.getX() * 32, tilePosition.getY() * 32, type.tileWidth() * 32,
-				type.tileHeight() * 32);
+		boundingBox = new Rectangle(tilePosition.getX() * 32, tilePosition.getY() * 32,
+				UnitTypeTable.getTileWidth(type) * 32, UnitTypeTable.getTileHeight(type) * 32);
 	}
 
 	public UnitType getType() {
@@ -0,0 +1,318 @@
+package gamestructure;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import bwapi.Position;
+import bwapi.TilePosition;
+import bwapi.Unit;
+import bwapi.UnitType;
+import gamestructure.debug.DebugManager;
+import gamestructure.debug.DrawEngine;
+import gamestructure.debug.InvalidCommandException;
+
+/**
+ * Collects the orders given to units during a frame and sends them to BWAPI
+ * together at the end of it.<br>
+ * Each unit has at most one waiting order, and a newer one replaces it. An
+ * order that is the same as the last one sent to a unit that is still busy
+ * with it is dropped, since sending it again only costs a call and resets the
+ * unit's animation. The rest are sent most important first, up to a budget of
+ * orders per frame. Orders past the budget wait for the next frame, unless
+ * they are important enough that they are always sent.
+ *
+ * @author wesley
+ *
+ */
+public final class CommandBuffer {
+	// Kinds of order
+	private static final int MOVE = 0;
+	private static final int ATTACK = 1;
+	private static final int GATHER = 2;
+	private static final int BUILD = 3;
+	private static final int RIGHT_CLICK = 4;
+	private static final int STOP = 5;
+	private static final int HALT_CONSTRUCTION = 6;
+	private static final int CANCEL_CONSTRUCTION = 7;
+
+	/** Orders of this priority are sent even when the budget is used up */
+	private static final int PRIORITY_HIGH = 2;
+	/** The priority of each kind of order, where higher is sent first */
+	private static final int[] PRIORITY = { 0, PRIORITY_HIGH, 1, PRIORITY_HIGH, 1, 1, 1, PRIORITY_HIGH };
+	/** A move to within this many pixels of the last one is the same order */
+	private static final int MOVE_TOLERANCE = 8;
+	/**
+	 * An unchanged order is sent again after this many frames, in case the
+	 * unit dropped it
+	 */
+	private static final int REFRESH_FRAMES = 48;
+	public static final int DEFAULT_BUDGET = 48;
+
+	/** The most orders below high priority sent in a frame */
+	private static int budget;
+	/** The order state of each unit ID, created the first time it is ordered */
+	private static Order[] orders;
+	/** The units with a waiting order */
+	private static List<Order> waiting;
+	/** Counts up for each order that starts waiting, to send older ones first */
+	private static int nextSequence;
+
+	// Counts for the current frame, the last frame and the whole game
+	private static int issued;
+	private static int suppressed;
+	private static int deferred;
+	private static int lastIssued;
+	private static int lastSuppressed;
+	private static int lastDeferred;
+	private static long totalIssued;
+	private static long totalSuppressed;
+
+	private static final Comparator<Order> BY_PRIORITY = (a, b) -> {
+		final int byPriority = Integer.compare(PRIORITY[b.kind], PRIORITY[a.kind]);
+		return byPriority != 0 ? byPriority : Integer.compare(a.sequence, b.sequence);
+	};
+
+	/** The waiting and last sent order of one unit */
+	private static final class Order {
+		private final int id;
+		private Unit unit;
+		private boolean isWaiting = false;
+		private int sequence;
+		private int kind;
+		private Unit target;
+		private int targetId;
+		private Position position;
+		private UnitType type;
+		private TilePosition tilePosition;
+
+		private int lastKind = -1;
+		private int lastTargetId;
+		private int lastX;
+		private int lastY;
+		private UnitType lastType;
+		private int lastFrame;
+
+		private Order(int iid) {
+			id = iid;
+		}
+	}
+
+	public static void init() {
+		System.out.print("Starting CommandBuffer... ");
+		budget = DEFAULT_BUDGET;
+		orders = new Order[0];
+		waiting = new ArrayList<Order>();
+		nextSequence = 0;
+		issued = 0;
+		suppressed = 0;
+		deferred = 0;
+		lastIssued = 0;
+		lastSuppressed = 0;
+		lastDeferred = 0;
+		totalIssued = 0;
+		totalSuppressed = 0;
+
+		registerDebugFunctions();
+		System.out.println("Success!");
+	}
+
+	/** This constructor should never be used. */
+	private CommandBuffer() {
+	}
+
+	/** Send the waiting orders. Called once at the end of each frame. */
+	public static void onFrame() {
+		final int frame = GameHandler.getFrameCount();
+		final WorldSnapshot world = WorldSnapshot.get();
+		waiting.sort(BY_PRIORITY);
+		int kept = 0;
+		for (int i = 0; i < waiting.size(); i++) {
+			final Order o = waiting.get(i);
+			if (!o.isWaiting) {
+				// Forgotten while waiting
+				continue;
+			}
+			if (isUnchanged(o, frame, world)) {
+				o.isWaiting = false;
+				suppressed++;
+			} else if (issued >= budget && PRIORITY[o.kind] < PRIORITY_HIGH) {
+				waiting.set(kept++, o);
+				deferred++;
+			} else {
+				send(o, frame);
+				o.isWaiting = false;
+				issued++;
+			}
+		}
+		for (int i = waiting.size() - 1; i >= kept; i--) {
+			waiting.remove(i);
+		}
+		totalIssued += issued;
+		totalSuppressed += suppressed;
+		lastIssued = issued;
+		lastSuppressed = suppressed;
+		lastDeferred = deferred;
+		issued = 0;
+		suppressed = 0;
+		deferred = 0;
+	}
+
+	/** Drop any order for a unit that no longer exists. */
+	public static void forget(int id) {
+		if (id < orders.length && orders[id] != null) {
+			orders[id].isWaiting = false;
+			orders[id] = null;
+		}
+	}
+
+	public static void move(int id, Unit unit, Position to) {
+		final Order o = prepare(id, unit, MOVE);
+		o.position = to;
+	}
+
+	public static void attack(int id, Unit unit, Unit target) {
+		final Order o = prepare(id, unit, ATTACK);
+		o.target = target;
+		o.targetId = target.getID();
+	}
+
+	public static void gather(int id, Unit unit, Unit resource) {
+		final Order o = prepare(id, unit, GATHER);
+		o.target = resource;
+		o.targetId = resource.getID();
+	}
+
+	public static void build(int id, Unit unit, UnitType type, TilePosition where) {
+		final Order o = prepare(id, unit, BUILD);
+		o.type = type;
+		o.tilePosition = where;
+		o.position = where.toPosition();
+	}
+
+	public static void rightClick(int id, Unit unit, Unit target) {
+		final Order o = prepare(id, unit, RIGHT_CLICK);
+		o.target = target;
+		o.targetId = target.getID();
+	}
+
+	public static void stop(int id, Unit unit) {
+		prepare(id, unit, STOP);
+	}
+
+	public static void haltConstruction(int id, Unit unit) {
+		prepare(id, unit, HALT_CONSTRUCTION);
+	}
+
+	public static void cancelConstruction(int id, Unit unit) {
+		prepare(id, unit, CANCEL_CONSTRUCTION);
+	}
+
+	/**
+	 * Training is sent straight away rather than buffered, since each call
+	 * queues another unit, so it is never a repeat of the last one.
+	 */
+	public static boolean train(Unit unit, UnitType type) {
+		issued++;
+		return unit.train(type);
+	}
+
+	/** @return a unit's order, cleared and waiting to be filled in */
+	private static Order prepare(int id, Unit unit, int kind) {
+		if (id >= orders.length) {
+			orders = Arrays.copyOf(orders, Math.max(id + 1, 2 * orders.length));
+		}
+		Order o = orders[id];
+		if (o == null) {
+			o = new Order(id);
+			orders[id] = o;
+		}
+		if (!o.isWaiting) {
+			o.isWaiting = true;
+			o.sequence = nextSequence++;
+			waiting.add(o);
+		}
+		o.unit = unit;
+		o.kind = kind;
+		o.target = null;
+		o.targetId = -1;
+		o.position = null;
+		o.type = null;
+		o.tilePosition = null;
+		return o;
+	}
+
+	/**
+	 * @return whether an order is the same as the last one sent to the unit,
+	 *         which it is still carrying out
+	 */
+	private static boolean isUnchanged(Order o, int frame, WorldSnapshot world) {
+		final int slot = world.getSlot(o.id);
+		final boolean idle = slot != -1 && world.is(slot, WorldSnapshot.IDLE);
+		if (o.kind == STOP) {
+			return idle;
+		}
+		if (slot == -1 || idle || o.kind != o.lastKind || o.targetId != o.lastTargetId || o.type != o.lastType
+				|| frame - o.lastFrame >= REFRESH_FRAMES) {
+			return false;
+		}
+		return o.position == null || (Math.abs(o.position.getX() - o.lastX) <= MOVE_TOLERANCE
+				&& Math.abs(o.position.getY() - o.lastY) <= MOVE_TOLERANCE);
+	}
+
+	private static void send(Order o, int frame) {
+		switch (o.kind) {
+		case MOVE:
+			o.unit.move(o.position);
+			break;
+		case ATTACK:
+			o.unit.attack(o.target);
+			break;
+		case GATHER:
+			o.unit.gather(o.target);
+			break;
+		case BUILD:
+			o.unit.build(o.type, o.tilePosition);
+			break;
+		case RIGHT_CLICK:
+			o.unit.rightClick(o.target);
+			break;
+		case STOP:
+			o.unit.stop();
+			break;
+		case HALT_CONSTRUCTION:
+			o.unit.haltConstruction();
+			break;
+		case CANCEL_CONSTRUCTION:
+			o.unit.cancelConstruction();
+			break;
+		default:
+			break;
+		}
+		o.lastKind = o.kind;
+		o.lastTargetId = o.targetId;
+		o.lastType = o.type;
+		o.lastX = o.position == null ? 0 : o.position.getX();
+		o.lastY = o.position == null ? 0 : o.position.getY();
+		o.lastFrame = frame;
+		// The target may die before the next order
+		o.target = null;
+	}
+
+	private static void registerDebugFunctions() {
+		DebugManager.createDebugModule("commands").setDraw(() -> {
+			DrawEngine.drawTextScreen(550, 95, "Commands: " + lastIssued + " issued, " + lastSuppressed
+					+ " suppressed, " + lastDeferred + " deferred (budget " + budget + ")");
+			DrawEngine.drawTextScreen(550, 105,
+					"Total: " + totalIssued + " issued, " + totalSuppressed + " suppressed");
+		}).addCommand("budget", (c) -> {
+			try {
+				budget = Integer.parseInt(c.get(1));
+				GameHandler.sendText("Command budget: " + budget);
+			} catch (IndexOutOfBoundsException | NumberFormatException e) {
+				throw new InvalidCommandException("commands", c);
+			}
+		});
+	}
+}
@@ -88,19 +88,7 @@ public final class GameHandler {
 	}
 
 	public static Optional<Unit> getClosestEnemyUnit(int x, int y) {
-		double closestDistance = Double.MAX_VALUE;
-		Unit closestUnit = null;
-		for (Unit u : game.enemy().getUnits()) {
-			double distanceX = x - u.getX();
-			double distanceY = y - u.getY();
-			double distance = Math.sqrt(Math.pow(distanceX, 2) + Math.pow(distanceY, 2));
-
-			if (distance < closestDistance) {
-				closestUnit = u;
-				closestDistance = distance;
-			}
-		}
-		return Optional.ofNullable(closestUnit);
+		return Optional.ofNullable(SpatialGrid.getNearest(x, y, Integer.MAX_VALUE, SpatialGrid.ENEMY));
 	}
 
 	public static Optional<Unit> getClosestEnemy(Unit toWho) {
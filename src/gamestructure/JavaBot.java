@@ -21,8 +21,12 @@ import gamestructure.debug.DebugManager;
 import gamestructure.debug.DebugModule;
 import gamestructure.debug.DrawEngine;
 import gamestructure.debug.InvalidCommandException;
+import influence.InfluenceManager;
 import memory.MemoryManager;
+import micro.ClusterManager;
 import micro.MicroManager;
+import pathing.AirPathFinder;
+import pathing.LandmarkHeuristic;
 import pathing.NoPathFoundException;
 import pathing.PathFinder;
 import state.BotState;
@@ -57,12 +61,22 @@ public class JavaBot implements BWEventListener {
 			System.out.println("Map data ready");
 
 			GameHandler.init(mirror.getGame());
+			UnitTypeTable.init();
 			DebugManager.init();
 			DrawEngine.init(mirror.getGame());
+			WorldSnapshot.init();
+			MotionTracker.init();
+			CommandBuffer.init();
+			SpatialGrid.init();
+			ClusterManager.init();
+			RegionIndex.init();
 			BaseManager.init();
 			BuildManager.init();
 			MicroManager.init();
+			InfluenceManager.init();
 			PathFinder.init();
+			LandmarkHeuristic.init();
+			AirPathFinder.init();
 			MemoryManager.init();
 			botState = new FirstFrameState();
 			Waller.init();
@@ -82,21 +96,30 @@ public class JavaBot implements BWEventListener {
 	@Override
 	public void onFrame() {
 		try {
+			// Copy and index the units once, before anything looks at them
+			WorldSnapshot.onFrame();
+			MotionTracker.onFrame();
+			SpatialGrid.onFrame();
+			ClusterManager.onFrame();
+			RegionIndex.onFrame();
 			MemoryManager.onFrame();
+			LandmarkHeuristic.onFrame();
 			// Check if any units have completed
-			BuildManager.unitsUnderConstruction.removeIf(unit -> {
+			for (int i = BuildManager.unitsUnderConstruction.size() - 1; i >= 0; i--) {
+				final Unit unit = BuildManager.unitsUnderConstruction.getAt(i);
 				if (unit.isCompleted()) {
+					BuildManager.unitsUnderConstruction.remove(BuildManager.unitsUnderConstruction.getIdAt(i));
 					onUnitConstructed(unit);
-					return true;
 				}
-				return false;
-			});
+			}
 
 			// Allow the bot to act
 			// Bot state updates
 			botState = botState.onFrame();
 			// BuildManager check build order
 			BuildManager.checkMinimums();
+			// Influence maps
+			InfluenceManager.onFrame();
 			// Micro units
 			MicroManager.onFrame();
 
@@ -114,7 +137,7 @@ public class JavaBot implements BWEventListener {
 						for (Resource mineral : b.minerals) {
 							if (mineral.getNumGatherers() < 2) {
 								// Do training
-								c.train(UnitType.Terran_SCV);
+								CommandBuffer.train(c, UnitType.Terran_SCV);
 								break;
 							}
 						}
@@ -142,7 +165,8 @@ public class JavaBot implements BWEventListener {
 								if (p.getDistance((int) b.getBoundingBox().getCenterX(),
 										(int) b.getBoundingBox().getCenterY()) < 4 * 32) {
 									// Build it
-									b.builder.unit.build(b.getType(), b.getTilePosition());
+									CommandBuffer.build(b.builder.id, b.builder.unit, b.getType(),
+											b.getTilePosition());
 								} else {
 									// Move closer
 									try {
@@ -169,7 +193,7 @@ public class JavaBot implements BWEventListener {
 								&& GameHandler.getSelfPlayer().supplyTotal()
 										- GameHandler.getSelfPlayer().supplyUsed() >= toTrain.supplyRequired()) {
 							if (!u.isTraining() && u.isCompleted()) {
-								u.train(toTrain);
+								CommandBuffer.train(u, toTrain);
 								it.remove();
 								break;
 							}
@@ -177,6 +201,8 @@ public class JavaBot implements BWEventListener {
 					}
 				}
 			}
+			// Send the orders given this frame
+			CommandBuffer.onFrame();
 			// Draw debug information on screen
 			DebugManager.draw();
 		} catch (Exception e) {
@@ -201,8 +227,12 @@ public class JavaBot implements BWEventListener {
 	@Override
 	public void onUnitShow(Unit unit) {
 		try {
+			RegionIndex.onUnitShow(unit);
 			BaseManager.onUnitShow(unit);
 			MemoryManager.onUnitShow(unit);
+			if (GameHandler.getSelfPlayer().isEnemy(unit.getPlayer())) {
+				MicroManager.onUnitEvent(unit);
+			}
 			botState.unitShown(unit);
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -212,6 +242,7 @@ public class JavaBot implements BWEventListener {
 	@Override
 	public void onUnitHide(Unit unit) {
 		try {
+			RegionIndex.onUnitHide(unit);
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -224,7 +255,7 @@ public class JavaBot implements BWEventListener {
 	@Override
 	public void onUnitCreate(Unit unit) {
 		if (unit.getPlayer() == GameHandler.getSelfPlayer()) {
-			BuildManager.unitsUnderConstruction.add(unit);
+			BuildManager.unitsUnderConstruction.put(unit.getID(), UnitTypeTable.getId(unit.getType()), unit);
 			BuildManager.unitQueue.remove(unit.getType());
 		}
 		BaseManager.unitCreated(unit);
@@ -236,14 +267,19 @@ public class JavaBot implements BWEventListener {
 			// If a unit is canceled from a build queue or building is
 			// cancelled
 			// under construction
-			BuildManager.unitsUnderConstruction.remove(unit);
+			BuildManager.unitsUnderConstruction.remove(unit.getID());
 
 			// Remove workers from the BaseManager
 			BaseManager.unitDestroyed(unit);
 			// Deletes units from microManager
 			MicroManager.unitDestroyed(unit);
+			MicroManager.onUnitEvent(unit);
 
 			MemoryManager.onUnitDestroy(unit);
+			RegionIndex.onUnitDestroy(unit);
+			CommandBuffer.forget(unit.getID());
+			MotionTracker.forget(unit.getID());
+			ClusterManager.forget(unit.getID());
 
 			// Allow the bot state to act
 			botState = botState.unitDestroyed(unit);
@@ -266,11 +302,12 @@ public class JavaBot implements BWEventListener {
 			onUnitCreate(unit);
 		}
 		MemoryManager.onUnitMorph(unit);
+		RegionIndex.onUnitChange(unit);
 	}
 
 	@Override
 	public void onUnitRenegade(Unit unit) {
-
+		RegionIndex.onUnitChange(unit);
 	}
 
 	@Deprecated
@@ -341,8 +378,8 @@ public class JavaBot implements BWEventListener {
 		}).setActive(true);
 		DebugManager.createDebugModule("construction").setDraw(() -> {
 			String uucString = "";
-			for (Unit u : BuildManager.unitsUnderConstruction) {
-				uucString += u.getType().toString() + ", ";
+			for (int i = 0; i < BuildManager.unitsUnderConstruction.size(); i++) {
+				uucString += BuildManager.unitsUnderConstruction.getAt(i).getType().toString() + ", ";
 			}
 			DrawEngine.drawTextScreen(5, 60, "unitsUnderConstruction: " + uucString);
 		});
@@ -0,0 +1,191 @@
+package gamestructure;
+
+import java.util.Arrays;
+
+/**
+ * Remembers the last few positions and velocities of every visible unit, so
+ * that where a unit is heading can be predicted more steadily than from the
+ * velocity of a single frame, which jumps about as Brood War units turn and
+ * step.<br>
+ * Each unit ID has a ring buffer of {@link #HISTORY} samples in flat primitive
+ * arrays, filled from the {@link WorldSnapshot} once at the start of each
+ * frame. Nothing is allocated after the arrays have grown to the highest ID,
+ * and the buffers are only written in {@link #onFrame()}, so they can be read
+ * from other threads during the rest of the frame.
+ *
+ * @author wesley
+ *
+ */
+public final class MotionTracker {
+	/** Samples kept per unit, which must be a power of two */
+	public static final int HISTORY = 8;
+	/**
+	 * A unit that was out of view for longer than this starts a new history,
+	 * since its old samples say nothing about where it is going now
+	 */
+	private static final int MAX_GAP = 4;
+
+	/** Samples of unit ID i are at i * HISTORY to i * HISTORY + HISTORY - 1 */
+	private static float[] xs;
+	private static float[] ys;
+	private static float[] velocityXs;
+	private static float[] velocityYs;
+	/** The index of the newest sample of each unit */
+	private static int[] heads;
+	/** The number of samples of each unit */
+	private static int[] counts;
+	/** The frame of the newest sample of each unit */
+	private static int[] lastFrames;
+
+	public static void init() {
+		System.out.print("Starting MotionTracker... ");
+		xs = new float[0];
+		ys = new float[0];
+		velocityXs = new float[0];
+		velocityYs = new float[0];
+		heads = new int[0];
+		counts = new int[0];
+		lastFrames = new int[0];
+		System.out.println("Success!");
+	}
+
+	/** This constructor should never be used. */
+	private MotionTracker() {
+	}
+
+	/** Add a sample for every unit in the snapshot. */
+	public static void onFrame() {
+		final WorldSnapshot world = WorldSnapshot.get();
+		final int frame = world.getFrame();
+		for (int slot = 0; slot < world.size(); slot++) {
+			final int id = world.getID(slot);
+			if (id >= counts.length) {
+				grow(Math.max(id + 1, 2 * counts.length));
+			}
+			if (counts[id] > 0 && frame == lastFrames[id]) {
+				continue;
+			}
+			if (frame - lastFrames[id] > MAX_GAP) {
+				counts[id] = 0;
+			}
+			final int head = (heads[id] + 1) & (HISTORY - 1);
+			final int i = id * HISTORY + head;
+			xs[i] = world.getX(slot);
+			ys[i] = world.getY(slot);
+			velocityXs[i] = (float) world.getVelocityX(slot);
+			velocityYs[i] = (float) world.getVelocityY(slot);
+			heads[id] = head;
+			counts[id] = Math.min(counts[id] + 1, HISTORY);
+			lastFrames[id] = frame;
+		}
+	}
+
+	private static void grow(int capacity) {
+		xs = Arrays.copyOf(xs, capacity * HISTORY);
+		ys = Arrays.copyOf(ys, capacity * HISTORY);
+		velocityXs = Arrays.copyOf(velocityXs, capacity * HISTORY);
+		velocityYs = Arrays.copyOf(velocityYs, capacity * HISTORY);
+		heads = Arrays.copyOf(heads, capacity);
+		counts = Arrays.copyOf(counts, capacity);
+		lastFrames = Arrays.copyOf(lastFrames, capacity);
+	}
+
+	/** Drop the history of a unit that no longer exists. */
+	public static void forget(int id) {
+		if (id < counts.length) {
+			counts[id] = 0;
+		}
+	}
+
+	/** @return whether a unit has any samples */
+	public static boolean isTracked(int id) {
+		return id >= 0 && id < counts.length && counts[id] > 0;
+	}
+
+	/**
+	 * @return the velocity of a unit in pixels per frame, averaged over its
+	 *         samples, or 0 if it has none
+	 */
+	public static double getVelocityX(int id) {
+		return average(velocityXs, id);
+	}
+
+	/** @see #getVelocityX(int) */
+	public static double getVelocityY(int id) {
+		return average(velocityYs, id);
+	}
+
+	private static double average(float[] values, int id) {
+		if (!isTracked(id)) {
+			return 0;
+		}
+		double sum = 0;
+		for (int k = 0; k < counts[id]; k++) {
+			sum += values[id * HISTORY + ((heads[id] - k) & (HISTORY - 1))];
+		}
+		return sum / counts[id];
+	}
+
+	/** @return the last position a unit was seen at, in pixels */
+	public static int getLastX(int id) {
+		return isTracked(id) ? (int) xs[id * HISTORY + heads[id]] : 0;
+	}
+
+	/** @see #getLastX(int) */
+	public static int getLastY(int id) {
+		return isTracked(id) ? (int) ys[id * HISTORY + heads[id]] : 0;
+	}
+
+	/**
+	 * @return where a unit will be after a number of frames if it keeps its
+	 *         average velocity, in pixels
+	 */
+	public static int predictX(int id, double frames) {
+		return (int) Math.round(getLastX(id) + getVelocityX(id) * frames);
+	}
+
+	/** @see #predictX(int, double) */
+	public static int predictY(int id, double frames) {
+		return (int) Math.round(getLastY(id) + getVelocityY(id) * frames);
+	}
+
+	/**
+	 * Solve for the earliest time a unit moving from a point at a speed can
+	 * meet a tracked unit that keeps its average velocity.<br>
+	 * The meeting point is then at {@link #predictX(int, double)} and
+	 * {@link #predictY(int, double)} with the returned number of frames.
+	 *
+	 * @param speed
+	 *            in pixels per frame
+	 * @return the number of frames until they meet, or -1 if they never can
+	 */
+	public static double getInterceptFrames(int id, int fromX, int fromY, double speed) {
+		if (!isTracked(id)) {
+			return -1;
+		}
+		final double dx = getLastX(id) - fromX;
+		final double dy = getLastY(id) - fromY;
+		final double vx = getVelocityX(id);
+		final double vy = getVelocityY(id);
+		// |d + v t| = speed t, so (v.v - speed^2) t^2 + 2 (d.v) t + d.d = 0
+		final double a = vx * vx + vy * vy - speed * speed;
+		final double b = 2 * (dx * vx + dy * vy);
+		final double c = dx * dx + dy * dy;
+		if (c == 0) {
+			return 0;
+		}
+		if (Math.abs(a) < 1e-9) {
+			// Equally fast, so they only meet if the target comes closer
+			return b < 0 ? -c / b : -1;
+		}
+		final double discriminant = b * b - 4 * a * c;
+		if (discriminant < 0) {
+			return -1;
+		}
+		final double root = Math.sqrt(discriminant);
+		final double t1 = (-b - root) / (2 * a);
+		final double t2 = (-b + root) / (2 * a);
+		final double t = Math.min(t1, t2) > 0 ? Math.min(t1, t2) : Math.max(t1, t2);
+		return t > 0 ? t : -1;
+	}
+}
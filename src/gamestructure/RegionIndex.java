@@ -0,0 +1,309 @@
+package gamestructure;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import bwapi.Player;
+import bwapi.Position;
+import bwapi.Unit;
+import bwapi.UnitType;
+import bwta.BWTA;
+import bwta.Region;
+import gamestructure.debug.DebugManager;
+import gamestructure.debug.DrawEngine;
+
+/**
+ * Keeps count of the units in each BWTA region, so that strategic questions
+ * like "are there zerglings in my main" or "how much army is at the natural"
+ * are a single array read.<br>
+ * Regions are numbered by their order in {@link BWTA#getRegions()}. Units are
+ * added when they are shown and removed when they are hidden or destroyed.
+ * Enemy buildings are remembered while hidden since they rarely move, and are
+ * only forgotten when they are destroyed or found missing. The regions of
+ * mobile units are checked every frame.
+ *
+ * @author wesley
+ *
+ */
+public final class RegionIndex {
+	/** The region of tiles that are not in any region */
+	public static final int NO_REGION = -1;
+
+	/** What the index knows about one unit */
+	private static final class Entry {
+		final Unit unit;
+		final int id;
+		int region;
+		UnitType type;
+		boolean enemy;
+		boolean mobile;
+		/** The mineral and gas cost, if the unit is part of an army */
+		int armyValue;
+		/** The index in {@link RegionIndex#mobile}, or -1 */
+		int mobileIndex = -1;
+
+		Entry(Unit iunit) {
+			unit = iunit;
+			id = iunit.getID();
+		}
+	}
+
+	private static int mapWidth;
+	private static List<Region> regions;
+	private static Map<Region, Integer> regionIds;
+	/** The region of each build tile, indexed as {@code x + y * mapWidth} */
+	private static int[] tileRegions;
+	/** The entry of each unit, indexed by unit ID */
+	private static Entry[] entries;
+	/** The entries of mobile units, packed to the front */
+	private static Entry[] mobile;
+	private static int mobileCount;
+
+	// Totals per region
+	private static int[] enemyUnits;
+	private static int[] enemyBuildings;
+	private static int[] enemyArmyValue;
+	private static int[] selfUnits;
+	private static int[] selfArmyValue;
+	/** Enemy units of each type per region, created when first needed */
+	private static Map<UnitType, int[]> enemyTypes;
+
+	public static void init() {
+		System.out.print("Starting RegionIndex... ");
+		regions = BWTA.getRegions();
+		regionIds = new HashMap<>();
+		for (int r = 0; r < regions.size(); r++) {
+			regionIds.put(regions.get(r), r);
+		}
+		mapWidth = GameHandler.getMapWidth();
+		final int mapHeight = GameHandler.getMapHeight();
+		tileRegions = new int[mapWidth * mapHeight];
+		for (int ty = 0; ty < mapHeight; ty++) {
+			for (int tx = 0; tx < mapWidth; tx++) {
+				final Integer id = regionIds.get(BWTA.getRegion(tx, ty));
+				tileRegions[tx + ty * mapWidth] = id == null ? NO_REGION : id;
+			}
+		}
+		entries = new Entry[0];
+		mobile = new Entry[16];
+		mobileCount = 0;
+		enemyUnits = new int[regions.size()];
+		enemyBuildings = new int[regions.size()];
+		enemyArmyValue = new int[regions.size()];
+		selfUnits = new int[regions.size()];
+		selfArmyValue = new int[regions.size()];
+		enemyTypes = new HashMap<>();
+
+		registerDebugFunctions();
+		System.out.println("Success!");
+	}
+
+	/** This constructor should never be used. */
+	private RegionIndex() {
+	}
+
+	/**
+	 * Move mobile units whose region has changed, reading their positions from
+	 * the {@link WorldSnapshot}. Units missing from the snapshot, like hidden
+	 * enemy flying buildings, stay in the last region they were seen in.
+	 */
+	public static void onFrame() {
+		final WorldSnapshot world = WorldSnapshot.get();
+		for (int i = 0; i < mobileCount; i++) {
+			final Entry e = mobile[i];
+			final int slot = world.getSlot(e.id);
+			if (slot < 0) {
+				continue;
+			}
+			final int region = getRegionId(world.getX(slot) / 32, world.getY(slot) / 32);
+			if (region != e.region) {
+				count(e, -1);
+				e.region = region;
+				count(e, 1);
+			}
+		}
+	}
+
+	public static void onUnitShow(Unit unit) {
+		add(unit);
+	}
+
+	public static void onUnitHide(Unit unit) {
+		final Entry e = getEntry(unit.getID());
+		// Buildings that go out of sight are still there
+		if (e != null && !(e.enemy && e.type.isBuilding())) {
+			remove(unit.getID());
+		}
+	}
+
+	public static void onUnitDestroy(Unit unit) {
+		remove(unit.getID());
+	}
+
+	/** Recount a unit whose type or owner changed. */
+	public static void onUnitChange(Unit unit) {
+		add(unit);
+	}
+
+	/** Forget a remembered building that turned out to be gone. */
+	public static void forget(int unitId) {
+		remove(unitId);
+	}
+
+	private static void add(Unit unit) {
+		final Player player = unit.getPlayer();
+		final Player self = GameHandler.getSelfPlayer();
+		final boolean enemy = self.isEnemy(player);
+		remove(unit.getID());
+		if (player != self && !enemy) {
+			// Only count units that belong to somebody
+			return;
+		}
+		final Entry e = new Entry(unit);
+		e.type = unit.getType();
+		e.enemy = enemy;
+		e.mobile = !e.type.isBuilding() || e.type.isFlyingBuilding();
+		e.armyValue = e.type.isBuilding() || e.type.isWorker() ? 0 : e.type.mineralPrice() + e.type.gasPrice();
+		e.region = getRegionId(unit.getPosition());
+		if (e.id >= entries.length) {
+			entries = Arrays.copyOf(entries, Math.max(2 * entries.length, e.id + 1));
+		}
+		entries[e.id] = e;
+		if (e.mobile) {
+			if (mobileCount == mobile.length) {
+				mobile = Arrays.copyOf(mobile, 2 * mobileCount);
+			}
+			e.mobileIndex = mobileCount;
+			mobile[mobileCount++] = e;
+		}
+		count(e, 1);
+	}
+
+	private static void remove(int unitId) {
+		final Entry e = getEntry(unitId);
+		if (e == null) {
+			return;
+		}
+		entries[unitId] = null;
+		if (e.mobileIndex != -1) {
+			final Entry last = mobile[--mobileCount];
+			mobile[e.mobileIndex] = last;
+			last.mobileIndex = e.mobileIndex;
+			mobile[mobileCount] = null;
+		}
+		count(e, -1);
+	}
+
+	private static Entry getEntry(int unitId) {
+		return unitId >= 0 && unitId < entries.length ? entries[unitId] : null;
+	}
+
+	/**
+	 * Add or take away a unit from the totals of its region.
+	 *
+	 * @param sign
+	 *            1 to add, -1 to take away
+	 */
+	private static void count(Entry e, int sign) {
+		if (e.region == NO_REGION) {
+			return;
+		}
+		if (e.enemy) {
+			enemyUnits[e.region] += sign;
+			enemyArmyValue[e.region] += sign * e.armyValue;
+			if (e.type.isBuilding()) {
+				enemyBuildings[e.region] += sign;
+			}
+			int[] types = enemyTypes.get(e.type);
+			if (types == null) {
+				types = new int[regions.size()];
+				enemyTypes.put(e.type, types);
+			}
+			types[e.region] += sign;
+		} else {
+			selfUnits[e.region] += sign;
+			selfArmyValue[e.region] += sign * e.armyValue;
+		}
+	}
+
+	/** @return the number of regions */
+	public static int getRegionCount() {
+		return regions.size();
+	}
+
+	public static Region getRegion(int regionId) {
+		return regions.get(regionId);
+	}
+
+	/**
+	 * @return the region of a build tile, or {@link #NO_REGION} if it is not in
+	 *         one or is off the map
+	 */
+	public static int getRegionId(int tx, int ty) {
+		if (tx < 0 || ty < 0 || tx >= mapWidth || tx + ty * mapWidth >= tileRegions.length) {
+			return NO_REGION;
+		}
+		return tileRegions[tx + ty * mapWidth];
+	}
+
+	/**
+	 * @return the region of a position in pixels, or {@link #NO_REGION} if it
+	 *         is not in one
+	 */
+	public static int getRegionId(Position position) {
+		return getRegionId(position.getX() / 32, position.getY() / 32);
+	}
+
+	/** @return the number of enemy units known to be in a region */
+	public static int getEnemyCount(int regionId) {
+		return regionId == NO_REGION ? 0 : enemyUnits[regionId];
+	}
+
+	/** @return the number of enemy units of a type known to be in a region */
+	public static int getEnemyCount(int regionId, UnitType type) {
+		final int[] types = enemyTypes.get(type);
+		return regionId == NO_REGION || types == null ? 0 : types[regionId];
+	}
+
+	/** @return the number of enemy buildings known to be in a region */
+	public static int getEnemyBuildingCount(int regionId) {
+		return regionId == NO_REGION ? 0 : enemyBuildings[regionId];
+	}
+
+	/**
+	 * @return the total mineral and gas cost of the enemy units in a region,
+	 *         not counting workers and buildings
+	 */
+	public static int getEnemyArmyValue(int regionId) {
+		return regionId == NO_REGION ? 0 : enemyArmyValue[regionId];
+	}
+
+	/** @return the number of my units in a region */
+	public static int getSelfCount(int regionId) {
+		return regionId == NO_REGION ? 0 : selfUnits[regionId];
+	}
+
+	/**
+	 * @return the total mineral and gas cost of my units in a region, not
+	 *         counting workers and buildings
+	 */
+	public static int getSelfArmyValue(int regionId) {
+		return regionId == NO_REGION ? 0 : selfArmyValue[regionId];
+	}
+
+	private static void registerDebugFunctions() {
+		DebugManager.createDebugModule("regionindex").setDraw(() -> {
+			for (int r = 0; r < regions.size(); r++) {
+				if (enemyUnits[r] == 0 && selfUnits[r] == 0) {
+					continue;
+				}
+				final Position c = regions.get(r).getCenter();
+				DrawEngine.drawTextMap(c.getX(), c.getY() + 10,
+						"Enemy: " + enemyUnits[r] + " (" + enemyBuildings[r] + " buildings), army " + enemyArmyValue[r]);
+				DrawEngine.drawTextMap(c.getX(), c.getY() + 20, "Self: " + selfUnits[r] + ", army " + selfArmyValue[r]);
+			}
+		});
+	}
+}
@@ -0,0 +1,505 @@
+package gamestructure;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import bwapi.Unit;
+import gamestructure.debug.DebugManager;
+import gamestructure.debug.DrawEngine;
+
+/**
+ * A bucketed grid of every visible unit, rebuilt once at the start of each
+ * frame from the {@link WorldSnapshot}, so neither building it nor querying it
+ * goes through JNI.<br>
+ * Units are bucketed by the cell their center is in, and all distances are
+ * measured between centers. Queries take a mask of flags that a unit must have
+ * all of to match, and write their results into an array supplied by the
+ * caller, so nothing is allocated per query.
+ *
+ * @author wesley
+ *
+ */
+public final class SpatialGrid {
+	/** The size of a cell in pixels */
+	public static final int CELL_SIZE = 128;
+
+	/** Owned by an enemy */
+	public static final int ENEMY = 1 << 0;
+	/** Owned by me */
+	public static final int SELF = 1 << 1;
+	/** Owned by neither me nor an enemy */
+	public static final int NEUTRAL = 1 << 2;
+	/** Has a weapon that can hit air units */
+	public static final int CAN_ATTACK_AIR = 1 << 3;
+	/** Has a weapon that can hit ground units */
+	public static final int CAN_ATTACK_GROUND = 1 << 4;
+	public static final int FLYER = 1 << 5;
+	public static final int WORKER = 1 << 6;
+	public static final int BUILDING = 1 << 7;
+
+	private static int columns;
+	private static int rows;
+	/**
+	 * The index of the first unit of each cell in the arrays below, with one
+	 * extra entry at the end
+	 */
+	private static int[] cellStart;
+	/** The number of units in the grid */
+	private static int count;
+	// Units and their properties, sorted by cell
+	private static Unit[] units = new Unit[0];
+	private static int[] xs = new int[0];
+	private static int[] ys = new int[0];
+	private static int[] flags = new int[0];
+	/** The slot of each unit in the {@link WorldSnapshot} */
+	private static int[] slots = new int[0];
+	/** The cell of each unit, in the order they were read */
+	private static int[] cells = new int[0];
+	/** Scratch space for the squared distances of k-nearest results */
+	private static long[] distances = new long[0];
+
+	/** The type flags of each {@link UnitTypeTable} id */
+	private static int[] typeFlags = new int[0];
+	/** The owner flag for each owner in the {@link WorldSnapshot} */
+	private static final int[] OWNER_FLAGS = new int[3];
+	static {
+		OWNER_FLAGS[WorldSnapshot.SELF] = SELF;
+		OWNER_FLAGS[WorldSnapshot.ENEMY] = ENEMY;
+		OWNER_FLAGS[WorldSnapshot.NEUTRAL] = NEUTRAL;
+	}
+
+	/** Queries since the last rebuild */
+	private static final AtomicInteger queries = new AtomicInteger();
+	/** Units looked at by queries since the last rebuild */
+	private static final AtomicInteger visited = new AtomicInteger();
+
+	public static void init() {
+		System.out.print("Starting SpatialGrid... ");
+		columns = (GameHandler.getMapWidth() * 32 + CELL_SIZE - 1) / CELL_SIZE;
+		rows = (GameHandler.getMapHeight() * 32 + CELL_SIZE - 1) / CELL_SIZE;
+		cellStart = new int[columns * rows + 1];
+		typeFlags = new int[0];
+		count = 0;
+
+		registerDebugFunctions();
+		System.out.println("Success!");
+	}
+
+	/** This constructor should never be used. */
+	private SpatialGrid() {
+	}
+
+	/** Rebuild the grid from the units in the current snapshot. */
+	public static void onFrame() {
+		final WorldSnapshot world = WorldSnapshot.get();
+		final int n = world.size();
+		if (units.length < n) {
+			final int capacity = Math.max(n, 2 * units.length);
+			units = new Unit[capacity];
+			xs = new int[capacity];
+			ys = new int[capacity];
+			flags = new int[capacity];
+			slots = new int[capacity];
+			cells = new int[capacity];
+		}
+		// Drop references to units from the last frame
+		for (int i = n; i < count; i++) {
+			units[i] = null;
+		}
+		count = n;
+		queries.set(0);
+		visited.set(0);
+
+		// Count the units in each cell
+		final int cellCount = columns * rows;
+		for (int c = 0; c <= cellCount; c++) {
+			cellStart[c] = 0;
+		}
+		for (int i = 0; i < n; i++) {
+			final int cx = Math.min(Math.max(world.getX(i) / CELL_SIZE, 0), columns - 1);
+			final int cy = Math.min(Math.max(world.getY(i) / CELL_SIZE, 0), rows - 1);
+			cells[i] = cx + cy * columns;
+			cellStart[cells[i] + 1]++;
+		}
+		for (int c = 0; c < cellCount; c++) {
+			cellStart[c + 1] += cellStart[c];
+		}
+		// Place each unit in its cell, using the start of each cell as a
+		// cursor and then shifting the starts back into place
+		for (int i = 0; i < n; i++) {
+			final int slot = cellStart[cells[i]]++;
+			units[slot] = world.getUnit(i);
+			xs[slot] = world.getX(i);
+			ys[slot] = world.getY(i);
+			flags[slot] = OWNER_FLAGS[world.getOwner(i)] | getTypeFlags(world.getTypeId(i));
+			slots[slot] = i;
+		}
+		for (int c = cellCount; c > 0; c--) {
+			cellStart[c] = cellStart[c - 1];
+		}
+		cellStart[0] = 0;
+	}
+
+	private static int getTypeFlags(int typeId) {
+		if (typeId >= typeFlags.length) {
+			final int oldLength = typeFlags.length;
+			typeFlags = Arrays.copyOf(typeFlags, UnitTypeTable.size());
+			for (int t = oldLength; t < typeFlags.length; t++) {
+				int f = 0;
+				if (UnitTypeTable.is(t, UnitTypeTable.CAN_ATTACK_AIR)) {
+					f |= CAN_ATTACK_AIR;
+				}
+				if (UnitTypeTable.is(t, UnitTypeTable.CAN_ATTACK_GROUND)) {
+					f |= CAN_ATTACK_GROUND;
+				}
+				if (UnitTypeTable.is(t, UnitTypeTable.FLYER)) {
+					f |= FLYER;
+				}
+				if (UnitTypeTable.is(t, UnitTypeTable.WORKER)) {
+					f |= WORKER;
+				}
+				if (UnitTypeTable.is(t, UnitTypeTable.BUILDING)) {
+					f |= BUILDING;
+				}
+				typeFlags[t] = f;
+			}
+		}
+		return typeFlags[typeId];
+	}
+
+	/**
+	 * @return the number of units in the grid
+	 */
+	public static int size() {
+		return count;
+	}
+
+	/** @return the number of columns of cells */
+	public static int getColumns() {
+		return columns;
+	}
+
+	/** @return the number of rows of cells */
+	public static int getRows() {
+		return rows;
+	}
+
+	/**
+	 * Units are stored sorted by cell, so the units of cell {@code c} are at
+	 * the indices from {@code getCellStart(c)} up to, but not including,
+	 * {@code getCellStart(c + 1)}.
+	 *
+	 * @param cell
+	 *            the cell, as {@code column + row * getColumns()}, or the
+	 *            number of cells for the end of the last cell
+	 * @return the index of the first unit of the cell
+	 */
+	public static int getCellStart(int cell) {
+		return cellStart[cell];
+	}
+
+	/**
+	 * @return the {@link WorldSnapshot} slot of the unit at an index
+	 * @see #getCellStart(int)
+	 */
+	public static int getSlotAt(int index) {
+		return slots[index];
+	}
+
+	/**
+	 * Find the closest unit that has all of the given flags.
+	 *
+	 * @param x
+	 *            the x coordinate of the center in pixels
+	 * @param y
+	 *            the y coordinate of the center in pixels
+	 * @param maxRadius
+	 *            the furthest a unit may be, in pixels
+	 * @param required
+	 *            the flags a unit must have, or 0 for any unit
+	 * @return the closest unit, or null if there is none
+	 */
+	public static Unit getNearest(int x, int y, int maxRadius, int required) {
+		final int i = findNearest(x, y, maxRadius, required);
+		return i == -1 ? null : units[i];
+	}
+
+	/**
+	 * Find the closest unit that has all of the given flags, like
+	 * {@link #getNearest(int, int, int, int)}, without touching the unit itself
+	 * so that it is safe to call from several threads at once.
+	 *
+	 * @return the unit's slot in the current {@link WorldSnapshot}, or -1 if
+	 *         there is none
+	 */
+	public static int getNearestSlot(int x, int y, int maxRadius, int required) {
+		final int i = findNearest(x, y, maxRadius, required);
+		return i == -1 ? -1 : slots[i];
+	}
+
+	/** @return the index of the closest unit in the grid's arrays, or -1 */
+	private static int findNearest(int x, int y, int maxRadius, int required) {
+		queries.incrementAndGet();
+		int seen = 0;
+		final int cx = Math.min(Math.max(x / CELL_SIZE, 0), columns - 1);
+		final int cy = Math.min(Math.max(y / CELL_SIZE, 0), rows - 1);
+		final long maxSquared = (long) maxRadius * maxRadius;
+		final int maxRing = getMaxRing(cx, cy, maxRadius);
+		int best = -1;
+		long bestSquared = maxSquared;
+		for (int ring = 0; ring <= maxRing; ring++) {
+			for (int gy = cy - ring; gy <= cy + ring; gy++) {
+				if (gy < 0 || gy >= rows) {
+					continue;
+				}
+				// Only the border of the ring, which is the whole row at the
+				// top and bottom
+				final int step = gy == cy - ring || gy == cy + ring ? 1 : Math.max(2 * ring, 1);
+				for (int gx = cx - ring; gx <= cx + ring; gx += step) {
+					if (gx < 0 || gx >= columns) {
+						continue;
+					}
+					final int cell = gx + gy * columns;
+					for (int i = cellStart[cell]; i < cellStart[cell + 1]; i++) {
+						seen++;
+						if ((flags[i] & required) != required) {
+							continue;
+						}
+						final long d = distanceSquared(i, x, y);
+						if (d <= bestSquared) {
+							best = i;
+							bestSquared = d;
+						}
+					}
+				}
+			}
+			// Everything outside this ring is at least this far away
+			final long reach = (long) ring * CELL_SIZE;
+			if (best != -1 && bestSquared <= reach * reach) {
+				break;
+			}
+		}
+		visited.addAndGet(seen);
+		return best;
+	}
+
+	/**
+	 * Find the closest units that have all of the given flags, closest first.
+	 *
+	 * @param maxRadius
+	 *            the furthest a unit may be, in pixels
+	 * @param required
+	 *            the flags a unit must have, or 0 for any unit
+	 * @param out
+	 *            where to write the units. Its length is the most units
+	 *            returned.
+	 * @return the number of units written to out
+	 */
+	public static int getNearest(int x, int y, int maxRadius, int required, Unit[] out) {
+		queries.incrementAndGet();
+		int seen = 0;
+		final int k = out.length;
+		if (k == 0) {
+			return 0;
+		}
+		if (distances.length < k) {
+			distances = new long[k];
+		}
+		final int cx = Math.min(Math.max(x / CELL_SIZE, 0), columns - 1);
+		final int cy = Math.min(Math.max(y / CELL_SIZE, 0), rows - 1);
+		final long maxSquared = (long) maxRadius * maxRadius;
+		final int maxRing = getMaxRing(cx, cy, maxRadius);
+		int found = 0;
+		for (int ring = 0; ring <= maxRing; ring++) {
+			for (int gy = cy - ring; gy <= cy + ring; gy++) {
+				if (gy < 0 || gy >= rows) {
+					continue;
+				}
+				final int step = gy == cy - ring || gy == cy + ring ? 1 : Math.max(2 * ring, 1);
+				for (int gx = cx - ring; gx <= cx + ring; gx += step) {
+					if (gx < 0 || gx >= columns) {
+						continue;
+					}
+					final int cell = gx + gy * columns;
+					for (int i = cellStart[cell]; i < cellStart[cell + 1]; i++) {
+						seen++;
+						if ((flags[i] & required) != required) {
+							continue;
+						}
+						final long d = distanceSquared(i, x, y);
+						if (d > maxSquared || (found == k && d >= distances[k - 1])) {
+							continue;
+						}
+						// Insertion into the sorted results, dropping the
+						// furthest if they are full
+						int j = found == k ? k - 1 : found++;
+						while (j > 0 && distances[j - 1] > d) {
+							distances[j] = distances[j - 1];
+							out[j] = out[j - 1];
+							j--;
+						}
+						distances[j] = d;
+						out[j] = units[i];
+					}
+				}
+			}
+			final long reach = (long) ring * CELL_SIZE;
+			if (found == k && distances[k - 1] <= reach * reach) {
+				break;
+			}
+		}
+		visited.addAndGet(seen);
+		return found;
+	}
+
+	/**
+	 * Find every unit within a radius that has all of the given flags, in no
+	 * particular order.
+	 *
+	 * @param radius
+	 *            in pixels
+	 * @param required
+	 *            the flags a unit must have, or 0 for any unit
+	 * @param out
+	 *            where to write the units. If it fills up, the rest are left
+	 *            out.
+	 * @return the number of units written to out
+	 */
+	public static int getInRadius(int x, int y, int radius, int required, Unit[] out) {
+		queries.incrementAndGet();
+		int seen = 0;
+		final long radiusSquared = (long) radius * radius;
+		final int x0 = Math.max((x - radius) / CELL_SIZE, 0);
+		final int y0 = Math.max((y - radius) / CELL_SIZE, 0);
+		final int x1 = Math.min((x + radius) / CELL_SIZE, columns - 1);
+		final int y1 = Math.min((y + radius) / CELL_SIZE, rows - 1);
+		int found = 0;
+		for (int gy = y0; gy <= y1; gy++) {
+			for (int gx = x0; gx <= x1; gx++) {
+				final int cell = gx + gy * columns;
+				for (int i = cellStart[cell]; i < cellStart[cell + 1]; i++) {
+					seen++;
+					if ((flags[i] & required) == required && distanceSquared(i, x, y) <= radiusSquared) {
+						if (found == out.length) {
+							visited.addAndGet(seen);
+							return found;
+						}
+						out[found++] = units[i];
+					}
+				}
+			}
+		}
+		visited.addAndGet(seen);
+		return found;
+	}
+
+	/**
+	 * Find the {@link WorldSnapshot} slots of every unit within a radius that
+	 * has all of the given flags, in no particular order.
+	 *
+	 * @see #getInRadius(int, int, int, int, Unit[])
+	 */
+	public static int getSlotsInRadius(int x, int y, int radius, int required, int[] out) {
+		queries.incrementAndGet();
+		int seen = 0;
+		final long radiusSquared = (long) radius * radius;
+		final int x0 = Math.max((x - radius) / CELL_SIZE, 0);
+		final int y0 = Math.max((y - radius) / CELL_SIZE, 0);
+		final int x1 = Math.min((x + radius) / CELL_SIZE, columns - 1);
+		final int y1 = Math.min((y + radius) / CELL_SIZE, rows - 1);
+		int found = 0;
+		for (int gy = y0; gy <= y1; gy++) {
+			for (int gx = x0; gx <= x1; gx++) {
+				final int cell = gx + gy * columns;
+				for (int i = cellStart[cell]; i < cellStart[cell + 1]; i++) {
+					seen++;
+					if ((flags[i] & required) == required && distanceSquared(i, x, y) <= radiusSquared) {
+						if (found == out.length) {
+							visited.addAndGet(seen);
+							return found;
+						}
+						out[found++] = slots[i];
+					}
+				}
+			}
+		}
+		visited.addAndGet(seen);
+		return found;
+	}
+
+	/**
+	 * @return whether any unit within a radius has all of the given flags
+	 */
+	public static boolean anyInRadius(int x, int y, int radius, int required) {
+		return findNearest(x, y, radius, required) != -1;
+	}
+
+	/**
+	 * Find every unit whose center is in a rectangle and that has all of the
+	 * given flags, in no particular order.
+	 *
+	 * @param left
+	 *            in pixels, inclusive
+	 * @param top
+	 *            in pixels, inclusive
+	 * @param right
+	 *            in pixels, inclusive
+	 * @param bottom
+	 *            in pixels, inclusive
+	 * @param required
+	 *            the flags a unit must have, or 0 for any unit
+	 * @param out
+	 *            where to write the units. If it fills up, the rest are left
+	 *            out.
+	 * @return the number of units written to out
+	 */
+	public static int getInRectangle(int left, int top, int right, int bottom, int required, Unit[] out) {
+		queries.incrementAndGet();
+		int seen = 0;
+		final int x0 = Math.max(left / CELL_SIZE, 0);
+		final int y0 = Math.max(top / CELL_SIZE, 0);
+		final int x1 = Math.min(right / CELL_SIZE, columns - 1);
+		final int y1 = Math.min(bottom / CELL_SIZE, rows - 1);
+		int found = 0;
+		for (int gy = y0; gy <= y1; gy++) {
+			for (int gx = x0; gx <= x1; gx++) {
+				final int cell = gx + gy * columns;
+				for (int i = cellStart[cell]; i < cellStart[cell + 1]; i++) {
+					seen++;
+					if ((flags[i] & required) == required && xs[i] >= left && xs[i] <= right && ys[i] >= top
+							&& ys[i] <= bottom) {
+						if (found == out.length) {
+							visited.addAndGet(seen);
+							return found;
+						}
+						out[found++] = units[i];
+					}
+				}
+			}
+		}
+		visited.addAndGet(seen);
+		return found;
+	}
+
+	/**
+	 * @return the number of rings of cells around a cell that need to be
+	 *         searched to cover a radius, limited to the edges of the map
+	 */
+	private static int getMaxRing(int cx, int cy, int radius) {
+		final int toEdge = Math.max(Math.max(cx, columns - 1 - cx), Math.max(cy, rows - 1 - cy));
+		return (int) Math.min(toEdge, (long) radius / CELL_SIZE + 1);
+	}
+
+	private static long distanceSquared(int i, int x, int y) {
+		final long dx = xs[i] - x;
+		final long dy = ys[i] - y;
+		return dx * dx + dy * dy;
+	}
+
+	private static void registerDebugFunctions() {
+		DebugManager.createDebugModule("grid").setDraw(() -> {
+			DrawEngine.drawTextScreen(550, 65, "Grid: " + count + " units");
+			DrawEngine.drawTextScreen(550, 75, "Queries: " + queries + " (" + visited + " visited)");
+		});
+	}
+}
@@ -0,0 +1,175 @@
+package gamestructure;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * A map from unit IDs to values, backed by arrays indexed by the ID rather
+ * than by hashing {@link bwapi.Unit} wrappers or boxed IDs.<br>
+ * Values are also packed densely so that they can be iterated with an index
+ * loop, without an iterator, from 0 to {@link #size()}. Removing a value moves
+ * the last value into its place, so it is safe to remove the value at the
+ * current index while iterating backwards.<br>
+ * Each value is filed under the {@link UnitTypeTable} id of its unit's type,
+ * so that values of one type can be counted in constant time and iterated
+ * with {@link #nextOfType}.
+ *
+ * @author wesley
+ *
+ * @param <T>
+ *            the type of the values
+ */
+public final class UnitRegistry<T> {
+	/** The dense index of each unit ID, or -1 */
+	private int[] indexOfId = new int[0];
+	private Object[] values = new Object[0];
+	private int[] ids = new int[0];
+	private int[] typeIds = new int[0];
+	private int count = 0;
+	/** The IDs of each type's units */
+	private BitSet[] idsByType = new BitSet[0];
+	private int[] countByType = new int[0];
+
+	/**
+	 * Add a value for a unit, replacing any value it already has.
+	 *
+	 * @param id
+	 *            the unit's ID
+	 * @param typeId
+	 *            the {@link UnitTypeTable} id of the unit's type
+	 * @param value
+	 *            the value to store
+	 */
+	public void put(int id, int typeId, T value) {
+		if (id >= indexOfId.length) {
+			final int oldLength = indexOfId.length;
+			indexOfId = Arrays.copyOf(indexOfId, Math.max(id + 1, 2 * oldLength));
+			Arrays.fill(indexOfId, oldLength, indexOfId.length, -1);
+		}
+		int index = indexOfId[id];
+		if (index == -1) {
+			if (count == values.length) {
+				final int capacity = Math.max(16, 2 * count);
+				values = Arrays.copyOf(values, capacity);
+				ids = Arrays.copyOf(ids, capacity);
+				typeIds = Arrays.copyOf(typeIds, capacity);
+			}
+			index = count++;
+			indexOfId[id] = index;
+			ids[index] = id;
+		} else {
+			removeFromType(id, typeIds[index]);
+		}
+		values[index] = value;
+		typeIds[index] = typeId;
+		addToType(id, typeId);
+	}
+
+	/**
+	 * Remove a unit's value.
+	 *
+	 * @return the value that was removed, or <b>null</b> if there was none
+	 */
+	public T remove(int id) {
+		final int index = id >= 0 && id < indexOfId.length ? indexOfId[id] : -1;
+		if (index == -1) {
+			return null;
+		}
+		final T value = getAt(index);
+		removeFromType(id, typeIds[index]);
+		indexOfId[id] = -1;
+		// Move the last value into the hole
+		final int last = --count;
+		if (index != last) {
+			values[index] = values[last];
+			ids[index] = ids[last];
+			typeIds[index] = typeIds[last];
+			indexOfId[ids[index]] = index;
+		}
+		values[last] = null;
+		return value;
+	}
+
+	/** Remove every value. */
+	public void clear() {
+		for (int i = 0; i < count; i++) {
+			indexOfId[ids[i]] = -1;
+			values[i] = null;
+		}
+		count = 0;
+		for (BitSet b : idsByType) {
+			if (b != null) {
+				b.clear();
+			}
+		}
+		Arrays.fill(countByType, 0);
+	}
+
+	/** @return the value of a unit, or <b>null</b> if it has none */
+	public T get(int id) {
+		final int index = id >= 0 && id < indexOfId.length ? indexOfId[id] : -1;
+		return index == -1 ? null : getAt(index);
+	}
+
+	public boolean contains(int id) {
+		return id >= 0 && id < indexOfId.length && indexOfId[id] != -1;
+	}
+
+	/** @return the number of values */
+	public int size() {
+		return count;
+	}
+
+	/** @return the value at a dense index from 0 to {@link #size()} */
+	@SuppressWarnings("unchecked")
+	public T getAt(int index) {
+		return (T) values[index];
+	}
+
+	/** @return the unit ID of the value at a dense index */
+	public int getIdAt(int index) {
+		return ids[index];
+	}
+
+	/** @return the type id the value at a dense index was filed under */
+	public int getTypeIdAt(int index) {
+		return typeIds[index];
+	}
+
+	/** @return the number of values filed under a type */
+	public int getCount(int typeId) {
+		return typeId < countByType.length ? countByType[typeId] : 0;
+	}
+
+	/**
+	 * Iterate the units of a type in ID order with
+	 * {@code for (int id = r.nextOfType(t, 0); id != -1; id = r.nextOfType(t, id + 1))}.
+	 *
+	 * @return the lowest ID of a unit of the type that is at least fromId, or
+	 *         -1 if there is none
+	 */
+	public int nextOfType(int typeId, int fromId) {
+		if (typeId >= idsByType.length || idsByType[typeId] == null) {
+			return -1;
+		}
+		return idsByType[typeId].nextSetBit(fromId);
+	}
+
+	private void addToType(int id, int typeId) {
+		if (typeId >= idsByType.length) {
+			final int capacity = Math.max(typeId + 1, UnitTypeTable.size());
+			idsByType = Arrays.copyOf(idsByType, capacity);
+			countByType = Arrays.copyOf(countByType, capacity);
+		}
+		if (idsByType[typeId] == null) {
+			idsByType[typeId] = new BitSet();
+		}
+		idsByType[typeId].set(id);
+		countByType[typeId]++;
+	}
+
+	private void removeFromType(int id, int typeId) {
+		idsByType[typeId].clear(id);
+		countByType[typeId]--;
+	}
+}
@@ -0,0 +1,350 @@
+package gamestructure;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import bwapi.UnitType;
+import bwapi.WeaponType;
+
+/**
+ * Static data about every unit type, read out of BWAPI once at startup into
+ * primitive arrays so that looking it up on a hot path is an array read rather
+ * than a JNI call.<br>
+ * BWMirror does not number unit types, so each one is given a dense id in the
+ * order of the constants in {@link UnitType}. Types that are not constants are
+ * given the next id the first time they are seen.
+ *
+ * @author wesley
+ *
+ */
+public final class UnitTypeTable {
+	// Flags
+	public static final int WORKER = 1 << 0;
+	public static final int BUILDING = 1 << 1;
+	public static final int FLYER = 1 << 2;
+	public static final int FLYING_BUILDING = 1 << 3;
+	public static final int DETECTOR = 1 << 4;
+	public static final int RESOURCE_DEPOT = 1 << 5;
+	public static final int REFINERY = 1 << 6;
+	public static final int MINERAL_FIELD = 1 << 7;
+	/** Has a weapon that can hit air units */
+	public static final int CAN_ATTACK_AIR = 1 << 8;
+	/** Has a weapon that can hit ground units */
+	public static final int CAN_ATTACK_GROUND = 1 << 9;
+
+	private static final Map<UnitType, Integer> ids = new IdentityHashMap<>();
+	private static int count = 0;
+	private static UnitType[] types = new UnitType[0];
+	private static int[] widths = new int[0];
+	private static int[] heights = new int[0];
+	private static int[] tileWidths = new int[0];
+	private static int[] tileHeights = new int[0];
+	private static int[] groundRanges = new int[0];
+	private static int[] airRanges = new int[0];
+	/**
+	 * The damage of one attack of the ground weapon before armor, size and
+	 * upgrades, or 0 if there is none
+	 */
+	private static int[] groundDamages = new int[0];
+	/** The damage of one attack of the air weapon, as for the ground weapon */
+	private static int[] airDamages = new int[0];
+	/** Frames between attacks of the ground weapon, or 0 if there is none */
+	private static int[] groundCooldowns = new int[0];
+	/** Frames between attacks of the air weapon, or 0 if there is none */
+	private static int[] airCooldowns = new int[0];
+	private static int[] maxHitPoints = new int[0];
+	private static int[] maxShields = new int[0];
+	/** Top speed in pixels per frame, without upgrades */
+	private static double[] topSpeeds = new double[0];
+	/** How fast each type turns, in 256ths of a full turn per frame */
+	private static int[] turnRadii = new int[0];
+	private static int[] armors = new int[0];
+	private static int[] mineralPrices = new int[0];
+	private static int[] gasPrices = new int[0];
+	private static int[] sightRanges = new int[0];
+	private static int[] flags = new int[0];
+	/** The walk tile clearance each type needs, see {@link #getRequiredClearance} */
+	private static int[] clearances = new int[0];
+	/**
+	 * The damage of one attack by each attacker against each defender, indexed
+	 * as {@code attacker * damageStride + defender}, without upgrades
+	 */
+	private static int[] damage = new int[0];
+	private static int damageStride = 0;
+
+	public static void init() {
+		System.out.print("Starting UnitTypeTable... ");
+		ids.clear();
+		count = 0;
+		for (Field f : UnitType.class.getFields()) {
+			if (f.getType() == UnitType.class && Modifier.isStatic(f.getModifiers())) {
+				try {
+					final UnitType type = (UnitType) f.get(null);
+					if (type != null && type != UnitType.None && type != UnitType.Unknown) {
+						register(type);
+					}
+				} catch (IllegalAccessException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		fillDamage();
+		System.out.println("Success!");
+	}
+
+	/** This constructor should never be used. */
+	private UnitTypeTable() {
+	}
+
+	/** Give a type the next id and read its data. */
+	private static int register(UnitType type) {
+		final int id = count++;
+		if (id >= types.length) {
+			grow(Math.max(2 * types.length, 256));
+		}
+		ids.put(type, id);
+		types[id] = type;
+		widths[id] = type.width();
+		heights[id] = type.height();
+		tileWidths[id] = type.tileWidth();
+		tileHeights[id] = type.tileHeight();
+		final WeaponType ground = type.groundWeapon();
+		final WeaponType air = type.airWeapon();
+		groundRanges[id] = ground == WeaponType.None ? 0 : ground.maxRange();
+		airRanges[id] = air == WeaponType.None ? 0 : air.maxRange();
+		groundDamages[id] = ground == WeaponType.None ? 0 : ground.damageAmount() * ground.damageFactor();
+		airDamages[id] = air == WeaponType.None ? 0 : air.damageAmount() * air.damageFactor();
+		groundCooldowns[id] = ground == WeaponType.None ? 0 : ground.damageCooldown();
+		airCooldowns[id] = air == WeaponType.None ? 0 : air.damageCooldown();
+		maxHitPoints[id] = type.maxHitPoints();
+		maxShields[id] = type.maxShields();
+		topSpeeds[id] = type.topSpeed();
+		turnRadii[id] = type.turnRadius();
+		armors[id] = type.armor();
+		mineralPrices[id] = type.mineralPrice();
+		gasPrices[id] = type.gasPrice();
+		sightRanges[id] = type.sightRange();
+		clearances[id] = Math.max((widths[id] + 4) / 8, (heights[id] + 4) / 8);
+		int f = 0;
+		if (type.isWorker()) {
+			f |= WORKER;
+		}
+		if (type.isBuilding()) {
+			f |= BUILDING;
+		}
+		if (type.isFlyer()) {
+			f |= FLYER;
+		}
+		if (type.isFlyingBuilding()) {
+			f |= FLYING_BUILDING;
+		}
+		if (type.isDetector()) {
+			f |= DETECTOR;
+		}
+		if (type.isResourceDepot()) {
+			f |= RESOURCE_DEPOT;
+		}
+		if (type.isRefinery()) {
+			f |= REFINERY;
+		}
+		if (type.isMineralField()) {
+			f |= MINERAL_FIELD;
+		}
+		if (air != WeaponType.None) {
+			f |= CAN_ATTACK_AIR;
+		}
+		if (ground != WeaponType.None) {
+			f |= CAN_ATTACK_GROUND;
+		}
+		flags[id] = f;
+		return id;
+	}
+
+	private static void grow(int capacity) {
+		types = Arrays.copyOf(types, capacity);
+		widths = Arrays.copyOf(widths, capacity);
+		heights = Arrays.copyOf(heights, capacity);
+		tileWidths = Arrays.copyOf(tileWidths, capacity);
+		tileHeights = Arrays.copyOf(tileHeights, capacity);
+		groundRanges = Arrays.copyOf(groundRanges, capacity);
+		airRanges = Arrays.copyOf(airRanges, capacity);
+		groundDamages = Arrays.copyOf(groundDamages, capacity);
+		airDamages = Arrays.copyOf(airDamages, capacity);
+		groundCooldowns = Arrays.copyOf(groundCooldowns, capacity);
+		airCooldowns = Arrays.copyOf(airCooldowns, capacity);
+		maxHitPoints = Arrays.copyOf(maxHitPoints, capacity);
+		maxShields = Arrays.copyOf(maxShields, capacity);
+		topSpeeds = Arrays.copyOf(topSpeeds, capacity);
+		turnRadii = Arrays.copyOf(turnRadii, capacity);
+		armors = Arrays.copyOf(armors, capacity);
+		mineralPrices = Arrays.copyOf(mineralPrices, capacity);
+		gasPrices = Arrays.copyOf(gasPrices, capacity);
+		sightRanges = Arrays.copyOf(sightRanges, capacity);
+		flags = Arrays.copyOf(flags, capacity);
+		clearances = Arrays.copyOf(clearances, capacity);
+	}
+
+	/** Fill the damage matrix for every type registered so far. */
+	private static void fillDamage() {
+		damageStride = count;
+		damage = new int[count * count];
+		for (int a = 0; a < count; a++) {
+			if ((flags[a] & (CAN_ATTACK_AIR | CAN_ATTACK_GROUND)) == 0) {
+				continue;
+			}
+			for (int d = 0; d < count; d++) {
+				damage[a * damageStride + d] = GameHandler.getDamageFrom(types[a], types[d]);
+			}
+		}
+	}
+
+	/** @return the number of types with an id */
+	public static int size() {
+		return count;
+	}
+
+	/** @return the dense id of a type, giving it one if it has none yet */
+	public static int getId(UnitType type) {
+		final Integer id = ids.get(type);
+		return id == null ? register(type) : id;
+	}
+
+	public static UnitType getType(int id) {
+		return types[id];
+	}
+
+	public static int getWidth(int id) {
+		return widths[id];
+	}
+
+	public static int getWidth(UnitType type) {
+		return widths[getId(type)];
+	}
+
+	public static int getHeight(int id) {
+		return heights[id];
+	}
+
+	public static int getHeight(UnitType type) {
+		return heights[getId(type)];
+	}
+
+	public static int getTileWidth(int id) {
+		return tileWidths[id];
+	}
+
+	public static int getTileWidth(UnitType type) {
+		return tileWidths[getId(type)];
+	}
+
+	public static int getTileHeight(int id) {
+		return tileHeights[id];
+	}
+
+	public static int getTileHeight(UnitType type) {
+		return tileHeights[getId(type)];
+	}
+
+	/** @return the range of the ground weapon in pixels, or 0 if there is none */
+	public static int getGroundRange(int id) {
+		return groundRanges[id];
+	}
+
+	/** @return the range of the air weapon in pixels, or 0 if there is none */
+	public static int getAirRange(int id) {
+		return airRanges[id];
+	}
+
+	/**
+	 * @return the damage of one attack of the ground weapon before armor, size
+	 *         and upgrades, or 0 if there is none
+	 */
+	public static int getGroundDamage(int id) {
+		return groundDamages[id];
+	}
+
+	/** @return the damage of one attack of the air weapon, as for the ground */
+	public static int getAirDamage(int id) {
+		return airDamages[id];
+	}
+
+	/** @return the frames between attacks of the ground weapon, or 0 */
+	public static int getGroundCooldown(int id) {
+		return groundCooldowns[id];
+	}
+
+	/** @return the frames between attacks of the air weapon, or 0 */
+	public static int getAirCooldown(int id) {
+		return airCooldowns[id];
+	}
+
+	public static int getMaxHitPoints(int id) {
+		return maxHitPoints[id];
+	}
+
+	public static int getMaxShields(int id) {
+		return maxShields[id];
+	}
+
+	/** @return the top speed in pixels per frame */
+	public static double getTopSpeed(int id) {
+		return topSpeeds[id];
+	}
+
+	/**
+	 * @return how fast a type turns, in 256ths of a full turn per frame, which
+	 *         BWAPI calls its turn radius
+	 */
+	public static int getTurnRadius(int id) {
+		return turnRadii[id];
+	}
+
+	public static int getArmor(int id) {
+		return armors[id];
+	}
+
+	public static int getMineralPrice(int id) {
+		return mineralPrices[id];
+	}
+
+	public static int getGasPrice(int id) {
+		return gasPrices[id];
+	}
+
+	public static int getSightRange(int id) {
+		return sightRanges[id];
+	}
+
+	/** @return whether a type has all of the given flags */
+	public static boolean is(int id, int flag) {
+		return (flags[id] & flag) == flag;
+	}
+
+	/** @return every flag of a type */
+	public static int getFlags(int id) {
+		return flags[id];
+	}
+
+	/**
+	 * @return the smallest walk tile clearance a type fits into, which is its
+	 *         larger dimension rounded to the nearest walk tile
+	 */
+	public static int getRequiredClearance(UnitType type) {
+		return clearances[getId(type)];
+	}
+
+	/**
+	 * @return the damage of one attack by the attacker against the defender,
+	 *         without upgrades, or 0 if it cannot attack it
+	 */
+	public static int getDamage(int attacker, int defender) {
+		if (attacker >= damageStride || defender >= damageStride) {
+			// Types seen after startup
+			return GameHandler.getDamageFrom(types[attacker], types[defender]);
+		}
+		return damage[attacker * damageStride + defender];
+	}
+}
@@ -0,0 +1,256 @@
+package gamestructure;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import bwapi.Player;
+import bwapi.Unit;
+import bwapi.UnitType;
+
+/**
+ * A copy of every visible unit's state, taken once at the start of each frame
+ * so that the rest of the frame reads plain arrays instead of calling into
+ * BWAPI through JNI for every property.<br>
+ * Units are stored in dense slots, in the order BWAPI lists them, and can be
+ * looked up by their ID. A snapshot never changes once it is published, so it
+ * can be read from other threads. There are two snapshots that are rebuilt in
+ * turn, so a reader must not hold on to one for more than a frame.
+ *
+ * @author wesley
+ *
+ */
+public final class WorldSnapshot {
+	/** Owner of a unit */
+	public static final byte SELF = 0;
+	public static final byte ENEMY = 1;
+	public static final byte NEUTRAL = 2;
+
+	// State flags
+	public static final int COMPLETED = 1 << 0;
+	public static final int FLYING = 1 << 1;
+	public static final int IDLE = 1 << 2;
+	public static final int CONSTRUCTING = 1 << 3;
+	public static final int GATHERING_MINERALS = 1 << 4;
+	public static final int GATHERING_GAS = 1 << 5;
+
+	private static final WorldSnapshot[] buffers = { new WorldSnapshot(), new WorldSnapshot() };
+	/** The snapshot of the current frame */
+	private static volatile WorldSnapshot current = buffers[0];
+	/** The buffer to build the next snapshot into */
+	private static int back = 1;
+	private static final Map<Player, Byte> owners = new HashMap<>();
+
+	private int frame = -1;
+	private int count = 0;
+	private Unit[] units = new Unit[0];
+	private int[] ids = new int[0];
+	private int[] xs = new int[0];
+	private int[] ys = new int[0];
+	private double[] velocityXs = new double[0];
+	private double[] velocityYs = new double[0];
+	private double[] angles = new double[0];
+	private UnitType[] types = new UnitType[0];
+	/** The {@link UnitTypeTable} id of each unit's type */
+	private int[] typeIds = new int[0];
+	private byte[] ownerOf = new byte[0];
+	private int[] hitPoints = new int[0];
+	private int[] shields = new int[0];
+	private int[] groundCooldowns = new int[0];
+	private int[] airCooldowns = new int[0];
+	private int[] states = new int[0];
+	/** The slot of each unit ID, or -1 */
+	private int[] idToSlot = new int[0];
+
+	/** This constructor should only be used for the two buffers. */
+	private WorldSnapshot() {
+	}
+
+	/** Forget the owners of the last game. */
+	public static void init() {
+		System.out.print("Starting WorldSnapshot... ");
+		owners.clear();
+		System.out.println("Success!");
+	}
+
+	/** Take a snapshot of every unit and publish it. */
+	public static void onFrame() {
+		final WorldSnapshot s = buffers[back];
+		s.build(GameHandler.getAllUnits(), GameHandler.getFrameCount());
+		current = s;
+		back ^= 1;
+	}
+
+	/** @return the snapshot of the current frame */
+	public static WorldSnapshot get() {
+		return current;
+	}
+
+	private void build(List<Unit> all, int iframe) {
+		final int n = all.size();
+		if (units.length < n) {
+			grow(Math.max(n, 2 * units.length));
+		}
+		// Clear the slots of the units from the last time this buffer was used
+		for (int i = 0; i < count; i++) {
+			idToSlot[ids[i]] = -1;
+		}
+		for (int i = n; i < count; i++) {
+			units[i] = null;
+		}
+		frame = iframe;
+		count = n;
+
+		for (int i = 0; i < n; i++) {
+			final Unit u = all.get(i);
+			units[i] = u;
+			final int id = u.getID();
+			ids[i] = id;
+			if (id >= idToSlot.length) {
+				final int oldLength = idToSlot.length;
+				idToSlot = Arrays.copyOf(idToSlot, Math.max(id + 1, 2 * oldLength));
+				Arrays.fill(idToSlot, oldLength, idToSlot.length, -1);
+			}
+			idToSlot[id] = i;
+			xs[i] = u.getX();
+			ys[i] = u.getY();
+			velocityXs[i] = u.getVelocityX();
+			velocityYs[i] = u.getVelocityY();
+			angles[i] = u.getAngle();
+			types[i] = u.getType();
+			typeIds[i] = UnitTypeTable.getId(types[i]);
+			ownerOf[i] = getOwner(u.getPlayer());
+			hitPoints[i] = u.getHitPoints();
+			shields[i] = u.getShields();
+			groundCooldowns[i] = u.getGroundWeaponCooldown();
+			airCooldowns[i] = u.getAirWeaponCooldown();
+			int state = 0;
+			if (u.isCompleted()) {
+				state |= COMPLETED;
+			}
+			if (u.isFlying()) {
+				state |= FLYING;
+			}
+			if (u.isIdle()) {
+				state |= IDLE;
+			}
+			if (u.isConstructing()) {
+				state |= CONSTRUCTING;
+			}
+			if (u.isGatheringMinerals()) {
+				state |= GATHERING_MINERALS;
+			}
+			if (u.isGatheringGas()) {
+				state |= GATHERING_GAS;
+			}
+			states[i] = state;
+		}
+	}
+
+	private void grow(int capacity) {
+		units = Arrays.copyOf(units, capacity);
+		ids = Arrays.copyOf(ids, capacity);
+		xs = Arrays.copyOf(xs, capacity);
+		ys = Arrays.copyOf(ys, capacity);
+		velocityXs = Arrays.copyOf(velocityXs, capacity);
+		velocityYs = Arrays.copyOf(velocityYs, capacity);
+		angles = Arrays.copyOf(angles, capacity);
+		types = Arrays.copyOf(types, capacity);
+		typeIds = Arrays.copyOf(typeIds, capacity);
+		ownerOf = Arrays.copyOf(ownerOf, capacity);
+		hitPoints = Arrays.copyOf(hitPoints, capacity);
+		shields = Arrays.copyOf(shields, capacity);
+		groundCooldowns = Arrays.copyOf(groundCooldowns, capacity);
+		airCooldowns = Arrays.copyOf(airCooldowns, capacity);
+		states = Arrays.copyOf(states, capacity);
+	}
+
+	private static byte getOwner(Player p) {
+		Byte owner = owners.get(p);
+		if (owner == null) {
+			final Player self = GameHandler.getSelfPlayer();
+			owner = p == self ? SELF : self.isEnemy(p) ? ENEMY : NEUTRAL;
+			owners.put(p, owner);
+		}
+		return owner;
+	}
+
+	/** @return the frame the snapshot was taken on */
+	public int getFrame() {
+		return frame;
+	}
+
+	/** @return the number of units in the snapshot */
+	public int size() {
+		return count;
+	}
+
+	/** @return the slot of the unit with an ID, or -1 if it is not visible */
+	public int getSlot(int id) {
+		return id >= 0 && id < idToSlot.length ? idToSlot[id] : -1;
+	}
+
+	public Unit getUnit(int slot) {
+		return units[slot];
+	}
+
+	public int getID(int slot) {
+		return ids[slot];
+	}
+
+	public int getX(int slot) {
+		return xs[slot];
+	}
+
+	public int getY(int slot) {
+		return ys[slot];
+	}
+
+	public double getVelocityX(int slot) {
+		return velocityXs[slot];
+	}
+
+	public double getVelocityY(int slot) {
+		return velocityYs[slot];
+	}
+
+	public double getAngle(int slot) {
+		return angles[slot];
+	}
+
+	public UnitType getType(int slot) {
+		return types[slot];
+	}
+
+	/** @return the {@link UnitTypeTable} id of a unit's type */
+	public int getTypeId(int slot) {
+		return typeIds[slot];
+	}
+
+	/** @return {@link #SELF}, {@link #ENEMY} or {@link #NEUTRAL} */
+	public byte getOwner(int slot) {
+		return ownerOf[slot];
+	}
+
+	public int getHitPoints(int slot) {
+		return hitPoints[slot];
+	}
+
+	public int getShields(int slot) {
+		return shields[slot];
+	}
+
+	public int getGroundWeaponCooldown(int slot) {
+		return groundCooldowns[slot];
+	}
+
+	public int getAirWeaponCooldown(int slot) {
+		return airCooldowns[slot];
+	}
+
+	/** @return whether a unit has all of the given state flags */
+	public boolean is(int slot, int state) {
+		return (states[slot] & state) == state;
+	}
+}
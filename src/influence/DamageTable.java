@@ -0,0 +1,120 @@
+package influence;
+
+import java.util.Arrays;
+
+import bwapi.DamageType;
+import bwapi.UnitSizeType;
+import bwapi.UnitType;
+import bwapi.WeaponType;
+import gamestructure.UnitTypeTable;
+
+/**
+ * Damage per second of every attacker against every defender size and armor,
+ * for both ground and air weapons. Each attacker's row is computed the first
+ * time it is needed, after which lookups are an array access.<br>
+ * Armor is subtracted before the size modifier is applied, and every attack
+ * does at least half a point of damage, as in the game. Upgrades are ignored.
+ *
+ * @author wesley
+ *
+ */
+public final class DamageTable {
+	/** Small, medium, large, and everything else, which takes full damage */
+	public static final int SIZES = 4;
+	/** Armor values above this are looked up as this */
+	public static final int MAX_ARMOR = 4;
+	private static final int ARMORS = MAX_ARMOR + 1;
+	private static final int FRAMES_PER_SECOND = 24;
+
+	/** Damage multipliers by damage type and defender size */
+	private static final float[] CONCUSSIVE = { 1, 0.5f, 0.25f, 1 };
+	private static final float[] EXPLOSIVE = { 0.5f, 0.75f, 1, 1 };
+	private static final float[] NORMAL = { 1, 1, 1, 1 };
+
+	/**
+	 * For each attacker's {@link UnitTypeTable} id, ground DPS followed by air
+	 * DPS, each indexed by size and then armor
+	 */
+	private static float[][] rows = new float[0][];
+
+	/** This constructor should never be used. */
+	private DamageTable() {
+	}
+
+	public static int sizeIndex(UnitSizeType size) {
+		if (size == UnitSizeType.Small) {
+			return 0;
+		} else if (size == UnitSizeType.Medium) {
+			return 1;
+		} else if (size == UnitSizeType.Large) {
+			return 2;
+		}
+		return 3;
+	}
+
+	/**
+	 * @param attacker
+	 *            the unit type doing the damage
+	 * @param air
+	 *            <b>true</b> for the air weapon against flying defenders,
+	 *            <b>false</b> for the ground weapon
+	 * @param size
+	 *            the defender's size, as returned by {@link #sizeIndex}
+	 * @param armor
+	 *            the defender's armor
+	 * @return the damage per second the attacker's weapon does to the defender
+	 */
+	public static float getDps(UnitType attacker, boolean air, int size, int armor) {
+		return getDps(UnitTypeTable.getId(attacker), air, size, armor);
+	}
+
+	/**
+	 * @param attacker
+	 *            the {@link UnitTypeTable} id of the unit type doing the damage
+	 * @see #getDps(UnitType, boolean, int, int)
+	 */
+	public static float getDps(int attacker, boolean air, int size, int armor) {
+		if (attacker >= rows.length) {
+			rows = Arrays.copyOf(rows, Math.max(attacker + 1, UnitTypeTable.size()));
+		}
+		float[] row = rows[attacker];
+		if (row == null) {
+			row = computeRow(UnitTypeTable.getType(attacker));
+			rows[attacker] = row;
+		}
+		return row[(air ? SIZES * ARMORS : 0) + size * ARMORS + Math.min(Math.max(armor, 0), MAX_ARMOR)];
+	}
+
+	/** @return the damage per second the attacker does to the defender */
+	public static float getDps(UnitType attacker, UnitType defender) {
+		return getDps(attacker, defender.isFlyer(), sizeIndex(defender.size()), defender.armor());
+	}
+
+	private static float[] computeRow(UnitType attacker) {
+		final float[] row = new float[2 * SIZES * ARMORS];
+		fillWeapon(row, 0, attacker.groundWeapon());
+		fillWeapon(row, SIZES * ARMORS, attacker.airWeapon());
+		return row;
+	}
+
+	private static void fillWeapon(float[] row, int offset, WeaponType weapon) {
+		if (weapon == WeaponType.None || weapon.damageCooldown() <= 0) {
+			return;
+		}
+		final float[] multipliers;
+		if (weapon.damageType() == DamageType.Concussive) {
+			multipliers = CONCUSSIVE;
+		} else if (weapon.damageType() == DamageType.Explosive) {
+			multipliers = EXPLOSIVE;
+		} else {
+			multipliers = NORMAL;
+		}
+		final float attacksPerSecond = (float) FRAMES_PER_SECOND / weapon.damageCooldown();
+		for (int size = 0; size < SIZES; size++) {
+			for (int armor = 0; armor < ARMORS; armor++) {
+				final float perHit = Math.max(0.5f, (weapon.damageAmount() - armor) * multipliers[size]);
+				row[offset + size * ARMORS + armor] = perHit * Math.max(weapon.damageFactor(), 1) * attacksPerSecond;
+			}
+		}
+	}
+}
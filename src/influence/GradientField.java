@@ -0,0 +1,76 @@
+package influence;
+
+/**
+ * The gradient of an {@link InfluenceMap}, which points the way the influence
+ * rises fastest. After one pass over the map to build it, the gradient at any
+ * pixel is a bilinear blend of the four nearest cell centers, so it changes
+ * smoothly as a unit crosses from one cell into the next.
+ *
+ * @author wesley
+ *
+ */
+public final class GradientField {
+	private final int width;
+	private final int height;
+	private final int cellSize;
+	/**
+	 * The gradient at the center of each cell in influence per pixel, indexed
+	 * as {@code x + y * width}
+	 */
+	private final float[] xs;
+	private final float[] ys;
+
+	public GradientField(InfluenceMap map) {
+		width = map.getWidth();
+		height = map.getHeight();
+		cellSize = map.getCellSize();
+		xs = new float[width * height];
+		ys = new float[width * height];
+	}
+
+	/**
+	 * Recompute the gradient from the map it was created for, by central
+	 * differences, or one-sided differences along the edges of the map.
+	 */
+	public void build(InfluenceMap map) {
+		final float[] values = map.getValues();
+		for (int y = 0; y < height; y++) {
+			final int up = Math.max(y - 1, 0);
+			final int down = Math.min(y + 1, height - 1);
+			for (int x = 0; x < width; x++) {
+				final int left = Math.max(x - 1, 0);
+				final int right = Math.min(x + 1, width - 1);
+				final int i = x + y * width;
+				xs[i] = right == left ? 0
+						: (values[right + y * width] - values[left + y * width]) / ((right - left) * cellSize);
+				ys[i] = down == up ? 0
+						: (values[x + down * width] - values[x + up * width]) / ((down - up) * cellSize);
+			}
+		}
+	}
+
+	/** @return the x of the gradient at a position in pixels */
+	public float getX(int px, int py) {
+		return sample(xs, px, py);
+	}
+
+	/** @return the y of the gradient at a position in pixels */
+	public float getY(int px, int py) {
+		return sample(ys, px, py);
+	}
+
+	private float sample(float[] values, int px, int py) {
+		// Measured from the center of the top left cell
+		final float fx = Math.min(Math.max((px - cellSize / 2f) / cellSize, 0), width - 1);
+		final float fy = Math.min(Math.max((py - cellSize / 2f) / cellSize, 0), height - 1);
+		final int x0 = (int) fx;
+		final int y0 = (int) fy;
+		final int x1 = Math.min(x0 + 1, width - 1);
+		final int y1 = Math.min(y0 + 1, height - 1);
+		final float tx = fx - x0;
+		final float ty = fy - y0;
+		final float top = values[x0 + y0 * width] * (1 - tx) + values[x1 + y0 * width] * tx;
+		final float bottom = values[x0 + y1 * width] * (1 - tx) + values[x1 + y1 * width] * tx;
+		return top * (1 - ty) + bottom * ty;
+	}
+}
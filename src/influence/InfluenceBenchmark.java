@@ -0,0 +1,96 @@
+package influence;
+
+import java.awt.Point;
+import java.util.Random;
+
+/**
+ * Times a full restamp of the threat layer, comparing the kernel stamping in
+ * {@link InfluenceMap} against the old per-cell distance loops over a
+ * {@code double[][]}. Run from the "influence" debug module.
+ *
+ * @author wesley
+ *
+ */
+public final class InfluenceBenchmark {
+	/** Threat radii of common units: no air weapon up to a spore colony */
+	private static final int[] RADII = { 10, 14, 15, 17 };
+
+	/** This constructor should never be used. */
+	private InfluenceBenchmark() {
+	}
+
+	/**
+	 * Stamp a number of randomly placed enemies onto an empty map, repeatedly.
+	 *
+	 * @param enemies
+	 *            the number of enemies to stamp
+	 * @param size
+	 *            the width and height of the map in build tiles
+	 * @param iterations
+	 *            how many times to clear and restamp the map
+	 * @return a summary of the average time per restamp with each method
+	 */
+	public static String run(int enemies, int size, int iterations) {
+		final Random random = new Random(0);
+		final int[] xs = new int[enemies];
+		final int[] ys = new int[enemies];
+		final int[] radii = new int[enemies];
+		for (int i = 0; i < enemies; i++) {
+			xs[i] = random.nextInt(size);
+			ys[i] = random.nextInt(size);
+			radii[i] = RADII[random.nextInt(RADII.length)];
+		}
+
+		// Warm up both so the JIT has compiled them before timing
+		final double[][] legacy = new double[size + 1][size + 1];
+		final InfluenceMap map = new InfluenceMap(size, size);
+		for (int i = 0; i < 3; i++) {
+			stampLegacy(legacy, size, xs, ys, radii);
+			stampKernels(map, xs, ys, radii);
+		}
+
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			stampLegacy(legacy, size, xs, ys, radii);
+		}
+		final double legacyMs = (System.nanoTime() - start) / 1e6 / iterations;
+		start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			stampKernels(map, xs, ys, radii);
+		}
+		final double kernelMs = (System.nanoTime() - start) / 1e6 / iterations;
+
+		return String.format("%d enemies on %dx%d: distance loops %.3fms, kernels %.3fms", enemies, size, size,
+				legacyMs, kernelMs);
+	}
+
+	private static void stampLegacy(double[][] threat, int size, int[] xs, int[] ys, int[] radii) {
+		for (int x = 0; x < size; x++) {
+			for (int y = 0; y < size; y++) {
+				threat[x][y] = 0;
+			}
+		}
+		for (int i = 0; i < xs.length; i++) {
+			final int x = xs[i];
+			final int y = ys[i];
+			final int radius = radii[i];
+			int startX = Math.max(x - radius, 0);
+			int endX = Math.min(x + radius, size);
+			for (int cx = startX; cx < endX; cx++) {
+				int remainingRadius = radius - Math.abs(cx - x);
+				int startY = Math.max(y - remainingRadius, 0);
+				int endY = Math.min(y + remainingRadius, size);
+				for (int cy = startY; cy < endY; cy++) {
+					threat[cx][cy] += 20 * Math.max(1 - Point.distance(x, y, cx, cy) / radius, 0);
+				}
+			}
+		}
+	}
+
+	private static void stampKernels(InfluenceMap map, int[] xs, int[] ys, int[] radii) {
+		map.clear();
+		for (int i = 0; i < xs.length; i++) {
+			map.stamp(InfluenceKernel.get(radii[i], InfluenceKernel.Falloff.LINEAR), xs[i], ys[i], 20);
+		}
+	}
+}
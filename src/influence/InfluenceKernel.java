@@ -0,0 +1,95 @@
+package influence;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A precomputed square of weights added to an {@link InfluenceMap} around a
+ * unit. The weights cover a diamond of the given radius, inclusive, or a disc
+ * for {@link Falloff#FLAT}, and are zero outside of it, so that stamping is a
+ * plain multiply-add over each row with no distance calculations.<br>
+ * Kernels are immutable and shared: there is only ever one for each radius and
+ * falloff.
+ *
+ * @author wesley
+ *
+ */
+public final class InfluenceKernel {
+	/** How the weight of a kernel drops off with distance from its center */
+	public enum Falloff {
+		/** 1 at the center, falling to 0 at the radius */
+		LINEAR,
+		/** 1 / (distance + 1) */
+		INVERSE,
+		/** 1 everywhere within the radius, as a disc rather than a diamond */
+		FLAT
+	}
+
+	private static final Map<Integer, InfluenceKernel> kernels = new HashMap<>();
+
+	/** The radius in cells */
+	public final int radius;
+	/** The width and height of the kernel, which is 2 * radius + 1 */
+	public final int size;
+	public final Falloff falloff;
+	/** Weights in row-major order, with the center at (radius, radius) */
+	final float[] weights;
+	/** The sum of all the weights */
+	private final float totalWeight;
+
+	private InfluenceKernel(int iradius, Falloff ifalloff) {
+		radius = iradius;
+		size = 2 * radius + 1;
+		falloff = ifalloff;
+		weights = new float[size * size];
+		for (int dy = -radius; dy <= radius; dy++) {
+			for (int dx = -radius; dx <= radius; dx++) {
+				final double distance = Math.sqrt(dx * dx + dy * dy);
+				if (falloff == Falloff.FLAT ? distance > radius : Math.abs(dx) + Math.abs(dy) > radius) {
+					continue;
+				}
+				final double weight;
+				switch (falloff) {
+				case LINEAR:
+					weight = radius == 0 ? 1 : Math.max(1 - distance / radius, 0);
+					break;
+				case INVERSE:
+					weight = 1 / (distance + 1);
+					break;
+				case FLAT:
+				default:
+					weight = 1;
+					break;
+				}
+				weights[(dy + radius) * size + dx + radius] = (float) weight;
+			}
+		}
+		float total = 0;
+		for (float w : weights) {
+			total += w;
+		}
+		totalWeight = total;
+	}
+
+	/**
+	 * Get the kernel for a radius and falloff, computing it the first time it
+	 * is asked for.
+	 */
+	public static InfluenceKernel get(int radius, Falloff falloff) {
+		return kernels.computeIfAbsent(radius * Falloff.values().length + falloff.ordinal(),
+				k -> new InfluenceKernel(radius, falloff));
+	}
+
+	/** @return the sum of all the weights */
+	public float getTotalWeight() {
+		return totalWeight;
+	}
+
+	/** @return the weight at an offset from the center */
+	public float getWeight(int dx, int dy) {
+		if (Math.abs(dx) > radius || Math.abs(dy) > radius) {
+			return 0;
+		}
+		return weights[(dy + radius) * size + dx + radius];
+	}
+}
@@ -0,0 +1,288 @@
+package influence;
+
+import java.util.Arrays;
+import java.util.function.Function;
+
+import bwapi.UnitType;
+import gamestructure.UnitTypeTable;
+import gamestructure.WorldSnapshot;
+
+/**
+ * One influence map kept up to date incrementally. Each enemy's contribution
+ * is remembered along with the cell and type it was stamped for. On an update,
+ * only the enemies that moved to another cell, changed type, disappeared or
+ * showed up have their old contribution subtracted and their new one added, so
+ * the cost of an update scales with the number of enemies that changed rather
+ * than with the map area times the number of enemies.<br>
+ * Enemies are read from the {@link WorldSnapshot} and their stamps are kept
+ * by unit ID, so an update makes no calls into BWAPI. What a unit type
+ * contributes is decided by the layer's {@link Shape} function, which is only
+ * called once per type.
+ *
+ * @author wesley
+ *
+ */
+public final class InfluenceLayer {
+	/**
+	 * Frames between full rebuilds, which clear the rounding error that adding
+	 * and subtracting the same stamps accumulates
+	 */
+	private static final int FULL_REBUILD_FRAMES = 24 * 60;
+
+	/** What a unit type adds to a layer: a kernel and how much of it */
+	public static final class Shape {
+		final InfluenceKernel kernel;
+		final float scale;
+
+		public Shape(InfluenceKernel ikernel, float iscale) {
+			kernel = ikernel;
+			scale = iscale;
+		}
+	}
+
+	/** What has been added to the map on behalf of one enemy */
+	private static final class Stamp {
+		int x;
+		int y;
+		int typeId = -1;
+		/** Null if the enemy adds nothing to this layer */
+		Shape shape;
+		/** The last update on which the enemy was seen */
+		int seenFrame;
+		/** The index of the enemy's ID in {@link InfluenceLayer#stampedIds}, or -1 */
+		int index = -1;
+	}
+
+	private final String name;
+	private final int cellSize;
+	private final int cadence;
+	private final InfluenceMap map;
+	/** Returns null for unit types that add nothing */
+	private final Function<UnitType, Shape> shapeFunction;
+	/** The shape of each unit type id, once it has been asked for */
+	private Shape[] shapes = new Shape[0];
+	private boolean[] hasShape = new boolean[0];
+	/** The stamp of each unit ID, or null */
+	private Stamp[] stamps = new Stamp[0];
+	/** The IDs of the enemies with a stamp, in no particular order */
+	private int[] stampedIds = new int[0];
+	private int stampedCount = 0;
+	/** Built from the map at most once per frame, when first asked for */
+	private final SummedAreaTable sums;
+	private int sumsFrame = -1;
+	/** Built from the map at most once per frame, when first asked for */
+	private final GradientField gradient;
+	private int gradientFrame = -1;
+
+	/** The frame of the last update, or -1 while the layer is dormant */
+	private int updateFrame = -1;
+	private int rebuildFrame = -1;
+	/** The last frame on which anything read the layer */
+	int readFrame = -1;
+
+	/** Enemies that were restamped on the last update */
+	private int changed = 0;
+	/** Enemies that were left alone on the last update */
+	private int unchanged = 0;
+
+	/**
+	 * @param iname
+	 *            a name to show in debug output
+	 * @param icellSize
+	 *            the size of a cell in pixels
+	 * @param icadence
+	 *            the number of frames between updates
+	 * @param mapWidth
+	 *            the width of the map in pixels
+	 * @param mapHeight
+	 *            the height of the map in pixels
+	 * @param ishapeFunction
+	 *            what each unit type contributes, or null if it contributes
+	 *            nothing. Kernel radii are in cells.
+	 */
+	public InfluenceLayer(String iname, int icellSize, int icadence, int mapWidth, int mapHeight,
+			Function<UnitType, Shape> ishapeFunction) {
+		name = iname;
+		cellSize = icellSize;
+		cadence = icadence;
+		map = new InfluenceMap((mapWidth + cellSize - 1) / cellSize, (mapHeight + cellSize - 1) / cellSize,
+				cellSize);
+		shapeFunction = ishapeFunction;
+		sums = new SummedAreaTable(map);
+		gradient = new GradientField(map);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public InfluenceMap getMap() {
+		return map;
+	}
+
+	/**
+	 * @return a summed-area table of the map, rebuilt if the map may have
+	 *         changed since it was last built
+	 */
+	public SummedAreaTable getSums() {
+		if (sumsFrame != updateFrame) {
+			sums.build(map);
+			sumsFrame = updateFrame;
+		}
+		return sums;
+	}
+
+	/**
+	 * @return the gradient of the map, rebuilt if the map may have changed
+	 *         since it was last built
+	 */
+	public GradientField getGradient() {
+		if (gradientFrame != updateFrame) {
+			gradient.build(map);
+			gradientFrame = updateFrame;
+		}
+		return gradient;
+	}
+
+	public int getCadence() {
+		return cadence;
+	}
+
+	/** @return whether the layer has stopped updating because nothing reads it */
+	public boolean isDormant() {
+		return updateFrame == -1;
+	}
+
+	/** @return whether the layer is due for an update on the given frame */
+	boolean isDue(int frame) {
+		return isDormant() || frame - updateFrame >= cadence;
+	}
+
+	/**
+	 * Bring the map up to date with the enemies currently visible.
+	 *
+	 * @param world
+	 *            the snapshot whose enemy units contribute to the map
+	 * @param frame
+	 *            the current frame
+	 */
+	void update(WorldSnapshot world, int frame) {
+		if (rebuildFrame == -1 || frame - rebuildFrame >= FULL_REBUILD_FRAMES) {
+			map.clear();
+			clearStamps();
+			rebuildFrame = frame;
+		}
+		updateFrame = frame;
+		changed = 0;
+		unchanged = 0;
+
+		for (int slot = 0; slot < world.size(); slot++) {
+			if (world.getOwner(slot) != WorldSnapshot.ENEMY) {
+				continue;
+			}
+			final int id = world.getID(slot);
+			final int x = world.getX(slot) / cellSize;
+			final int y = world.getY(slot) / cellSize;
+			final int typeId = world.getTypeId(slot);
+			if (id >= stamps.length) {
+				stamps = Arrays.copyOf(stamps, Math.max(id + 1, 2 * stamps.length));
+			}
+			Stamp s = stamps[id];
+			if (s == null) {
+				s = new Stamp();
+				stamps[id] = s;
+			}
+			if (s.index == -1) {
+				if (stampedCount == stampedIds.length) {
+					stampedIds = Arrays.copyOf(stampedIds, Math.max(16, 2 * stampedCount));
+				}
+				s.index = stampedCount;
+				stampedIds[stampedCount++] = id;
+			} else if (s.x == x && s.y == y && s.typeId == typeId) {
+				s.seenFrame = frame;
+				unchanged++;
+				continue;
+			} else {
+				// Take back the old contribution
+				apply(s, -1);
+			}
+			s.x = x;
+			s.y = y;
+			s.typeId = typeId;
+			s.shape = getShape(typeId);
+			s.seenFrame = frame;
+			apply(s, 1);
+			changed++;
+		}
+
+		// Enemies that died or went out of sight
+		for (int i = stampedCount - 1; i >= 0; i--) {
+			final Stamp s = stamps[stampedIds[i]];
+			if (s.seenFrame != frame) {
+				apply(s, -1);
+				removeStamp(s);
+				changed++;
+			}
+		}
+	}
+
+	/** @return what a unit type adds, working it out the first time */
+	private Shape getShape(int typeId) {
+		if (typeId >= shapes.length) {
+			shapes = Arrays.copyOf(shapes, UnitTypeTable.size());
+			hasShape = Arrays.copyOf(hasShape, UnitTypeTable.size());
+		}
+		if (!hasShape[typeId]) {
+			final UnitType type = UnitTypeTable.getType(typeId);
+			shapes[typeId] = shapeFunction.apply(type);
+			hasShape[typeId] = true;
+		}
+		return shapes[typeId];
+	}
+
+	/** Drop an enemy's stamp, moving the last stamped ID into its place. */
+	private void removeStamp(Stamp s) {
+		final int last = stampedIds[--stampedCount];
+		stampedIds[s.index] = last;
+		stamps[last].index = s.index;
+		s.index = -1;
+	}
+
+	/** Drop every stamp without taking it back from the map. */
+	private void clearStamps() {
+		for (int i = 0; i < stampedCount; i++) {
+			stamps[stampedIds[i]].index = -1;
+		}
+		stampedCount = 0;
+	}
+
+	/** Stop updating and let go of every stamp until the layer is read again. */
+	void sleep() {
+		map.clear();
+		clearStamps();
+		updateFrame = -1;
+		rebuildFrame = -1;
+	}
+
+	/**
+	 * Add or subtract an enemy's contribution.
+	 *
+	 * @param sign
+	 *            1 to add the stamp, -1 to remove it
+	 */
+	private void apply(Stamp s, int sign) {
+		if (s.shape != null) {
+			map.stamp(s.shape.kernel, s.x, s.y, sign * s.shape.scale);
+		}
+	}
+
+	/** @return the number of enemies restamped on the last update */
+	public int getChangedCount() {
+		return changed;
+	}
+
+	/** @return the number of enemies left alone on the last update */
+	public int getUnchangedCount() {
+		return unchanged;
+	}
+}
@@ -0,0 +1,214 @@
+package influence;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import bwapi.UnitType;
+import bwapi.WeaponType;
+import gamestructure.GameHandler;
+import gamestructure.WorldSnapshot;
+import gamestructure.debug.DebugManager;
+import gamestructure.debug.DrawEngine;
+
+/**
+ * Owns every influence layer: threat to ground units and to air units of each
+ * size and armor, enemy detection, and enemy target value. Threat is weighted
+ * by the damage each enemy does to the defender, from the
+ * {@link DamageTable}.<br>
+ * Each layer has its own resolution and update cadence. Layers are only
+ * created when something first asks for them, and they stop updating once
+ * nothing has read them for {@link #IDLE_FRAMES} frames.
+ *
+ * @author wesley
+ *
+ */
+public final class InfluenceManager {
+	/** Frames a layer keeps updating after it was last read */
+	private static final int IDLE_FRAMES = 48;
+	/** How far beyond weapon range threat extends, in pixels */
+	private static final int THREAT_MARGIN = 10 * 32;
+	private static final int THREAT_CELL_SIZE = 32;
+	private static final int THREAT_CADENCE = 1;
+	private static final int DETECTION_CELL_SIZE = 32;
+	private static final int DETECTION_CADENCE = 12;
+	/** Radius of the target value stamp in pixels */
+	private static final int TARGET_RADIUS = 10 * 32;
+	private static final int TARGET_CELL_SIZE = 64;
+	private static final int TARGET_CADENCE = 8;
+	/** The cost of a worker, which is worth 1 on the target value layer */
+	private static final float WORKER_COST = 50;
+
+	/** The width of the map in pixels */
+	private static int mapWidth;
+	/** The height of the map in pixels */
+	private static int mapHeight;
+	/**
+	 * Threat layers indexed by whether the defender flies, then its size and
+	 * armor. Null until first asked for.
+	 */
+	private static InfluenceLayer[] threatLayers;
+	private static InfluenceLayer detection;
+	private static InfluenceLayer targetValue;
+	/** Every layer created so far */
+	private static List<InfluenceLayer> layers;
+
+	public static void init() {
+		System.out.print("Starting InfluenceManager... ");
+		mapWidth = GameHandler.getMapWidth() * 32;
+		mapHeight = GameHandler.getMapHeight() * 32;
+		threatLayers = new InfluenceLayer[2 * DamageTable.SIZES * (DamageTable.MAX_ARMOR + 1)];
+		layers = new ArrayList<>();
+		detection = addLayer(new InfluenceLayer("Detection", DETECTION_CELL_SIZE, DETECTION_CADENCE, mapWidth,
+				mapHeight, t -> t.isDetector() ? new InfluenceLayer.Shape(
+						InfluenceKernel.get(t.sightRange() / DETECTION_CELL_SIZE, InfluenceKernel.Falloff.FLAT), 1)
+						: null));
+		targetValue = addLayer(new InfluenceLayer("Target value", TARGET_CELL_SIZE, TARGET_CADENCE, mapWidth,
+				mapHeight, t -> {
+					final int cost = t.mineralPrice() + t.gasPrice();
+					if (cost <= 0) {
+						return null;
+					}
+					return new InfluenceLayer.Shape(
+							InfluenceKernel.get(TARGET_RADIUS / TARGET_CELL_SIZE, InfluenceKernel.Falloff.INVERSE),
+							cost / WORKER_COST);
+				}));
+
+		registerDebugFunctions();
+		System.out.println("Success!");
+	}
+
+	/** This constructor should never be used. */
+	private InfluenceManager() {
+	}
+
+	private static InfluenceLayer addLayer(InfluenceLayer layer) {
+		layers.add(layer);
+		return layer;
+	}
+
+	/**
+	 * Update the layers that are due, and put the ones nobody has read lately
+	 * to sleep.
+	 */
+	public static void onFrame() {
+		final int frame = GameHandler.getFrameCount();
+		final WorldSnapshot world = WorldSnapshot.get();
+		for (InfluenceLayer layer : layers) {
+			if (layer.isDormant()) {
+				continue;
+			}
+			if (frame - layer.readFrame > IDLE_FRAMES) {
+				layer.sleep();
+			} else if (layer.isDue(frame)) {
+				layer.update(world, frame);
+			}
+		}
+	}
+
+	/** Mark a layer as in use, waking it up if it was asleep. */
+	private static InfluenceLayer read(InfluenceLayer layer) {
+		final int frame = GameHandler.getFrameCount();
+		layer.readFrame = frame;
+		if (layer.isDormant()) {
+			layer.update(WorldSnapshot.get(), frame);
+		}
+		return layer;
+	}
+
+	/**
+	 * @return the damage per second enemies can do to a unit of the given
+	 *         type on each build tile
+	 */
+	public static InfluenceMap getThreat(UnitType defender) {
+		return read(getThreatLayer(defender)).getMap();
+	}
+
+	/**
+	 * @return a summed-area table of {@link #getThreat(UnitType)}, for
+	 *         constant time queries over rectangles
+	 */
+	public static SummedAreaTable getThreatSums(UnitType defender) {
+		return read(getThreatLayer(defender)).getSums();
+	}
+
+	/**
+	 * @return the gradient of {@link #getThreat(UnitType)}, which points
+	 *         towards more threat
+	 */
+	public static GradientField getThreatGradient(UnitType defender) {
+		return read(getThreatLayer(defender)).getGradient();
+	}
+
+	/**
+	 * @return the total threat a single attacker adds to the threat map of the
+	 *         defender, which is the sum over a rectangle that contains the
+	 *         attacker's entire stamp
+	 */
+	public static float getThreatStampTotal(UnitType attacker, UnitType defender) {
+		final InfluenceLayer.Shape shape = getThreatShape(attacker, defender.isFlyer(),
+				DamageTable.sizeIndex(defender.size()), defender.armor());
+		return shape == null ? 0 : shape.scale * shape.kernel.getTotalWeight();
+	}
+
+	/**
+	 * Get the threat layer for a defender, creating it the first time it is
+	 * asked for.
+	 */
+	private static InfluenceLayer getThreatLayer(UnitType defender) {
+		final boolean air = defender.isFlyer();
+		final int size = DamageTable.sizeIndex(defender.size());
+		final int armor = Math.min(Math.max(defender.armor(), 0), DamageTable.MAX_ARMOR);
+		final int index = ((air ? DamageTable.SIZES : 0) + size) * (DamageTable.MAX_ARMOR + 1) + armor;
+		if (threatLayers[index] == null) {
+			final String name = (air ? "Air" : "Ground") + " threat (size " + size + ", armor " + armor + ")";
+			threatLayers[index] = addLayer(new InfluenceLayer(name, THREAT_CELL_SIZE, THREAT_CADENCE, mapWidth,
+					mapHeight, t -> getThreatShape(t, air, size, armor)));
+		}
+		return threatLayers[index];
+	}
+
+	/**
+	 * @return what an attacker adds to a threat layer, or null if it cannot
+	 *         hurt the defender
+	 */
+	private static InfluenceLayer.Shape getThreatShape(UnitType attacker, boolean air, int size, int armor) {
+		final float dps = DamageTable.getDps(attacker, air, size, armor);
+		if (dps <= 0) {
+			return null;
+		}
+		final WeaponType weapon = air ? attacker.airWeapon() : attacker.groundWeapon();
+		return new InfluenceLayer.Shape(InfluenceKernel
+				.get((weapon.maxRange() + THREAT_MARGIN) / THREAT_CELL_SIZE, InfluenceKernel.Falloff.LINEAR), dps);
+	}
+
+	/** @return how many enemy detectors can see each cell */
+	public static InfluenceMap getDetection() {
+		return read(detection).getMap();
+	}
+
+	/**
+	 * @return the value of the enemy units around each cell, where a worker is
+	 *         worth 1
+	 */
+	public static InfluenceMap getTargetValue() {
+		return read(targetValue).getMap();
+	}
+
+	private static void registerDebugFunctions() {
+		DebugManager.createDebugModule("influence").setDraw(() -> {
+			int y = 200;
+			for (InfluenceLayer layer : layers) {
+				DrawEngine.drawTextScreen(400, y,
+						layer.getName() + ": " + (layer.isDormant() ? "asleep"
+								: layer.getChangedCount() + " restamped, " + layer.getUnchangedCount()
+										+ " unchanged"));
+				y += 10;
+			}
+		}).addCommand("bench", (c) -> {
+			// The largest maps are 256 build tiles on a side
+			final String result = InfluenceBenchmark.run(200, 256, 50);
+			System.out.println(result);
+			GameHandler.sendText(result);
+		});
+	}
+}
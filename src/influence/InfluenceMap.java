@@ -0,0 +1,121 @@
+package influence;
+
+import java.util.Arrays;
+
+/**
+ * A single layer of influence over the map, stored as a flat row-major
+ * {@code float[]} with one value per cell.
+ *
+ * @author wesley
+ *
+ */
+public final class InfluenceMap {
+	private final int width;
+	private final int height;
+	/** The size of a cell in pixels */
+	private final int cellSize;
+	private final float[] values;
+
+	/**
+	 * Create a map of build tiles.
+	 * 
+	 * @param iwidth
+	 *            the width of the map in build tiles
+	 * @param iheight
+	 *            the height of the map in build tiles
+	 */
+	public InfluenceMap(int iwidth, int iheight) {
+		this(iwidth, iheight, 32);
+	}
+
+	/**
+	 * @param iwidth
+	 *            the width of the map in cells
+	 * @param iheight
+	 *            the height of the map in cells
+	 * @param icellSize
+	 *            the size of a cell in pixels
+	 */
+	public InfluenceMap(int iwidth, int iheight, int icellSize) {
+		width = iwidth;
+		height = iheight;
+		cellSize = icellSize;
+		values = new float[width * height];
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getCellSize() {
+		return cellSize;
+	}
+
+	/**
+	 * @return the value of a cell, or 0 if it is off the map
+	 */
+	public float get(int x, int y) {
+		if (x < 0 || y < 0 || x >= width || y >= height) {
+			return 0;
+		}
+		return values[x + y * width];
+	}
+
+	/**
+	 * @return the value of the cell containing a position in pixels, or 0 if
+	 *         it is off the map
+	 */
+	public float getAtPixel(int px, int py) {
+		return get(Math.floorDiv(px, cellSize), Math.floorDiv(py, cellSize));
+	}
+
+	/**
+	 * The backing array, indexed as {@code x + y * width}. Callers must not
+	 * modify it.
+	 */
+	public float[] getValues() {
+		return values;
+	}
+
+	public void clear() {
+		Arrays.fill(values, 0);
+	}
+
+	/**
+	 * Add a kernel centered on a cell, multiplied by a scale. Parts of the
+	 * kernel that fall off the map are skipped.
+	 *
+	 * @param kernel
+	 *            the weights to add
+	 * @param cx
+	 *            the center cell
+	 * @param cy
+	 *            the center cell
+	 * @param scale
+	 *            the multiplier for every weight. Use a negative scale to take
+	 *            back an earlier stamp.
+	 */
+	public void stamp(InfluenceKernel kernel, int cx, int cy, float scale) {
+		final int r = kernel.radius;
+		final int size = kernel.size;
+		final float[] weights = kernel.weights;
+		final int fromX = Math.max(cx - r, 0);
+		final int toX = Math.min(cx + r, width - 1);
+		final int fromY = Math.max(cy - r, 0);
+		final int toY = Math.min(cy + r, height - 1);
+		if (fromX > toX) {
+			return;
+		}
+		for (int y = fromY; y <= toY; y++) {
+			final int row = y * width;
+			final int kernelRow = (y - cy + r) * size - cx + r;
+			for (int x = fromX; x <= toX; x++) {
+				values[row + x] += scale * weights[kernelRow + x];
+			}
+		}
+	}
+}
@@ -0,0 +1,163 @@
+package influence;
+
+import java.util.Iterator;
+
+import bwapi.Position;
+
+/**
+ * A summed-area table over an {@link InfluenceMap}. After one pass over the map
+ * to build it, the total influence over any rectangle is four lookups, and the
+ * influence along a path only costs one lookup per cell the path crosses.
+ *
+ * @author wesley
+ *
+ */
+public final class SummedAreaTable {
+	private final int width;
+	private final int height;
+	private final int cellSize;
+	/**
+	 * The sum of every cell above and to the left of each corner, indexed as
+	 * {@code x + y * (width + 1)}
+	 */
+	private final double[] sums;
+	/** The cells of the map the table was last built from */
+	private float[] values;
+
+	public SummedAreaTable(InfluenceMap map) {
+		width = map.getWidth();
+		height = map.getHeight();
+		cellSize = map.getCellSize();
+		sums = new double[(width + 1) * (height + 1)];
+		values = map.getValues();
+	}
+
+	/** Recompute the table from the map it was created for. */
+	public void build(InfluenceMap map) {
+		values = map.getValues();
+		final int stride = width + 1;
+		for (int y = 0; y < height; y++) {
+			double row = 0;
+			final int above = y * stride;
+			final int below = above + stride;
+			for (int x = 0; x < width; x++) {
+				row += values[x + y * width];
+				sums[below + x + 1] = sums[above + x + 1] + row;
+			}
+		}
+	}
+
+	/**
+	 * @return the total influence over the cells from (x0, y0) inclusive to
+	 *         (x1, y1) exclusive. Parts of the rectangle off the map count as
+	 *         zero.
+	 */
+	public double sum(int x0, int y0, int x1, int y1) {
+		x0 = Math.min(Math.max(x0, 0), width);
+		y0 = Math.min(Math.max(y0, 0), height);
+		x1 = Math.min(Math.max(x1, x0), width);
+		y1 = Math.min(Math.max(y1, y0), height);
+		final int stride = width + 1;
+		return sums[x1 + y1 * stride] - sums[x0 + y1 * stride] - sums[x1 + y0 * stride] + sums[x0 + y0 * stride];
+	}
+
+	/**
+	 * @return the total influence over every cell that overlaps a rectangle
+	 *         given in pixels
+	 */
+	public double sumPixels(int left, int top, int right, int bottom) {
+		return sum(Math.floorDiv(left, cellSize), Math.floorDiv(top, cellSize), Math.floorDiv(right, cellSize) + 1,
+				Math.floorDiv(bottom, cellSize) + 1);
+	}
+
+	/**
+	 * @return the average influence per cell over every cell that overlaps a
+	 *         rectangle given in pixels
+	 */
+	public double averagePixels(int left, int top, int right, int bottom) {
+		final int x0 = Math.min(Math.max(Math.floorDiv(left, cellSize), 0), width);
+		final int y0 = Math.min(Math.max(Math.floorDiv(top, cellSize), 0), height);
+		final int x1 = Math.min(Math.max(Math.floorDiv(right, cellSize) + 1, x0), width);
+		final int y1 = Math.min(Math.max(Math.floorDiv(bottom, cellSize) + 1, y0), height);
+		final int area = (x1 - x0) * (y1 - y0);
+		return area == 0 ? 0 : sum(x0, y0, x1, y1) / area;
+	}
+
+	/**
+	 * The influence along a path, weighted by how far the path travels through
+	 * each cell. Crossing n cells of influence v adds up to about n * v.
+	 *
+	 * @param path
+	 *            waypoints in pixels
+	 */
+	public double sumAlongPath(Iterable<Position> path) {
+		final Iterator<Position> it = path.iterator();
+		if (!it.hasNext()) {
+			return 0;
+		}
+		Position previous = it.next();
+		double total = 0;
+		while (it.hasNext()) {
+			final Position current = it.next();
+			total += sumAlongSegment(previous.getX(), previous.getY(), current.getX(), current.getY());
+			previous = current;
+		}
+		return total;
+	}
+
+	/**
+	 * Walk the cells a segment crosses in order, adding each cell's influence
+	 * times the length of the segment inside it. Each cell is read straight
+	 * from the map rather than from the table.
+	 */
+	private double sumAlongSegment(double x0, double y0, double x1, double y1) {
+		// Work in cells
+		x0 /= cellSize;
+		y0 /= cellSize;
+		x1 /= cellSize;
+		y1 /= cellSize;
+		final double dx = x1 - x0;
+		final double dy = y1 - y0;
+		final double length = Math.sqrt(dx * dx + dy * dy);
+		int cx = (int) Math.floor(x0);
+		int cy = (int) Math.floor(y0);
+		final int endX = (int) Math.floor(x1);
+		final int endY = (int) Math.floor(y1);
+		if (length == 0) {
+			return 0;
+		}
+
+		final int stepX = dx > 0 ? 1 : -1;
+		final int stepY = dy > 0 ? 1 : -1;
+		// Fraction of the segment between crossing successive cell borders
+		final double deltaX = dx == 0 ? Double.POSITIVE_INFINITY : Math.abs(1 / dx);
+		final double deltaY = dy == 0 ? Double.POSITIVE_INFINITY : Math.abs(1 / dy);
+		// Fraction of the segment until the first cell border is crossed
+		double nextX = dx == 0 ? Double.POSITIVE_INFINITY
+				: (dx > 0 ? Math.floor(x0) + 1 - x0 : x0 - Math.floor(x0)) * deltaX;
+		double nextY = dy == 0 ? Double.POSITIVE_INFINITY
+				: (dy > 0 ? Math.floor(y0) + 1 - y0 : y0 - Math.floor(y0)) * deltaY;
+
+		double total = 0;
+		double t = 0;
+		while (true) {
+			final boolean last = cx == endX && cy == endY;
+			final double leave = last ? 1 : Math.min(Math.min(nextX, nextY), 1);
+			if (cx >= 0 && cx < width && cy >= 0 && cy < height) {
+				total += values[cx + cy * width] * (leave - t) * length;
+			}
+			t = leave;
+			if (last || t >= 1) {
+				break;
+			}
+			if (nextX < nextY) {
+				cx += stepX;
+				nextX += deltaX;
+			} else {
+				cy += stepY;
+				nextY += deltaY;
+			}
+		}
+		return total;
+	}
+}
@@ -1,43 +1,43 @@
 package memory;
 
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
-
 import bwapi.Color;
 import bwapi.Position;
 import bwapi.Unit;
 import gamestructure.GameHandler;
+import gamestructure.RegionIndex;
+import gamestructure.UnitRegistry;
+import gamestructure.UnitTypeTable;
 import gamestructure.debug.DebugManager;
 import gamestructure.debug.DrawEngine;
 import pathing.PathFinder;
 
 public class MemoryManager {
-	private static Map<Integer, BuildingFootprint> buildings;
+	private static UnitRegistry<BuildingFootprint> buildings;
 
 	public static void init() {
 		System.out.print("Starting DebugManager... ");
-		buildings = new HashMap<>();
+		buildings = new UnitRegistry<>();
 		registerDebugFunctions();
 		System.out.println("Success!");
 	}
 
 	public static void onFrame() {
-		// Check if any remembered buildings disappeared
-		Iterator<BuildingFootprint> itt = buildings.values().iterator();
-		buildingLoop: while (itt.hasNext()) {
-			BuildingFootprint bf = itt.next();
-			for (int tx = bf.getTilePosition().getX(); tx < bf.getTilePosition().getX()
-					+ bf.getType().tileWidth(); tx++) {
-				for (int ty = bf.getTilePosition().getY(); ty < bf.getTilePosition().getY()
-						+ bf.getType().tileHeight(); ty++) {
+		// Check if any remembered buildings disappeared, backwards so that
+		// removing one does not skip another
+		buildingLoop: for (int i = buildings.size() - 1; i >= 0; i--) {
+			final BuildingFootprint bf = buildings.getAt(i);
+			final int tileWidth = UnitTypeTable.getTileWidth(bf.getType());
+			final int tileHeight = UnitTypeTable.getTileHeight(bf.getType());
+			for (int tx = bf.getTilePosition().getX(); tx < bf.getTilePosition().getX() + tileWidth; tx++) {
+				for (int ty = bf.getTilePosition().getY(); ty < bf.getTilePosition().getY() + tileHeight; ty++) {
 					if (GameHandler.isVisible(tx, ty)) {
 						// Update the last seen time
 						bf.setLastSeen(GameHandler.getFrameCount());
 						// If the building is not where it's supposed to be
 						if (!GameHandler.getUnitsOnTile(tx, ty).stream().anyMatch(u -> u.getID() == bf.getId())) {
-							itt.remove();
+							buildings.remove(bf.getId());
 							PathFinder.removeBuilding(bf);
+							RegionIndex.forget(bf.getId());
 							continue buildingLoop;
 						}
 					}
@@ -46,7 +46,7 @@ public class MemoryManager {
 		}
 		// Check if any flying buildings have landed
 		GameHandler.getAllUnits().stream()
-				.filter(u -> u.getType().isFlyingBuilding() && !u.isFlying() && !buildings.containsKey(u.getID()))
+				.filter(u -> u.getType().isFlyingBuilding() && !u.isFlying() && !buildings.contains(u.getID()))
 				.forEach(u -> addBuilding(u));
 		// Alternate method
 		// for (Unit unit : GameHandler.getAllUnits()) {
@@ -58,8 +58,9 @@ public class MemoryManager {
 	}
 
 	private static void addBuilding(Unit unit) {
-		buildings.put(unit.getID(), new BuildingFootprint(unit));
-		PathFinder.addBuilding(buildings.get(unit.getID()));
+		final BuildingFootprint bf = new BuildingFootprint(unit);
+		buildings.put(bf.getId(), UnitTypeTable.getId(bf.getType()), bf);
+		PathFinder.addBuilding(bf);
 	}
 
 	public static void onUnitShow(Unit unit) {
@@ -79,17 +80,18 @@ public class MemoryManager {
 
 	public static void onUnitDestroy(Unit unit) {
 		if (unit.getType().isBuilding() && !unit.isFlying()) {
-			PathFinder.removeBuilding(buildings.get(unit.getID()));
-			buildings.remove(unit.getID());
+			PathFinder.removeBuilding(buildings.remove(unit.getID()));
 		}
 	}
 
 	private static void registerDebugFunctions() {
 		DebugManager.createDebugModule("footprints").setDraw(() -> {
-			for (BuildingFootprint bf : buildings.values()) {
+			for (int i = 0; i < buildings.size(); i++) {
+				final BuildingFootprint bf = buildings.getAt(i);
 				Position pos = bf.getTilePosition().toPosition();
-				DrawEngine.drawBoxMap(pos.getX(), pos.getY(), pos.getX() + bf.getType().tileWidth() * 32,
-						pos.getY() + bf.getType().tileHeight() * 32, Color.Yellow, false);
+				DrawEngine.drawBoxMap(pos.getX(), pos.getY(),
+						pos.getX() + UnitTypeTable.getTileWidth(bf.getType()) * 32,
+						pos.getY() + UnitTypeTable.getTileHeight(bf.getType()) * 32, Color.Yellow, false);
 				DrawEngine.drawTextMap(pos.getX(), pos.getY(), bf.getType().toString() + " @ " + bf.getLastSeen());
 			}
 		}).setActive(true);
@@ -0,0 +1,199 @@
+package micro;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import gamestructure.GameHandler;
+import gamestructure.SpatialGrid;
+import gamestructure.WorldSnapshot;
+
+/**
+ * Notices which parts of the map have changed, so that agents can keep a
+ * decision until something it depended on changes.<br>
+ * Each frame the enemy units in every {@link SpatialGrid} cell are summed into
+ * a checksum of their IDs and positions, and a cell whose checksum differs
+ * from the last frame is marked as changed on this frame. An agent records
+ * its {@link Dependencies} when it decides, and only decides again when one of
+ * them is dirty.
+ *
+ * @author wesley
+ *
+ */
+public final class ChangeTracker {
+	/**
+	 * Areas covering more cells than this are always treated as changed,
+	 * since checking them would cost about as much as deciding again
+	 */
+	private static final int MAX_CELLS = 256;
+	/** The size of the tile an agent can move within without deciding again */
+	private static final int POSITION_TILE = 32;
+
+	private static int columns;
+	private static int rows;
+	/** The checksum of the enemies in each cell on the last frame */
+	private static long[] checksums;
+	/** Scratch space for this frame's checksums */
+	private static long[] nextChecksums;
+	/** The last frame on which the enemies in each cell changed */
+	private static int[] changedFrame;
+	/** The last frame on which the enemies in any cell changed */
+	private static int lastChange;
+
+	/** Decisions replayed and made since the last frame */
+	private static final AtomicInteger skipped = new AtomicInteger();
+	private static final AtomicInteger executed = new AtomicInteger();
+	private static int lastSkipped;
+	private static int lastExecuted;
+
+	/** What one decision depended on */
+	public static final class Dependencies {
+		private int frame = -1;
+		private int tileX;
+		private int tileY;
+		private UnitTask task;
+		private int targetId;
+		private int left;
+		private int top;
+		private int right;
+		private int bottom;
+
+		/**
+		 * Remember what a decision that was just made depended on.
+		 *
+		 * @param x
+		 *            the agent's position in pixels
+		 * @param y
+		 *            the agent's position in pixels
+		 * @param task
+		 *            the agent's task
+		 * @param targetId
+		 *            the ID of the unit the decision picked, or -1
+		 * @param radius
+		 *            how far from the agent a change to the enemies could
+		 *            change the decision, in pixels
+		 */
+		public void record(int x, int y, UnitTask task, int targetId, int radius) {
+			frame = GameHandler.getFrameCount();
+			tileX = x / POSITION_TILE;
+			tileY = y / POSITION_TILE;
+			this.task = task;
+			this.targetId = targetId;
+			// Larger than any map, without overflowing, and widened by the
+			// distance the agent can move within its tile
+			radius = Math.min(radius, 1 << 16) + POSITION_TILE;
+			left = x - radius;
+			top = y - radius;
+			right = x + radius;
+			bottom = y + radius;
+		}
+
+		/** Make the next check dirty. */
+		public void invalidate() {
+			frame = -1;
+		}
+
+		/**
+		 * Check whether the decision has to be made again, and count the
+		 * answer. Safe to call from several threads at once.
+		 *
+		 * @return whether the agent moved to another tile, changed task, lost
+		 *         its target from view, or whether any enemy near enough to
+		 *         matter changed since the decision was made
+		 */
+		public boolean isDirty(int x, int y, UnitTask task) {
+			final boolean dirty = frame == -1 || x / POSITION_TILE != tileX || y / POSITION_TILE != tileY
+					|| task != this.task || (targetId != -1 && WorldSnapshot.get().getSlot(targetId) == -1)
+					|| hasEnemyChanged(left, top, right, bottom, frame);
+			(dirty ? executed : skipped).incrementAndGet();
+			return dirty;
+		}
+	}
+
+	public static void init() {
+		System.out.print("Starting ChangeTracker... ");
+		columns = (GameHandler.getMapWidth() * 32 + SpatialGrid.CELL_SIZE - 1) / SpatialGrid.CELL_SIZE;
+		rows = (GameHandler.getMapHeight() * 32 + SpatialGrid.CELL_SIZE - 1) / SpatialGrid.CELL_SIZE;
+		checksums = new long[columns * rows];
+		nextChecksums = new long[columns * rows];
+		changedFrame = new int[columns * rows];
+		lastChange = 0;
+		System.out.println("Success!");
+	}
+
+	/** This constructor should never be used. */
+	private ChangeTracker() {
+	}
+
+	/** Find the cells whose enemies changed since the last frame. */
+	public static void onFrame() {
+		final int frame = GameHandler.getFrameCount();
+		final WorldSnapshot world = WorldSnapshot.get();
+		for (int c = 0; c < nextChecksums.length; c++) {
+			nextChecksums[c] = 0;
+		}
+		for (int i = 0; i < world.size(); i++) {
+			if (world.getOwner(i) != WorldSnapshot.ENEMY) {
+				continue;
+			}
+			final int cx = Math.min(Math.max(world.getX(i) / SpatialGrid.CELL_SIZE, 0), columns - 1);
+			final int cy = Math.min(Math.max(world.getY(i) / SpatialGrid.CELL_SIZE, 0), rows - 1);
+			// Mix each unit separately so that the sum does not depend on the
+			// order the units are listed in
+			long h = world.getID(i) * 0x9E3779B97F4A7C15L + world.getX(i) * 0xC2B2AE3D27D4EB4FL
+					+ world.getY(i) * 0x165667B19E3779F9L;
+			h ^= h >>> 29;
+			nextChecksums[cx + cy * columns] += h * 0xBF58476D1CE4E5B9L + 1;
+		}
+		for (int c = 0; c < checksums.length; c++) {
+			if (nextChecksums[c] != checksums[c]) {
+				changedFrame[c] = frame;
+				lastChange = frame;
+			}
+		}
+		final long[] swap = checksums;
+		checksums = nextChecksums;
+		nextChecksums = swap;
+
+		lastSkipped = skipped.getAndSet(0);
+		lastExecuted = executed.getAndSet(0);
+	}
+
+	/**
+	 * @return whether the enemies in any cell overlapping a rectangle of
+	 *         pixels changed after a frame
+	 */
+	public static boolean hasEnemyChanged(int left, int top, int right, int bottom, int sinceFrame) {
+		if (lastChange <= sinceFrame) {
+			return false;
+		}
+		final int x0 = Math.max(left / SpatialGrid.CELL_SIZE, 0);
+		final int y0 = Math.max(top / SpatialGrid.CELL_SIZE, 0);
+		final int x1 = Math.min(right / SpatialGrid.CELL_SIZE, columns - 1);
+		final int y1 = Math.min(bottom / SpatialGrid.CELL_SIZE, rows - 1);
+		if ((long) (x1 - x0 + 1) * (y1 - y0 + 1) > MAX_CELLS) {
+			return true;
+		}
+		for (int cy = y0; cy <= y1; cy++) {
+			for (int cx = x0; cx <= x1; cx++) {
+				if (changedFrame[cx + cy * columns] > sinceFrame) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/** @return decisions replayed on the last frame */
+	public static int getSkipped() {
+		return lastSkipped;
+	}
+
+	/** @return decisions made on the last frame */
+	public static int getExecuted() {
+		return lastExecuted;
+	}
+
+	/** @return the ratio of replayed to made decisions on the last frame */
+	public static double getSkipRatio() {
+		return lastExecuted == 0 ? lastSkipped : (double) lastSkipped / lastExecuted;
+	}
+}
@@ -0,0 +1,409 @@
+package micro;
+
+import java.util.Arrays;
+
+import bwapi.Color;
+import gamestructure.SpatialGrid;
+import gamestructure.UnitTypeTable;
+import gamestructure.WorldSnapshot;
+import gamestructure.debug.DebugManager;
+import gamestructure.debug.DrawEngine;
+import influence.DamageTable;
+
+/**
+ * Groups my units and the enemy's into clusters, so that fights can be
+ * reasoned about a dozen clusters at a time rather than hundreds of units.<br>
+ * Two units of the same owner are in the same cluster if a chain of units,
+ * each within {@link #LINK_DISTANCE} of the next, joins them. Clusters are
+ * found each frame with union-find over the cells of the {@link SpatialGrid},
+ * so each unit is only compared with the units in its own and neighbouring
+ * cells. A cluster keeps its ID from frame to frame
+ * as long as most of its units were in the same cluster on the last frame, so
+ * that other code can follow it. Buildings are left out, unless they have a
+ * weapon.
+ *
+ * @author wesley
+ *
+ */
+public final class ClusterManager {
+	/**
+	 * Units closer than this are in the same cluster. It must be no more than
+	 * {@link SpatialGrid#CELL_SIZE}, so that linked units are always in the
+	 * same or neighbouring cells.
+	 */
+	public static final int LINK_DISTANCE = 96;
+
+	/** Whether the unit in each slot takes part in a cluster */
+	private static boolean[] clustered = new boolean[0];
+	/** The union-find parent of each slot */
+	private static int[] parent = new int[0];
+
+	// Clusters of this frame, by index
+	private static int count;
+	private static int[] ids = new int[0];
+	private static byte[] owners = new byte[0];
+	private static int[] sizes = new int[0];
+	private static float[] centerXs = new float[0];
+	private static float[] centerYs = new float[0];
+	private static float[] radii = new float[0];
+	private static float[] groundDps = new float[0];
+	private static float[] airDps = new float[0];
+	private static int[] hitPoints = new int[0];
+	/** The index of the first member of each cluster, with one extra entry */
+	private static int[] memberStart = new int[1];
+	/** The slots of the members, sorted by cluster */
+	private static int[] members = new int[0];
+	/** The cluster index of each slot, or -1 */
+	private static int[] clusterOfSlot = new int[0];
+
+	/** The cluster index of each unit ID on the last frame, or -1 */
+	private static int[] lastClusterOfId = new int[0];
+	/** The IDs set in {@link #lastClusterOfId} on the last frame */
+	private static int[] lastUnitIds = new int[0];
+	private static int lastUnitCount;
+	/** The ID of each cluster on the last frame */
+	private static int[] lastIds = new int[0];
+	private static int lastCount;
+	/** Votes for each cluster of the last frame, and whether it was claimed */
+	private static int[] votes = new int[0];
+	private static boolean[] claimed = new boolean[0];
+	private static int nextId;
+
+	public static void init() {
+		System.out.print("Starting ClusterManager... ");
+		count = 0;
+		lastCount = 0;
+		lastClusterOfId = new int[0];
+		lastUnitCount = 0;
+		nextId = 0;
+
+		registerDebugFunctions();
+		System.out.println("Success!");
+	}
+
+	/** This constructor should never be used. */
+	private ClusterManager() {
+	}
+
+	/** Find this frame's clusters. Called after the snapshot is taken. */
+	public static void onFrame() {
+		final WorldSnapshot world = WorldSnapshot.get();
+		final int n = world.size();
+		if (parent.length < n) {
+			final int capacity = Math.max(n, 2 * parent.length);
+			clustered = new boolean[capacity];
+			parent = new int[capacity];
+			members = new int[capacity];
+			clusterOfSlot = new int[capacity];
+		}
+		mark(world, n);
+		link(world);
+		collect(world, n);
+		matchIds(world);
+	}
+
+	/** Pick out the units that take part and reset their union-find parents. */
+	private static void mark(WorldSnapshot world, int n) {
+		for (int slot = 0; slot < n; slot++) {
+			parent[slot] = slot;
+			final int flags = UnitTypeTable.getFlags(world.getTypeId(slot));
+			clustered[slot] = world.getOwner(slot) != WorldSnapshot.NEUTRAL && ((flags & UnitTypeTable.BUILDING) == 0
+					|| (flags & (UnitTypeTable.CAN_ATTACK_AIR | UnitTypeTable.CAN_ATTACK_GROUND)) != 0);
+		}
+	}
+
+	/**
+	 * Join every pair of units of the same owner within the link distance,
+	 * walking the cells of the {@link SpatialGrid}, which was rebuilt from the
+	 * same snapshot.
+	 */
+	private static void link(WorldSnapshot world) {
+		final long linkSquared = (long) LINK_DISTANCE * LINK_DISTANCE;
+		final int columns = SpatialGrid.getColumns();
+		final int rows = SpatialGrid.getRows();
+		for (int cy = 0; cy < rows; cy++) {
+			for (int cx = 0; cx < columns; cx++) {
+				final int cell = cx + cy * columns;
+				final int end = SpatialGrid.getCellStart(cell + 1);
+				for (int i = SpatialGrid.getCellStart(cell); i < end; i++) {
+					final int a = SpatialGrid.getSlotAt(i);
+					if (!clustered[a]) {
+						continue;
+					}
+					// This cell, then the neighbours after it, so each pair of
+					// cells is only looked at once
+					linkRange(world, a, i + 1, end, linkSquared);
+					if (cx + 1 < columns) {
+						linkRange(world, a, end, SpatialGrid.getCellStart(cell + 2), linkSquared);
+					}
+					if (cy + 1 < rows) {
+						final int below = cell + columns;
+						final int from = cx > 0 ? below - 1 : below;
+						final int to = cx + 1 < columns ? below + 1 : below;
+						linkRange(world, a, SpatialGrid.getCellStart(from), SpatialGrid.getCellStart(to + 1),
+								linkSquared);
+					}
+				}
+			}
+		}
+	}
+
+	private static void linkRange(WorldSnapshot world, int a, int from, int to, long linkSquared) {
+		for (int j = from; j < to; j++) {
+			final int b = SpatialGrid.getSlotAt(j);
+			if (!clustered[b] || world.getOwner(a) != world.getOwner(b)) {
+				continue;
+			}
+			final long dx = world.getX(a) - world.getX(b);
+			final long dy = world.getY(a) - world.getY(b);
+			if (dx * dx + dy * dy <= linkSquared) {
+				union(a, b);
+			}
+		}
+	}
+
+	private static int find(int slot) {
+		while (parent[slot] != slot) {
+			// Path halving
+			parent[slot] = parent[parent[slot]];
+			slot = parent[slot];
+		}
+		return slot;
+	}
+
+	private static void union(int a, int b) {
+		final int ra = find(a);
+		final int rb = find(b);
+		if (ra != rb) {
+			parent[Math.max(ra, rb)] = Math.min(ra, rb);
+		}
+	}
+
+	/** Number the clusters, list their members and total their stats. */
+	private static void collect(WorldSnapshot world, int n) {
+		count = 0;
+		for (int slot = 0; slot < n; slot++) {
+			clusterOfSlot[slot] = -1;
+			if (clustered[slot] && find(slot) == slot) {
+				if (count == ids.length) {
+					growClusters(Math.max(16, 2 * count));
+				}
+				clusterOfSlot[slot] = count++;
+			}
+		}
+		Arrays.fill(memberStart, 0, count + 1, 0);
+		for (int slot = 0; slot < n; slot++) {
+			if (clustered[slot]) {
+				clusterOfSlot[slot] = clusterOfSlot[find(slot)];
+				memberStart[clusterOfSlot[slot] + 1]++;
+			}
+		}
+		for (int c = 0; c < count; c++) {
+			memberStart[c + 1] += memberStart[c];
+			sizes[c] = 0;
+			centerXs[c] = 0;
+			centerYs[c] = 0;
+			radii[c] = 0;
+			groundDps[c] = 0;
+			airDps[c] = 0;
+			hitPoints[c] = 0;
+		}
+		for (int slot = 0; slot < n; slot++) {
+			final int c = clusterOfSlot[slot];
+			if (c == -1) {
+				continue;
+			}
+			members[memberStart[c] + sizes[c]++] = slot;
+			owners[c] = world.getOwner(slot);
+			centerXs[c] += world.getX(slot);
+			centerYs[c] += world.getY(slot);
+			final int typeId = world.getTypeId(slot);
+			groundDps[c] += DamageTable.getDps(typeId, false, DamageTable.SIZES - 1, 0);
+			airDps[c] += DamageTable.getDps(typeId, true, DamageTable.SIZES - 1, 0);
+			hitPoints[c] += world.getHitPoints(slot) + world.getShields(slot);
+		}
+		for (int c = 0; c < count; c++) {
+			centerXs[c] /= sizes[c];
+			centerYs[c] /= sizes[c];
+			float radiusSquared = 0;
+			for (int m = memberStart[c]; m < memberStart[c + 1]; m++) {
+				final float dx = world.getX(members[m]) - centerXs[c];
+				final float dy = world.getY(members[m]) - centerYs[c];
+				radiusSquared = Math.max(radiusSquared, dx * dx + dy * dy);
+			}
+			radii[c] = (float) Math.sqrt(radiusSquared);
+		}
+	}
+
+	private static void growClusters(int capacity) {
+		ids = Arrays.copyOf(ids, capacity);
+		owners = Arrays.copyOf(owners, capacity);
+		sizes = Arrays.copyOf(sizes, capacity);
+		centerXs = Arrays.copyOf(centerXs, capacity);
+		centerYs = Arrays.copyOf(centerYs, capacity);
+		radii = Arrays.copyOf(radii, capacity);
+		groundDps = Arrays.copyOf(groundDps, capacity);
+		airDps = Arrays.copyOf(airDps, capacity);
+		hitPoints = Arrays.copyOf(hitPoints, capacity);
+		memberStart = Arrays.copyOf(memberStart, capacity + 1);
+	}
+
+	/**
+	 * Give each cluster the ID of the last frame's cluster that the most of
+	 * its members were in, unless an earlier cluster already took it, and a
+	 * new ID otherwise.
+	 */
+	private static void matchIds(WorldSnapshot world) {
+		if (votes.length < lastCount) {
+			votes = new int[Math.max(lastCount, 2 * votes.length)];
+			claimed = new boolean[votes.length];
+		}
+		Arrays.fill(claimed, 0, lastCount, false);
+		for (int c = 0; c < count; c++) {
+			int best = -1;
+			for (int m = memberStart[c]; m < memberStart[c + 1]; m++) {
+				final int last = getLastCluster(world.getID(members[m]));
+				if (last != -1 && !claimed[last] && ++votes[last] > (best == -1 ? 0 : votes[best])) {
+					best = last;
+				}
+			}
+			for (int m = memberStart[c]; m < memberStart[c + 1]; m++) {
+				final int last = getLastCluster(world.getID(members[m]));
+				if (last != -1) {
+					votes[last] = 0;
+				}
+			}
+			if (best != -1) {
+				claimed[best] = true;
+				ids[c] = lastIds[best];
+			} else {
+				ids[c] = nextId++;
+			}
+		}
+
+		// Remember this frame for the next one, and forget units that were
+		// seen on the last frame but not on this one
+		for (int i = 0; i < lastUnitCount; i++) {
+			lastClusterOfId[lastUnitIds[i]] = -1;
+		}
+		if (lastUnitIds.length < world.size()) {
+			lastUnitIds = new int[Math.max(world.size(), 2 * lastUnitIds.length)];
+		}
+		lastUnitCount = world.size();
+		for (int slot = 0; slot < world.size(); slot++) {
+			final int id = world.getID(slot);
+			if (id >= lastClusterOfId.length) {
+				final int oldLength = lastClusterOfId.length;
+				lastClusterOfId = Arrays.copyOf(lastClusterOfId, Math.max(id + 1, 2 * oldLength));
+				Arrays.fill(lastClusterOfId, oldLength, lastClusterOfId.length, -1);
+			}
+			lastClusterOfId[id] = clusterOfSlot[slot];
+			lastUnitIds[slot] = id;
+		}
+		if (lastIds.length < count) {
+			lastIds = new int[ids.length];
+		}
+		System.arraycopy(ids, 0, lastIds, 0, count);
+		lastCount = count;
+	}
+
+	/** Forget the cluster of a unit that no longer exists. */
+	public static void forget(int id) {
+		if (id < lastClusterOfId.length) {
+			lastClusterOfId[id] = -1;
+		}
+	}
+
+	/** @return the index of a unit's cluster on the last frame, or -1 */
+	private static int getLastCluster(int id) {
+		return id < lastClusterOfId.length ? lastClusterOfId[id] : -1;
+	}
+
+	/** @return the number of clusters this frame */
+	public static int size() {
+		return count;
+	}
+
+	/**
+	 * @return the ID of the cluster at an index, which stays the same while
+	 *         the cluster keeps most of its units
+	 */
+	public static int getId(int cluster) {
+		return ids[cluster];
+	}
+
+	/** @return {@link WorldSnapshot#SELF} or {@link WorldSnapshot#ENEMY} */
+	public static byte getOwner(int cluster) {
+		return owners[cluster];
+	}
+
+	/** @return the number of units in a cluster */
+	public static int getSize(int cluster) {
+		return sizes[cluster];
+	}
+
+	public static float getCenterX(int cluster) {
+		return centerXs[cluster];
+	}
+
+	public static float getCenterY(int cluster) {
+		return centerYs[cluster];
+	}
+
+	/** @return the distance from the center to the furthest unit */
+	public static float getRadius(int cluster) {
+		return radii[cluster];
+	}
+
+	/** @return the damage per second of a cluster's ground weapons */
+	public static float getGroundDps(int cluster) {
+		return groundDps[cluster];
+	}
+
+	/** @return the damage per second of a cluster's air weapons */
+	public static float getAirDps(int cluster) {
+		return airDps[cluster];
+	}
+
+	/** @return the hit points and shields of a cluster's units */
+	public static int getHitPoints(int cluster) {
+		return hitPoints[cluster];
+	}
+
+	/**
+	 * Iterate the members of a cluster with
+	 * {@code for (int m = getMemberStart(c); m < getMemberEnd(c); m++)}.
+	 */
+	public static int getMemberStart(int cluster) {
+		return memberStart[cluster];
+	}
+
+	/** @see #getMemberStart(int) */
+	public static int getMemberEnd(int cluster) {
+		return memberStart[cluster + 1];
+	}
+
+	/** @return the snapshot slot of the member at an index */
+	public static int getMemberSlot(int member) {
+		return members[member];
+	}
+
+	/** @return the index of the cluster of the unit in a slot, or -1 */
+	public static int getClusterOfSlot(int slot) {
+		return clusterOfSlot[slot];
+	}
+
+	private static void registerDebugFunctions() {
+		DebugManager.createDebugModule("clusters").setDraw(() -> {
+			for (int c = 0; c < count; c++) {
+				final int x = (int) centerXs[c];
+				final int y = (int) centerYs[c];
+				final Color color = owners[c] == WorldSnapshot.SELF ? Color.Green : Color.Red;
+				DrawEngine.drawCircleMap(x, y, (int) radii[c] + LINK_DISTANCE / 2, color, false);
+				DrawEngine.drawTextMap(x, y, "#" + ids[c] + ": " + sizes[c] + " units, " + hitPoints[c] + " hp, "
+						+ Math.round(groundDps[c]) + "/" + Math.round(airDps[c]) + " dps");
+			}
+			DrawEngine.drawTextScreen(550, 135, "Clusters: " + count);
+		});
+	}
+}
@@ -0,0 +1,145 @@
+package micro;
+
+import java.util.Random;
+
+/**
+ * Checks the {@link CombatSimulator} against small fights built by hand, whose
+ * outcome is known, and checks that a large fight fits in its time budget.
+ * Nothing here needs BWAPI, so it can be run without a game through
+ * {@link #main(String[])}, or from the "groups" debug module.
+ *
+ * @author wesley
+ *
+ */
+public final class CombatScenarios {
+	/** Simulated frames per fight */
+	private static final int FRAMES = 24 * 15;
+	/** The most microseconds a 50 against 50 fight may take */
+	private static final double BUDGET = 100;
+
+	/** This constructor should never be used. */
+	private CombatScenarios() {
+	}
+
+	public static void main(String[] args) {
+		System.out.println(run());
+	}
+
+	/**
+	 * Run every scenario and time a 50 against 50 fight to its end.
+	 *
+	 * @return one line per scenario saying whether it passed, the timing last
+	 */
+	public static String run() {
+		final CombatSimulator simulator = new CombatSimulator();
+		final StringBuilder result = new StringBuilder();
+		check(result, "Larger side wins", largerSideWins(simulator));
+		check(result, "Longer range wins a duel", longerRangeWins(simulator));
+		check(result, "Kiting beats slower melee", kitingBeatsMelee(simulator));
+		check(result, "Armor leaves minimum damage", armorLeavesMinimumDamage(simulator));
+		check(result, "Ground weapons miss air", groundWeaponsMissAir(simulator));
+		final double micros = timeLargeFight(simulator);
+		check(result, String.format("50 vs 50 in %.1fus of %.0fus", micros, BUDGET), micros <= BUDGET);
+		return result.toString();
+	}
+
+	private static void check(StringBuilder result, String name, boolean passed) {
+		result.append(name).append(": ").append(passed ? "passed" : "FAILED").append('\n');
+	}
+
+	/** Add a ranged ground unit much like a Marine. */
+	private static int addMarine(CombatSimulator simulator, int side, int x, int y) {
+		final int unit = simulator.addUnit(side, x, y, false, 40, 0, 0);
+		simulator.setWeapon(unit, false, 6, 128, 15);
+		simulator.setWeapon(unit, true, 6, 128, 15);
+		simulator.setSpeed(unit, 4);
+		return unit;
+	}
+
+	private static boolean largerSideWins(CombatSimulator simulator) {
+		simulator.clear();
+		for (int i = 0; i < 10; i++) {
+			addMarine(simulator, 0, 0, i * 16);
+		}
+		for (int i = 0; i < 5; i++) {
+			addMarine(simulator, 1, 300, i * 16);
+		}
+		simulator.simulate(FRAMES);
+		return simulator.getSurvivors(1) == 0 && simulator.getSurvivors(0) > 5;
+	}
+
+	private static boolean longerRangeWins(CombatSimulator simulator) {
+		simulator.clear();
+		final int unit = addMarine(simulator, 0, 0, 0);
+		simulator.setWeapon(unit, false, 6, 160, 15);
+		addMarine(simulator, 1, 300, 0);
+		simulator.simulate(FRAMES);
+		return simulator.getSurvivors(1) == 0 && simulator.getSurvivors(0) == 1;
+	}
+
+	private static boolean kitingBeatsMelee(CombatSimulator simulator) {
+		simulator.clear();
+		for (int i = 0; i < 3; i++) {
+			final int ranged = simulator.addUnit(0, 0, i * 32, false, 80, 0, 0);
+			simulator.setWeapon(ranged, false, 20, 160, 30);
+			simulator.setSpeed(ranged, 6);
+			final int melee = simulator.addUnit(1, 400, i * 32, false, 80, 0, 0);
+			simulator.setWeapon(melee, false, 16, 15, 15);
+			simulator.setSpeed(melee, 3);
+		}
+		simulator.simulate(FRAMES);
+		final float standing = simulator.getStrength(0);
+		simulator.setKiting(0, true);
+		simulator.simulate(FRAMES);
+		return simulator.getStrength(0) == simulator.getStartStrength(0) && standing < simulator.getStartStrength(0)
+				&& simulator.getSurvivors(1) == 0;
+	}
+
+	private static boolean armorLeavesMinimumDamage(CombatSimulator simulator) {
+		simulator.clear();
+		final int attacker = simulator.addUnit(0, 0, 0, false, 10, 0, 0);
+		simulator.setWeapon(attacker, false, 5, 32, 10);
+		simulator.addUnit(1, 16, 0, false, 10, 0, 10);
+		simulator.simulate(100);
+		// About 10 hits of half a hit point each
+		final float lost = simulator.getStartStrength(1) - simulator.getStrength(1);
+		return simulator.getSurvivors(1) == 1 && lost >= 4 && lost <= 6;
+	}
+
+	private static boolean groundWeaponsMissAir(CombatSimulator simulator) {
+		simulator.clear();
+		final int ground = simulator.addUnit(0, 0, 0, false, 40, 0, 0);
+		simulator.setWeapon(ground, false, 20, 128, 15);
+		simulator.setSpeed(ground, 4);
+		simulator.addUnit(1, 64, 0, true, 40, 0, 0);
+		// Nobody can attack anybody, so the fight ends early
+		return simulator.simulate(FRAMES) < FRAMES && simulator.getSurvivors(1) == 1;
+	}
+
+	/** @return the microseconds per simulated 50 against 50 fight */
+	private static double timeLargeFight(CombatSimulator simulator) {
+		final Random random = new Random(0);
+		simulator.clear();
+		for (int side = 0; side < 2; side++) {
+			for (int i = 0; i < 50; i++) {
+				addMarine(simulator, side, side * 400 + random.nextInt(200), random.nextInt(400));
+			}
+		}
+		// Warm up so the JIT has compiled the simulator before timing
+		for (int i = 0; i < 2000; i++) {
+			simulator.simulate(FRAMES);
+		}
+		// Take the best of several rounds, so that a pause of the machine in
+		// one of them does not count against the simulator
+		final int iterations = 500;
+		double best = Double.MAX_VALUE;
+		for (int round = 0; round < 5; round++) {
+			final long start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				simulator.simulate(FRAMES);
+			}
+			best = Math.min(best, (System.nanoTime() - start) / 1e3 / iterations);
+		}
+		return best;
+	}
+}
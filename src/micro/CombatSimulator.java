@@ -0,0 +1,502 @@
+package micro;
+
+import java.util.Arrays;
+
+import gamestructure.UnitTypeTable;
+import gamestructure.WorldSnapshot;
+
+/**
+ * Plays out a fight between two sides to predict who would win it, so that a
+ * group can choose between engaging, kiting and retreating.<br>
+ * Each unit has hit points, shields, armor, a ground and an air weapon with a
+ * range and a cooldown, a speed and a position. Each unit starts by picking
+ * the nearest enemy it can damage, then every step walks towards it until it
+ * is in range and fires whenever its weapon is ready. When a unit dies, the
+ * nearest of its allies on the ground and in the air are worked out once, and
+ * the units that were attacking it move on to whichever of those they can
+ * damage, so that a unit dying costs one pass over its side rather than one
+ * for each of its attackers. Units of a side that is kiting step back while
+ * their weapon cools down. The model ignores terrain, collisions, spells,
+ * splash and upgrades.<br>
+ * Units are stored in preallocated arrays, so once the simulator has grown to
+ * the size of the fights it sees, building and running a fight allocates
+ * nothing. Units can be built from {@link UnitTypeTable} data or given stats
+ * by hand, which needs no BWAPI, so fights can be set up and checked without
+ * a game running. A simulator is not thread-safe.
+ *
+ * @author wesley
+ *
+ */
+public final class CombatSimulator {
+	/**
+	 * Frames simulated per step. Cooldowns carry over from one step to the
+	 * next, so units fire as often as they would frame by frame.
+	 */
+	private static final int STEP = 8;
+	/** The least damage a hit can do, as in Brood War */
+	private static final float MIN_DAMAGE = 0.5f;
+
+	private int count = 0;
+	private byte[] side = new byte[0];
+	/** The {@link UnitTypeTable} id of each unit's type, or -1 if built by hand */
+	private int[] typeId = new int[0];
+	private boolean[] flying = new boolean[0];
+	/** Half of the larger dimension of each unit, which ranges are measured from */
+	private int[] radius = new int[0];
+	private int[] armor = new int[0];
+	private boolean[] canAttackGround = new boolean[0];
+	private boolean[] canAttackAir = new boolean[0];
+	/** The damage of one attack before armor */
+	private int[] groundDamage = new int[0];
+	private int[] airDamage = new int[0];
+	private int[] groundRange = new int[0];
+	private int[] airRange = new int[0];
+	private int[] groundCooldown = new int[0];
+	private int[] airCooldown = new int[0];
+	/** Pixels per frame */
+	private float[] speed = new float[0];
+	/** The cost of each point of hit points or shields of a unit */
+	private float[] worth = new float[0];
+
+	// The state at the start of the fight
+	private float[] startX = new float[0];
+	private float[] startY = new float[0];
+	private float[] startHitPoints = new float[0];
+	private float[] startShields = new float[0];
+	private int[] startCooldown = new int[0];
+
+	// The state during the fight
+	private float[] x = new float[0];
+	private float[] y = new float[0];
+	private float[] hitPoints = new float[0];
+	private float[] shields = new float[0];
+	private int[] cooldown = new int[0];
+	private int[] target = new int[0];
+	/**
+	 * The enemies of each dead unit that were nearest to where it died, of
+	 * those that are on the ground and of those that fly, or -1
+	 */
+	private int[] groundSuccessor = new int[0];
+	private int[] airSuccessor = new int[0];
+	/** The living units, in the order they act */
+	private int[] order = new int[0];
+	private int ordered;
+
+	private final boolean[] kiting = new boolean[2];
+	/** The number of living units of each side */
+	private final int[] alive = new int[2];
+	/** The first {@link #alive} entries are the living units of each side */
+	private final int[][] living = { new int[0], new int[0] };
+	/** The index of each living unit in {@link #living} */
+	private int[] livingIndex = new int[0];
+
+	/** Remove every unit. */
+	public void clear() {
+		count = 0;
+		kiting[0] = false;
+		kiting[1] = false;
+	}
+
+	/** @return the number of units in the fight */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Add a unit with the stats of its type.
+	 *
+	 * @param iside
+	 *            0 or 1
+	 * @param itypeId
+	 *            the {@link UnitTypeTable} id of the unit's type
+	 * @param icooldown
+	 *            the frames until the unit can fire again
+	 * @return the index of the unit
+	 */
+	public int addUnit(int iside, int itypeId, int ix, int iy, int ihitPoints, int ishields, int icooldown) {
+		final int i = addUnit(iside, ix, iy, UnitTypeTable.is(itypeId, UnitTypeTable.FLYER), ihitPoints, ishields,
+				UnitTypeTable.getArmor(itypeId));
+		typeId[i] = itypeId;
+		radius[i] = Math.max(UnitTypeTable.getWidth(itypeId), UnitTypeTable.getHeight(itypeId)) / 2;
+		groundRange[i] = UnitTypeTable.getGroundRange(itypeId);
+		airRange[i] = UnitTypeTable.getAirRange(itypeId);
+		groundCooldown[i] = UnitTypeTable.getGroundCooldown(itypeId);
+		airCooldown[i] = UnitTypeTable.getAirCooldown(itypeId);
+		canAttackGround[i] = UnitTypeTable.is(itypeId, UnitTypeTable.CAN_ATTACK_GROUND);
+		canAttackAir[i] = UnitTypeTable.is(itypeId, UnitTypeTable.CAN_ATTACK_AIR);
+		groundDamage[i] = UnitTypeTable.getGroundDamage(itypeId);
+		airDamage[i] = UnitTypeTable.getAirDamage(itypeId);
+		speed[i] = (float) UnitTypeTable.getTopSpeed(itypeId);
+		startCooldown[i] = icooldown;
+		final int health = UnitTypeTable.getMaxHitPoints(itypeId) + UnitTypeTable.getMaxShields(itypeId);
+		worth[i] = health == 0 ? 0
+				: (float) (UnitTypeTable.getMineralPrice(itypeId) + UnitTypeTable.getGasPrice(itypeId)) / health;
+		return i;
+	}
+
+	/**
+	 * Add a unit as it is in a snapshot.
+	 *
+	 * @return the index of the unit
+	 */
+	public int addUnit(int iside, WorldSnapshot world, int slot) {
+		return addUnit(iside, world.getTypeId(slot), world.getX(slot), world.getY(slot), world.getHitPoints(slot),
+				world.getShields(slot),
+				Math.max(world.getGroundWeaponCooldown(slot), world.getAirWeaponCooldown(slot)));
+	}
+
+	/**
+	 * Add a unit with stats given by hand. It has no weapons and cannot move
+	 * until they are set with {@link #setWeapon} and {@link #setSpeed}, and
+	 * each of its hit points and shields is worth 1.
+	 *
+	 * @param iside
+	 *            0 or 1
+	 * @return the index of the unit
+	 */
+	public int addUnit(int iside, int ix, int iy, boolean iflying, int ihitPoints, int ishields, int iarmor) {
+		if (count == side.length) {
+			grow(Math.max(32, 2 * count));
+		}
+		final int i = count++;
+		side[i] = (byte) iside;
+		typeId[i] = -1;
+		flying[i] = iflying;
+		radius[i] = 0;
+		armor[i] = iarmor;
+		canAttackGround[i] = false;
+		canAttackAir[i] = false;
+		groundDamage[i] = 0;
+		airDamage[i] = 0;
+		groundRange[i] = 0;
+		airRange[i] = 0;
+		groundCooldown[i] = 0;
+		airCooldown[i] = 0;
+		speed[i] = 0;
+		worth[i] = 1;
+		startX[i] = ix;
+		startY[i] = iy;
+		startHitPoints[i] = ihitPoints;
+		startShields[i] = ishields;
+		startCooldown[i] = 0;
+		return i;
+	}
+
+	/**
+	 * Give a unit built by hand a weapon.
+	 *
+	 * @param againstAir
+	 *            whether the weapon hits air units, rather than ground units
+	 * @param damage
+	 *            the damage of one attack before armor
+	 * @param range
+	 *            the range in pixels
+	 * @param icooldown
+	 *            the frames between attacks
+	 */
+	public void setWeapon(int unit, boolean againstAir, int damage, int range, int icooldown) {
+		if (againstAir) {
+			canAttackAir[unit] = true;
+			airDamage[unit] = damage;
+			airRange[unit] = range;
+			airCooldown[unit] = icooldown;
+		} else {
+			canAttackGround[unit] = true;
+			groundDamage[unit] = damage;
+			groundRange[unit] = range;
+			groundCooldown[unit] = icooldown;
+		}
+	}
+
+	/** Set how many pixels per frame a unit moves. */
+	public void setSpeed(int unit, float ispeed) {
+		speed[unit] = ispeed;
+	}
+
+	/** Set whether the units of a side step back while their weapons cool down. */
+	public void setKiting(int iside, boolean ikiting) {
+		kiting[iside] = ikiting;
+	}
+
+	private void grow(int capacity) {
+		side = Arrays.copyOf(side, capacity);
+		typeId = Arrays.copyOf(typeId, capacity);
+		flying = Arrays.copyOf(flying, capacity);
+		radius = Arrays.copyOf(radius, capacity);
+		armor = Arrays.copyOf(armor, capacity);
+		canAttackGround = Arrays.copyOf(canAttackGround, capacity);
+		canAttackAir = Arrays.copyOf(canAttackAir, capacity);
+		groundDamage = Arrays.copyOf(groundDamage, capacity);
+		airDamage = Arrays.copyOf(airDamage, capacity);
+		groundRange = Arrays.copyOf(groundRange, capacity);
+		airRange = Arrays.copyOf(airRange, capacity);
+		groundCooldown = Arrays.copyOf(groundCooldown, capacity);
+		airCooldown = Arrays.copyOf(airCooldown, capacity);
+		speed = Arrays.copyOf(speed, capacity);
+		worth = Arrays.copyOf(worth, capacity);
+		startX = Arrays.copyOf(startX, capacity);
+		startY = Arrays.copyOf(startY, capacity);
+		startHitPoints = Arrays.copyOf(startHitPoints, capacity);
+		startShields = Arrays.copyOf(startShields, capacity);
+		startCooldown = Arrays.copyOf(startCooldown, capacity);
+		x = Arrays.copyOf(x, capacity);
+		y = Arrays.copyOf(y, capacity);
+		hitPoints = Arrays.copyOf(hitPoints, capacity);
+		shields = Arrays.copyOf(shields, capacity);
+		cooldown = Arrays.copyOf(cooldown, capacity);
+		target = Arrays.copyOf(target, capacity);
+		groundSuccessor = Arrays.copyOf(groundSuccessor, capacity);
+		airSuccessor = Arrays.copyOf(airSuccessor, capacity);
+		order = Arrays.copyOf(order, capacity);
+		livingIndex = Arrays.copyOf(livingIndex, capacity);
+		living[0] = Arrays.copyOf(living[0], capacity);
+		living[1] = Arrays.copyOf(living[1], capacity);
+	}
+
+	/**
+	 * Play the fight out from the start, so the same fight can be simulated
+	 * again with different settings.
+	 *
+	 * @param maxFrames
+	 *            the longest the fight is simulated for
+	 * @return the number of frames simulated, which is less than maxFrames if
+	 *         a side was destroyed or nobody could attack anybody
+	 */
+	public int simulate(int maxFrames) {
+		alive[0] = 0;
+		alive[1] = 0;
+		ordered = 0;
+		for (int i = 0; i < count; i++) {
+			x[i] = startX[i];
+			y[i] = startY[i];
+			hitPoints[i] = startHitPoints[i];
+			shields[i] = startShields[i];
+			cooldown[i] = startCooldown[i];
+			target[i] = -1;
+			if (hitPoints[i] > 0) {
+				livingIndex[i] = alive[side[i]];
+				living[side[i]][alive[side[i]]++] = i;
+				order[ordered++] = i;
+			}
+		}
+
+		int frame = 0;
+		while (frame < maxFrames && alive[0] > 0 && alive[1] > 0) {
+			frame += STEP;
+			boolean progress = false;
+			// Alternate the order units act in, so neither side always shoots
+			// first
+			final boolean forwards = (frame / STEP & 1) == 0;
+			for (int n = 0; n < ordered; n++) {
+				progress |= step(order[forwards ? n : ordered - 1 - n]);
+			}
+			if (!progress) {
+				break;
+			}
+			// Drop the units that died, keeping the order of the rest
+			int kept = 0;
+			for (int n = 0; n < ordered; n++) {
+				if (hitPoints[order[n]] > 0) {
+					order[kept++] = order[n];
+				}
+			}
+			ordered = kept;
+		}
+		return Math.min(frame, maxFrames);
+	}
+
+	/**
+	 * Let one unit act for a step.
+	 *
+	 * @return whether the unit moved or fired
+	 */
+	private boolean step(int i) {
+		if (hitPoints[i] <= 0) {
+			return false;
+		}
+		// The cooldown may go below 0, so that the frames left over from the
+		// step carry over to the next attack and a unit fires as often as it
+		// would frame by frame
+		cooldown[i] -= STEP;
+		int t = target[i];
+		if (t == -1) {
+			t = findTarget(i, x[i], y[i]);
+			target[i] = t;
+			if (t == -1) {
+				return false;
+			}
+		} else if (hitPoints[t] <= 0) {
+			t = findSuccessor(i, t);
+			target[i] = t;
+			if (t == -1) {
+				return false;
+			}
+		}
+		final float dx = x[t] - x[i];
+		final float dy = y[t] - y[i];
+		final float squared = dx * dx + dy * dy;
+		final float reach = (flying[t] ? airRange[i] : groundRange[i]) + radius[i] + radius[t];
+		final float stride = speed[i] * STEP;
+		// Allow for rounding, since a unit that walked into range stops exactly
+		// at its reach
+		if (squared <= (reach + 1) * (reach + 1)) {
+			if (cooldown[i] <= 0) {
+				fire(i, t);
+				return true;
+			}
+			if (kiting[side[i]] && stride > 0 && squared > 0) {
+				final float distance = (float) Math.sqrt(squared);
+				// Step back, but not so far that the target is out of reach
+				// when the weapon is ready again
+				final float back = Math.max(Math.min(stride, reach - distance), 0) / distance;
+				x[i] -= dx * back;
+				y[i] -= dy * back;
+			}
+			// Waiting for the weapon counts as progress
+			return true;
+		}
+		if (stride == 0) {
+			return false;
+		}
+		final float distance = (float) Math.sqrt(squared);
+		final float move = Math.min(stride, distance - reach) / distance;
+		x[i] += dx * move;
+		y[i] += dy * move;
+		return true;
+	}
+
+	/**
+	 * @return the living enemy of a unit nearest to a position that the unit
+	 *         can damage, or -1
+	 */
+	private int findTarget(int i, float px, float py) {
+		int best = -1;
+		float bestDistance = Float.MAX_VALUE;
+		final int enemy = side[i] ^ 1;
+		final int[] enemies = living[enemy];
+		for (int e = 0; e < alive[enemy]; e++) {
+			final int j = enemies[e];
+			if (!(flying[j] ? canAttackAir[i] : canAttackGround[i])) {
+				continue;
+			}
+			final float dx = x[j] - px;
+			final float dy = y[j] - py;
+			final float distance = dx * dx + dy * dy;
+			if (distance < bestDistance) {
+				best = j;
+				bestDistance = distance;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Find a new target for a unit whose target died, among the enemies that
+	 * were nearest to where it died. Those that have died since lead on to
+	 * their own successors, so this only searches when none are left.
+	 *
+	 * @return the living enemy a unit can damage to attack next, or -1
+	 */
+	private int findSuccessor(int i, int dead) {
+		int ground = canAttackGround[i] ? groundSuccessor[dead] : -1;
+		while (ground != -1 && hitPoints[ground] <= 0) {
+			ground = groundSuccessor[ground];
+		}
+		int air = canAttackAir[i] ? airSuccessor[dead] : -1;
+		while (air != -1 && hitPoints[air] <= 0) {
+			air = airSuccessor[air];
+		}
+		if (ground == -1 || air == -1) {
+			final int best = Math.max(ground, air);
+			return best == -1 ? findTarget(i, x[dead], y[dead]) : best;
+		}
+		return distanceSquared(i, ground) <= distanceSquared(i, air) ? ground : air;
+	}
+
+	private float distanceSquared(int i, int j) {
+		final float dx = x[j] - x[i];
+		final float dy = y[j] - y[i];
+		return dx * dx + dy * dy;
+	}
+
+	/**
+	 * Work out the successors of a unit that just died: the nearest of its
+	 * living allies on the ground and in the air, which is where the units
+	 * that were attacking it will look for their next target.
+	 */
+	private void findSuccessors(int dead) {
+		int ground = -1;
+		int air = -1;
+		float groundDistance = Float.MAX_VALUE;
+		float airDistance = Float.MAX_VALUE;
+		final int[] allies = living[side[dead]];
+		for (int a = 0; a < alive[side[dead]]; a++) {
+			final int j = allies[a];
+			final float distance = distanceSquared(dead, j);
+			if (flying[j]) {
+				if (distance < airDistance) {
+					air = j;
+					airDistance = distance;
+				}
+			} else if (distance < groundDistance) {
+				ground = j;
+				groundDistance = distance;
+			}
+		}
+		groundSuccessor[dead] = ground;
+		airSuccessor[dead] = air;
+	}
+
+	private void fire(int i, int t) {
+		float damage;
+		if (typeId[i] != -1 && typeId[t] != -1) {
+			damage = UnitTypeTable.getDamage(typeId[i], typeId[t]);
+		} else {
+			damage = (flying[t] ? airDamage[i] : groundDamage[i]) - armor[t];
+		}
+		damage = Math.max(damage, MIN_DAMAGE);
+		cooldown[i] = Math.max(cooldown[i], -STEP) + (flying[t] ? airCooldown[i] : groundCooldown[i]);
+		// Shields soak up damage before hit points
+		final float absorbed = Math.min(shields[t], damage);
+		shields[t] -= absorbed;
+		hitPoints[t] -= damage - absorbed;
+		if (hitPoints[t] <= 0) {
+			// Move the last living unit of the side into the hole
+			final int[] members = living[side[t]];
+			final int last = members[--alive[side[t]]];
+			members[livingIndex[t]] = last;
+			livingIndex[last] = livingIndex[t];
+			findSuccessors(t);
+		}
+	}
+
+	/** @return the number of living units of a side after the last simulation */
+	public int getSurvivors(int iside) {
+		return alive[iside];
+	}
+
+	/**
+	 * @return the cost of the hit points and shields a side has after the last
+	 *         simulation
+	 */
+	public float getStrength(int iside) {
+		float strength = 0;
+		for (int i = 0; i < count; i++) {
+			if (side[i] == iside && hitPoints[i] > 0) {
+				strength += worth[i] * (hitPoints[i] + shields[i]);
+			}
+		}
+		return strength;
+	}
+
+	/** @return the cost of the hit points and shields a side starts with */
+	public float getStartStrength(int iside) {
+		float strength = 0;
+		for (int i = 0; i < count; i++) {
+			if (side[i] == iside && startHitPoints[i] > 0) {
+				strength += worth[i] * (startHitPoints[i] + startShields[i]);
+			}
+		}
+		return strength;
+	}
+}
@@ -0,0 +1,153 @@
+package micro;
+
+import gamestructure.UnitTypeTable;
+
+/**
+ * How each unit type engages each other unit type, worked out once at startup
+ * from the {@link UnitTypeTable} so that deciding whether to fire or back off
+ * is a few array reads and comparisons rather than trigonometry.<br>
+ * Pairs are indexed as {@code attacker * stride + defender} by type id. Types
+ * first seen after startup are worked out on each lookup instead.
+ *
+ * @author wesley
+ *
+ */
+public final class EngagementTable {
+	/** The number of directions BWAPI divides a full turn into */
+	private static final int DIRECTIONS = 256;
+	/** The firing angle that was found to work for Vultures, in radians */
+	private static final double VULTURE_FIRING_ANGLE = 2.5;
+	/** How many directions a Vulture turns through in a frame */
+	private static final int VULTURE_TURN_RATE = 17;
+	/**
+	 * A unit may fire at a target that it can turn to face within this many
+	 * frames, which is about 6, the time a Vulture takes to turn through
+	 * {@link #VULTURE_FIRING_ANGLE}. Faster turning types get a wider angle.
+	 */
+	private static final double TURN_FRAMES = VULTURE_FIRING_ANGLE
+			/ (2 * Math.PI * VULTURE_TURN_RATE / DIRECTIONS);
+	/** Frames of the defender closing in that a safe distance allows for */
+	private static final int SAFE_MARGIN_FRAMES = 8;
+
+	/** The x and y of the unit vector of each direction */
+	private static final float[] DIRECTION_X = new float[DIRECTIONS];
+	private static final float[] DIRECTION_Y = new float[DIRECTIONS];
+	static {
+		for (int d = 0; d < DIRECTIONS; d++) {
+			DIRECTION_X[d] = (float) Math.cos(2 * Math.PI * d / DIRECTIONS);
+			DIRECTION_Y[d] = (float) Math.sin(2 * Math.PI * d / DIRECTIONS);
+		}
+	}
+
+	private static int stride;
+	/**
+	 * The center to center distance each attacker can hit each defender from,
+	 * or -1 if it cannot hit it
+	 */
+	private static int[] effectiveRanges;
+	/**
+	 * The center to center distance at which each attacker is safe from each
+	 * defender, or 0 if the defender cannot hit it
+	 */
+	private static int[] safeDistances;
+	/**
+	 * The cosine of the widest angle from its facing each type can fire at,
+	 * given how fast it turns
+	 */
+	private static float[] firingCosines;
+
+	public static void init() {
+		System.out.print("Starting EngagementTable... ");
+		stride = UnitTypeTable.size();
+		effectiveRanges = new int[stride * stride];
+		safeDistances = new int[stride * stride];
+		firingCosines = new float[stride];
+		for (int a = 0; a < stride; a++) {
+			firingCosines[a] = computeFiringCosine(a);
+			for (int d = 0; d < stride; d++) {
+				effectiveRanges[a * stride + d] = computeEffectiveRange(a, d);
+			}
+		}
+		// Needs every effective range
+		for (int a = 0; a < stride; a++) {
+			for (int d = 0; d < stride; d++) {
+				safeDistances[a * stride + d] = computeSafeDistance(a, d);
+			}
+		}
+		System.out.println("Success!");
+	}
+
+	/** This constructor should never be used. */
+	private EngagementTable() {
+	}
+
+	private static int getRadius(int typeId) {
+		return Math.max(UnitTypeTable.getWidth(typeId), UnitTypeTable.getHeight(typeId)) / 2;
+	}
+
+	private static int computeEffectiveRange(int attacker, int defender) {
+		final boolean air = UnitTypeTable.is(defender, UnitTypeTable.FLYER);
+		if (!UnitTypeTable.is(attacker, air ? UnitTypeTable.CAN_ATTACK_AIR : UnitTypeTable.CAN_ATTACK_GROUND)) {
+			return -1;
+		}
+		// Brood War measures range between the edges of the two units
+		return (air ? UnitTypeTable.getAirRange(attacker) : UnitTypeTable.getGroundRange(attacker))
+				+ getRadius(attacker) + getRadius(defender);
+	}
+
+	private static int computeSafeDistance(int attacker, int defender) {
+		final int threat = getEffectiveRange(defender, attacker);
+		if (threat == -1) {
+			return 0;
+		}
+		return threat + (int) Math.ceil(UnitTypeTable.getTopSpeed(defender) * SAFE_MARGIN_FRAMES);
+	}
+
+	private static float computeFiringCosine(int attacker) {
+		final double angle = Math.min(Math.PI,
+				2 * Math.PI * UnitTypeTable.getTurnRadius(attacker) / DIRECTIONS * TURN_FRAMES);
+		return (float) Math.cos(angle);
+	}
+
+	private static boolean isBuilt(int attacker, int defender) {
+		return attacker < stride && defender < stride;
+	}
+
+	/**
+	 * @return the greatest distance between centers at which the attacker can
+	 *         hit the defender, or -1 if it cannot hit it at all
+	 */
+	public static int getEffectiveRange(int attacker, int defender) {
+		return isBuilt(attacker, defender) ? effectiveRanges[attacker * stride + defender]
+				: computeEffectiveRange(attacker, defender);
+	}
+
+	/**
+	 * @return the distance between centers at which the attacker is out of
+	 *         the defender's reach, with room for the defender to close in for
+	 *         a few frames, or 0 if the defender cannot hit the attacker
+	 */
+	public static int getSafeDistance(int attacker, int defender) {
+		return isBuilt(attacker, defender) ? safeDistances[attacker * stride + defender]
+				: computeSafeDistance(attacker, defender);
+	}
+
+	/**
+	 * @param attacker
+	 *            the {@link UnitTypeTable} id of the unit's type
+	 * @param angle
+	 *            the way the unit faces, in radians
+	 * @param dx
+	 *            the offset from the unit to the target
+	 * @param dy
+	 *            the offset from the unit to the target
+	 * @param distance
+	 *            the length of the offset
+	 * @return whether the unit can turn to the target quickly enough to fire
+	 */
+	public static boolean isFacing(int attacker, double angle, double dx, double dy, double distance) {
+		final int direction = (int) Math.round(angle * DIRECTIONS / (2 * Math.PI)) & (DIRECTIONS - 1);
+		final float cosine = attacker < stride ? firingCosines[attacker] : computeFiringCosine(attacker);
+		return DIRECTION_X[direction] * dx + DIRECTION_Y[direction] * dy >= cosine * distance;
+	}
+}
@@ -12,17 +12,106 @@ import java.util.Set;
 
 import bwapi.Position;
 import bwapi.Unit;
+import gamestructure.CommandBuffer;
 import gamestructure.GameHandler;
+import influence.InfluenceManager;
+import influence.SummedAreaTable;
+import pathing.CooperativePathFinder;
 import pathing.InvalidStartNodeException;
+import pathing.NavMesh;
 import pathing.NoPathFoundException;
 import pathing.Node;
 import pathing.PathFinder;
 
 public abstract class GroundAgent extends UnitAgent {
+	/**
+	 * If the destination moves by less than this many pixels, the existing path
+	 * is retargeted instead of searching from scratch.
+	 */
+	protected static final int RETARGET_DISTANCE = 96;
+	/** The number of searches that started from scratch */
+	static int fullSearches = 0;
+	/** The number of searches that only replaced the tail of a path */
+	static int retargetedSearches = 0;
+	/** Half the side of the area whose threat is considered when retreating */
+	private static final int RETREAT_THREAT_RADIUS = 32;
+	/** How far ahead of its reserved schedule a cooperative unit is sent */
+	private static final int PLAN_LOOKAHEAD_FRAMES = 4 * CooperativePathFinder.STEP_FRAMES;
+
+	/**
+	 * Whether this agent reserves its next steps in
+	 * {@link MicroManager#groundReservations} and routes around the
+	 * reservations of others
+	 */
+	protected boolean cooperative = false;
+	/** The reserved next few steps of the path when moving cooperatively */
+	protected CooperativePathFinder.Plan plan;
+	/**
+	 * The reserved waypoint the unit was last sent to, or null if it has been
+	 * given another order since
+	 */
+	protected Position sentWaypoint;
+
 	public GroundAgent(Unit u) {
 		super(u);
 	}
 
+	@Override
+	public void followPath() {
+		if (!cooperative) {
+			super.followPath();
+			return;
+		}
+		// Checkpoints of the full path are passed the same way
+		while (!path.isEmpty() && getPosition().getApproxDistance(path.element()) <= 64) {
+			path.remove();
+		}
+		if (path.isEmpty()) {
+			releasePlan();
+			return;
+		}
+
+		final int frame = GameHandler.getFrameCount();
+		if (plan == null || plan.getElapsedSteps(frame) >= CooperativePathFinder.REPLAN_STEPS) {
+			// Head for the first waypoint beyond the window
+			Position goal = path.getLast();
+			for (Position w : path) {
+				if (getPosition().getDistance(w) >= CooperativePathFinder.WINDOW * 8) {
+					goal = w;
+					break;
+				}
+			}
+			try {
+				plan = CooperativePathFinder.findPath(MicroManager.groundReservations, id, plan, getX(), getY(),
+						goal.getX(), goal.getY(), getType(), frame);
+			} catch (InvalidStartNodeException e) {
+				releasePlan();
+				super.followPath();
+				return;
+			}
+		}
+		// The waypoint only changes every few frames, so only send a move when
+		// it does
+		final Position waypoint = plan.getWaypoint(frame + PLAN_LOOKAHEAD_FRAMES);
+		if (!waypoint.equals(sentWaypoint)) {
+			CommandBuffer.move(id, unit, waypoint);
+			sentWaypoint = waypoint;
+		}
+	}
+
+	/** Give up any reserved steps so other units can use them. */
+	public void releasePlan() {
+		CooperativePathFinder.release(MicroManager.groundReservations, plan);
+		plan = null;
+		sentWaypoint = null;
+	}
+
+	@Override
+	protected void beforeTaskChange() {
+		super.beforeTaskChange();
+		releasePlan();
+	}
+
 	public void findPath(Position toWhere, int length) throws NoPathFoundException {
 		pathTargetBox = null;
 		// If we already have a decent path
@@ -30,12 +119,25 @@ public abstract class GroundAgent extends UnitAgent {
 				&& (path.size() >= 1.0 / 3 * length || pathOriginalSize <= 1.0 / 3 * length)) {
 			return;
 		}
+		// The destination moved a little, so only the end of the path is stale
+		if (pathTarget != null && !path.isEmpty() && pathTarget.getDistance(toWhere) <= RETARGET_DISTANCE) {
+			try {
+				PathFinder.retargetGroundPath(path, toWhere, getType(), length);
+				pathTarget = toWhere;
+				retargetedSearches++;
+				return;
+			} catch (NoPathFoundException | InvalidStartNodeException e) {
+				// Fall back to a full search
+			}
+		}
 		// Every 500 frames make the pathfinder work harder
 		length *= ((GameHandler.getFrameCount() - pathStartFrame) / PATHING_TIMEOUT_FRAMES + 1);
 		// Otherwise make a new path
 		try {
 			// TODO this still needs work
-			path = PathFinder.findGroundPath(unit, toWhere, length);
+			fullSearches++;
+			// Long paths go over the navmesh
+			path = PathFinder.findMeshPath(unit, toWhere, length);
 			pathTarget = toWhere;
 			pathOriginalSize = path.size();
 			pathStartFrame = GameHandler.getFrameCount();
@@ -55,7 +157,15 @@ public abstract class GroundAgent extends UnitAgent {
 		length *= ((GameHandler.getFrameCount() - pathStartFrame) / PATHING_TIMEOUT_FRAMES + 1);
 		// Otherwise make a new path
 		try {
-			path = PathFinder.findGroundPath(unit, toWhere, length);
+			// Long paths go over the navmesh, to the walkable tile nearest the
+			// middle of the box
+			final int centerX = (int) toWhere.getCenterX();
+			final int centerY = (int) toWhere.getCenterY();
+			if (Point.distance(getX() / 8, getY() / 8, centerX / 8, centerY / 8) >= NavMesh.MIN_NAVMESH_DISTANCE) {
+				path = PathFinder.findMeshPath(unit, new Position(centerX, centerY), length);
+			} else {
+				path = PathFinder.findGroundPath(unit, toWhere, length);
+			}
 			pathTargetBox = toWhere;
 			pathOriginalSize = path.size();
 			pathStartFrame = GameHandler.getFrameCount();
@@ -70,16 +180,18 @@ public abstract class GroundAgent extends UnitAgent {
 		int fromWhereWx = fromWhere.getX() / 8;
 		int fromWhereWy = fromWhere.getY() / 8;
 
+		// Judge each node by the threat in the area around it rather than on
+		// its own tile, which is a constant time query on the summed-area
+		// table
+		final SummedAreaTable threat = InfluenceManager.getThreatSums(getType());
 		Queue<Node> openSet = new PriorityQueue<Node>(1, new Comparator<Node>() {
 			@Override
 			public int compare(Node n1, Node n2) {
-				return (int) Math.round(
-						(MicroManager.threatMap[n1.wx / 4][n1.wy / 4] - MicroManager.threatMap[n2.wx / 4][n2.wy / 4])
-								* 1000);
+				return Double.compare(getAreaThreat(threat, n1), getAreaThreat(threat, n2));
 			}
 		});
 		// Find the closest walkable node
-		Node startNode = PathFinder.findClosestWalkableNode(fromWhereWx, fromWhereWy, unit.getType());
+		Node startNode = PathFinder.findClosestWalkableNode(fromWhereWx, fromWhereWy, getType());
 		startNode.parent = null;
 		startNode.costFromStart = 0;
 		openSet.add(startNode);
@@ -98,11 +210,11 @@ public abstract class GroundAgent extends UnitAgent {
 				// Base case
 				if (tentative_g_score > length) {
 					Deque<Position> path = new ArrayDeque<>();
-					PathFinder.reconstructPath(path, currentNode, unit.getType());
+					PathFinder.reconstructPath(path, currentNode, getType());
 					return path;
 				}
 
-				if (closedSet.contains(neighbor) || PathFinder.unitDoesNotFit(unit.getType(), neighbor.clearance)) {
+				if (closedSet.contains(neighbor) || PathFinder.unitDoesNotFit(getType(), neighbor.clearance)) {
 					continue;
 				}
 
@@ -117,4 +229,9 @@ public abstract class GroundAgent extends UnitAgent {
 		}
 		throw new NoPathFoundException();
 	}
+
+	private static double getAreaThreat(SummedAreaTable threat, Node n) {
+		return threat.sumPixels(n.wx * 8 - RETREAT_THREAT_RADIUS, n.wy * 8 - RETREAT_THREAT_RADIUS,
+				n.wx * 8 + RETREAT_THREAT_RADIUS, n.wy * 8 + RETREAT_THREAT_RADIUS);
+	}
 }
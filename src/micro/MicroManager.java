@@ -1,15 +1,15 @@
 package micro;
 
-import java.awt.Point;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Optional;
-import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import base.Base;
 import base.BaseManager;
 import base.Worker;
@@ -19,31 +19,92 @@ import bwapi.Unit;
 import bwapi.UnitType;
 import bwta.BWTA;
 import gamestructure.GameHandler;
+import gamestructure.UnitRegistry;
+import gamestructure.UnitTypeTable;
 import gamestructure.debug.DebugManager;
 import gamestructure.debug.DrawEngine;
+import influence.InfluenceManager;
+import influence.SummedAreaTable;
+import pathing.CooperativePathFinder;
+import pathing.ReservationTable;
 
 public final class MicroManager {
 	/** The width of the map in build tiles */
 	private static int mapWidth;
 	/** The height of the map in build tiles */
 	private static int mapHeight;
-	public static double[][] targetMap;
-	public static double[][] threatMap;
+	/** Space-time reservations shared by cooperatively moving ground units */
+	public static ReservationTable groundReservations;
 
-	private static Map<UnitType, Set<UnitAgent>> unitsByType;
-	private static Map<Unit, UnitAgent> unitAgents;
+	/** Every unit agent, by unit ID and filed under its unit type */
+	private static UnitRegistry<UnitAgent> unitAgents;
 	private static List<UnitGroup> unitGroups;
 
+	/** Agents are only split across threads in batches of at least this many */
+	private static final int MIN_AGENTS_PER_TASK = 8;
+	/** The threads that run {@link UnitAgent#decide()} */
+	private static ExecutorService deciders;
+	/**
+	 * One task per thread, each deciding for an equal share of the agents in
+	 * registry order
+	 */
+	private static List<Callable<Void>> decideTasks;
+	/** The number of tasks used this frame */
+	private static int decideTaskCount;
+	/** Nanoseconds spent in each phase of the last frame */
+	private static long decideNanos;
+	private static long actNanos;
+
+	/**
+	 * Half the side of the area around an agent that is checked for threat,
+	 * in pixels. Any threat there makes it think every frame.
+	 */
+	private static final int DANGER_RADIUS = 96;
+	/** The least threat that counts as danger */
+	private static final double MIN_THREAT = 0.01;
+	/** Agents this close to a unit event in pixels think on the next frame */
+	private static final int EVENT_RADIUS = 320;
+	/** The indices in {@link #unitAgents} of the agents that think this frame */
+	private static int[] due = new int[0];
+	private static int dueCount;
+	/** The offset given to the next new agent */
+	private static int nextScheduleOffset;
+	/** The threat map of each unit type id, looked up at most once a frame */
+	private static SummedAreaTable[] threatByType = new SummedAreaTable[0];
+
 	public static void init() {
 		System.out.print("Starting MicroManager... ");
 		mapWidth = GameHandler.getMapWidth();
 		mapHeight = GameHandler.getMapHeight();
-		targetMap = new double[mapWidth + 1][mapHeight + 1];
-		threatMap = new double[mapWidth + 1][mapHeight + 1];
+		groundReservations = new ReservationTable(GameHandler.getMapWalkWidth(), GameHandler.getMapWalkHeight());
+		ChangeTracker.init();
+		EngagementTable.init();
+		TargetAllocator.init();
 
-		unitAgents = new HashMap<Unit, UnitAgent>();
-		unitsByType = new HashMap<UnitType, Set<UnitAgent>>();
+		unitAgents = new UnitRegistry<UnitAgent>();
 		unitGroups = new ArrayList<UnitGroup>();
+		dueCount = 0;
+		nextScheduleOffset = 0;
+
+		final int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+		if (deciders == null) {
+			deciders = Executors.newFixedThreadPool(threads, r -> {
+				Thread t = new Thread(r, "MicroManager");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+		decideTasks = new ArrayList<Callable<Void>>(threads);
+		for (int i = 0; i < threads; i++) {
+			final int task = i;
+			decideTasks.add(() -> {
+				final int end = (int) ((long) dueCount * (task + 1) / decideTaskCount);
+				for (int j = (int) ((long) dueCount * task / decideTaskCount); j < end; j++) {
+					unitAgents.getAt(due[j]).decide();
+				}
+				return null;
+			});
+		}
 
 		registerDebugFunctions();
 		System.out.println("Success!");
@@ -54,74 +115,141 @@ public final class MicroManager {
 	}
 
 	public static void onFrame() {
-		updateMap();
+		TargetAllocator.onFrame(unitAgents);
 		// Unit groups issue orders
 		for (UnitGroup ug : unitGroups) {
 			ug.act();
 		}
-		// Units execute orders
-		for (UnitAgent ua : unitAgents.values()) {
+		final int frame = GameHandler.getFrameCount();
+		ChangeTracker.onFrame();
+		schedule(frame);
+		// Units decide what to do in parallel, then carry it out one at a time
+		// since BWAPI is not thread-safe
+		final long start = System.nanoTime();
+		decideAll();
+		final long decided = System.nanoTime();
+		for (int k = 0; k < dueCount; k++) {
+			final UnitAgent ua = unitAgents.getAt(due[k]);
 			ua.act();
+			// Align the next update to the agent's offset so that agents with
+			// the same period are spread over the frames in between
+			final int period = ua.getUpdatePeriod();
+			ua.nextUpdateFrame = frame + period - (frame + ua.scheduleOffset) % period;
+			ua.scheduledTask = ua.task;
 		}
+		decideNanos = decided - start;
+		actNanos = System.nanoTime() - decided;
 	}
 
-	private static void updateMap() {
-		// Update threat map
-		// Reset target and threat counter
-		for (int x = 0; x < mapWidth; x++) {
-			for (int y = 0; y < mapHeight; y++) {
-				targetMap[x][y] = 0;
-				threatMap[x][y] = 0;
+	/**
+	 * Pick the agents that think this frame: those whose period is up, whose
+	 * task changed since they last thought, that were promoted by
+	 * {@link #onUnitEvent}, or that are under threat.
+	 */
+	private static void schedule(int frame) {
+		if (due.length < unitAgents.size()) {
+			due = new int[Math.max(unitAgents.size(), 2 * due.length)];
+		}
+		if (threatByType.length < UnitTypeTable.size()) {
+			threatByType = new SummedAreaTable[UnitTypeTable.size()];
+		} else {
+			Arrays.fill(threatByType, null);
+		}
+		dueCount = 0;
+		for (int i = 0; i < unitAgents.size(); i++) {
+			final UnitAgent ua = unitAgents.getAt(i);
+			if (frame >= ua.nextUpdateFrame || ua.task != ua.scheduledTask || isInDanger(ua)) {
+				due[dueCount++] = i;
 			}
 		}
+	}
 
-		// Loop through enemy units
-		for (Unit u : GameHandler.getEnemyUnits()) {
-			UnitType unitType = u.getType();
-			// Get the x and y grid point coordinates
-			int x = u.getX() / 32;
-			int y = u.getY() / 32;
+	/**
+	 * @return whether there is any threat near an agent that fights. Other
+	 *         agents are never in danger, so that their threat layers are not
+	 *         read every frame and can go to sleep.
+	 */
+	private static boolean isInDanger(UnitAgent ua) {
+		final int typeId = ua.getTypeId();
+		final int flags = UnitTypeTable.getFlags(typeId);
+		if ((flags & (UnitTypeTable.CAN_ATTACK_AIR | UnitTypeTable.CAN_ATTACK_GROUND)) == 0
+				|| (flags & (UnitTypeTable.WORKER | UnitTypeTable.BUILDING)) != 0) {
+			return false;
+		}
+		if (threatByType[typeId] == null) {
+			threatByType[typeId] = InfluenceManager.getThreatSums(UnitTypeTable.getType(typeId));
+		}
+		final int x = ua.getX();
+		final int y = ua.getY();
+		return threatByType[typeId].sumPixels(x - DANGER_RADIUS, y - DANGER_RADIUS, x + DANGER_RADIUS,
+				y + DANGER_RADIUS) > MIN_THREAT;
+	}
 
-			// Update target map
-			double targetValue = 0;
-			if (unitType.isWorker()) {
-				targetValue = 1;
-			}
-			/** Attack range in build tiles */
-			int radius = 10;
-			int startX = Math.max(x - radius, 0);
-			int endX = Math.min(x + radius, mapWidth);
-			for (int cx = startX; cx < endX; cx++) {
-				int remainingRadius = radius - Math.abs(cx - x);
-				int startY = Math.max(y - remainingRadius, 0);
-				int endY = Math.min(y + remainingRadius, mapHeight);
-				for (int cy = startY; cy < endY; cy++) {
-					targetMap[cx][cy] += targetValue / (Point.distance(x, y, cx, cy) + 1);
-				}
+	/**
+	 * Make the agents near a unit that appeared or died think on the next
+	 * frame, whatever their period.
+	 */
+	public static void onUnitEvent(Unit unit) {
+		final int x = unit.getX();
+		final int y = unit.getY();
+		final long radiusSquared = (long) EVENT_RADIUS * EVENT_RADIUS;
+		for (int i = 0; i < unitAgents.size(); i++) {
+			final UnitAgent ua = unitAgents.getAt(i);
+			final long dx = ua.getX() - x;
+			final long dy = ua.getY() - y;
+			if (dx * dx + dy * dy <= radiusSquared) {
+				ua.nextUpdateFrame = 0;
 			}
+		}
+	}
 
-			// Update threat map
-			double threatValue = 20;
-			radius = u.getType().airWeapon().maxRange() / 32 + 10;
-			startX = Math.max(x - radius, 0);
-			endX = Math.min(x + radius, mapWidth);
-			for (int cx = startX; cx < endX; cx++) {
-				int remainingRadius = radius - Math.abs(cx - x);
-				int startY = Math.max(y - remainingRadius, 0);
-				int endY = Math.min(y + remainingRadius, mapHeight);
-				for (int cy = startY; cy < endY; cy++) {
-					threatMap[cx][cy] += threatValue * Math.max(1 - Point.distance(x, y, cx, cy) / radius, 0);
-				}
+	/**
+	 * Run {@link UnitAgent#decide()} for every agent that is due, split into
+	 * contiguous batches across the worker threads. Each agent only writes its
+	 * own fields, so the result does not depend on the number of threads.
+	 */
+	private static void decideAll() {
+		decideTaskCount = Math.min(decideTasks.size(), dueCount / MIN_AGENTS_PER_TASK);
+		if (decideTaskCount <= 1) {
+			decideTaskCount = 1;
+			for (int k = 0; k < dueCount; k++) {
+				unitAgents.getAt(due[k]).decide();
+			}
+			return;
+		}
+		try {
+			for (Future<Void> f : deciders.invokeAll(decideTasks.subList(0, decideTaskCount))) {
+				f.get();
 			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
 		}
 	}
 
-	public static Set<UnitAgent> getUnitsByType(UnitType type) {
-		return unitsByType.getOrDefault(type, Collections.emptySet());
+	/** @return a new list of the agents of a type */
+	public static List<UnitAgent> getUnitsByType(UnitType type) {
+		final int typeId = UnitTypeTable.getId(type);
+		final List<UnitAgent> agents = new ArrayList<UnitAgent>(unitAgents.getCount(typeId));
+		for (int id = unitAgents.nextOfType(typeId, 0); id != -1; id = unitAgents.nextOfType(typeId, id + 1)) {
+			agents.add(unitAgents.get(id));
+		}
+		return agents;
+	}
+
+	/** @return the number of agents of a type */
+	public static int getCountByType(UnitType type) {
+		return unitAgents.getCount(UnitTypeTable.getId(type));
 	}
 
 	public static UnitAgent getAgentForUnit(Unit u) {
-		return unitAgents.get(u);
+		return unitAgents.get(u.getID());
+	}
+
+	/** @return the agent of the unit with an ID, or <b>null</b> */
+	public static UnitAgent getAgent(int id) {
+		return unitAgents.get(id);
 	}
 
 	public static Position getScoutingTarget(Unit requestor) {
@@ -161,7 +289,7 @@ public final class MicroManager {
 	}
 
 	public static void unitConstructed(Unit unit) {
-		if (!unitAgents.containsKey(unit)) {
+		if (!unitAgents.contains(unit.getID())) {
 			final UnitType type = unit.getType();
 			UnitAgent ua;
 			// TODO is there a way to clean up this if statement?
@@ -191,20 +319,18 @@ public final class MicroManager {
 				System.err.println("Micromanager was unable to recognize unit " + unit.getType().toString());
 				return;
 			}
-			unitsByType.putIfAbsent(type, new HashSet<UnitAgent>());
-			unitsByType.get(type).add(ua);
-			unitAgents.put(unit, ua);
+			ua.scheduleOffset = nextScheduleOffset++;
+			unitAgents.put(ua.id, UnitTypeTable.getId(type), ua);
 		} else {
 			System.err.println("Duplicated unit found!");
 		}
 	}
 
 	public static void unitDestroyed(Unit unit) {
-		UnitAgent ua = unitAgents.remove(unit);
+		UnitAgent ua = unitAgents.remove(unit.getID());
 		if (ua != null) {
-			Set<UnitAgent> typeSet = unitsByType.get(unit.getType());
-			if (typeSet != null) {
-				typeSet.remove(ua);
+			if (ua instanceof GroundAgent) {
+				((GroundAgent) ua).releasePlan();
 			}
 			for (UnitGroup ug : unitGroups) {
 				ug.removeUnit(ua);
@@ -228,25 +354,39 @@ public final class MicroManager {
 		// }).setActive(true);
 		// Weapon cooldown bars
 		DebugManager.createDebugModule("cooldowns").setDraw(() -> {
-			for (UnitAgent ua : unitAgents.values()) {
-				Unit u = ua.unit;
-				UnitType unitType = u.getType();
+			for (int i = 0; i < unitAgents.size(); i++) {
+				final UnitAgent ua = unitAgents.getAt(i);
+				UnitType unitType = ua.getType();
 				int cooldownBarSize = 20;
-				int cooldownRemaining = u.getGroundWeaponCooldown();
+				int cooldownRemaining = ua.getGroundWeaponCooldown();
 				int maxCooldown = unitType.groundWeapon().damageCooldown();
 				if (maxCooldown > 0) {
-					DrawEngine.drawLineMap(u.getX(), u.getY(), u.getX() + cooldownBarSize, u.getY(), Color.Green);
-					DrawEngine.drawLineMap(u.getX(), u.getY(),
-							u.getX() + cooldownRemaining * cooldownBarSize / maxCooldown, u.getY(), Color.Red);
+					final int x = ua.getX();
+					final int y = ua.getY();
+					DrawEngine.drawLineMap(x, y, x + cooldownBarSize, y, Color.Green);
+					DrawEngine.drawLineMap(x, y, x + cooldownRemaining * cooldownBarSize / maxCooldown, y, Color.Red);
 				}
 			}
 		});
+		// Time spent in each phase
+		DebugManager.createDebugModule("microtime").setDraw(() -> {
+			DrawEngine.drawTextScreen(550, 85, dueCount + "/" + unitAgents.size() + " agents, decide: "
+					+ decideNanos / 1000 + "us on " + decideTaskCount + " threads, act: " + actNanos / 1000 + "us");
+			DrawEngine.drawTextScreen(550, 115, "Decisions: " + ChangeTracker.getSkipped() + " reused, "
+					+ ChangeTracker.getExecuted() + " made (" + String.format("%.2f", ChangeTracker.getSkipRatio())
+					+ ")");
+		});
 		// Pathing
 		DebugManager.createDebugModule("pathing").setDraw(() -> {
-			for (UnitAgent ua : unitAgents.values()) {
+			DrawEngine.drawTextScreen(400, 120, "Ground searches: " + GroundAgent.fullSearches + " full, "
+					+ GroundAgent.retargetedSearches + " retargeted");
+			DrawEngine.drawTextScreen(400, 150, "Cooperative searches: " + CooperativePathFinder.getSearches() + " ("
+					+ CooperativePathFinder.getTruncatedSearches() + " truncated)");
+			for (int i = 0; i < unitAgents.size(); i++) {
+				final UnitAgent ua = unitAgents.getAt(i);
 				// Write some information about the path
 				if (ua.path.size() != 0) {
-					DrawEngine.drawTextMap(ua.unit.getX(), ua.unit.getY() + 15,
+					DrawEngine.drawTextMap(ua.getX(), ua.getY() + 15,
 							"Path: " + ua.path.size() + "/" + ua.pathOriginalSize + "(" + ua.pathStartFrame + ")");
 				}
 				// Draw the path
@@ -262,33 +402,42 @@ public final class MicroManager {
 					DrawEngine.drawArrowMap(previous.getX(), previous.getY(), ua.pathTarget.getX(),
 							ua.pathTarget.getY(), Color.Yellow);
 				}
+				// Draw the reserved steps
+				if (ua instanceof GroundAgent && ((GroundAgent) ua).plan != null) {
+					for (Position w : ((GroundAgent) ua).plan.waypoints) {
+						DrawEngine.drawBoxMap(w.getX() - 1, w.getY() - 1, w.getX() + 1, w.getY() + 1, Color.Orange,
+								false);
+					}
+				}
 			}
 		});
 		// Unit Agents
 		DebugManager.createDebugModule("agents").setDraw(() -> {
-			for (UnitAgent ua : unitAgents.values()) {
-				DrawEngine.drawTextMap(ua.unit.getX(), ua.unit.getY() - 15, ua.getClass().getSimpleName());
+			for (int i = 0; i < unitAgents.size(); i++) {
+				final UnitAgent ua = unitAgents.getAt(i);
+				DrawEngine.drawTextMap(ua.getX(), ua.getY() - 15, ua.getClass().getSimpleName());
 			}
 		}).setActive(true);
 		// Tasks
 		DebugManager.createDebugModule("tasks").setDraw(() -> {
-			for (UnitAgent ua : unitAgents.values()) {
+			for (int i = 0; i < unitAgents.size(); i++) {
+				final UnitAgent ua = unitAgents.getAt(i);
 				if (ua.target != null) {
-					DrawEngine.drawLineMap(ua.unit.getX(), ua.unit.getY(), ua.target.getX(), ua.target.getY(),
+					DrawEngine.drawLineMap(ua.getX(), ua.getY(), ua.target.getX(), ua.target.getY(),
 							Color.Blue);
 				}
-				DrawEngine.drawTextMap(ua.unit.getX(), ua.unit.getY(), ua.task.toString());
+				DrawEngine.drawTextMap(ua.getX(), ua.getY(), ua.task.toString());
 				switch (ua.task) {
 				case GAS:
-					DrawEngine.drawLineMap(ua.unit.getX(), ua.unit.getY(), ((Worker) ua).getCurrentResource().getX(),
+					DrawEngine.drawLineMap(ua.getX(), ua.getY(), ((Worker) ua).getCurrentResource().getX(),
 							((Worker) ua).getCurrentResource().getY(), Color.Green);
 					break;
 				case MINERALS:
-					DrawEngine.drawLineMap(ua.unit.getX(), ua.unit.getY(), ((Worker) ua).getCurrentResource().getX(),
+					DrawEngine.drawLineMap(ua.getX(), ua.getY(), ((Worker) ua).getCurrentResource().getX(),
 							((Worker) ua).getCurrentResource().getY(), Color.Blue);
 					break;
 				case GAS_FREEZE:
-					DrawEngine.drawLineMap(ua.unit.getX(), ua.unit.getY(), ((Worker) ua).getCurrentResource().getX(),
+					DrawEngine.drawLineMap(ua.getX(), ua.getY(), ((Worker) ua).getCurrentResource().getX(),
 							((Worker) ua).getCurrentResource().getY(), Color.Red);
 					break;
 				default:
@@ -303,11 +452,29 @@ public final class MicroManager {
 				Position c = ug.getCenterPosition();
 				DrawEngine.drawTextMap(c.getX() + 40, c.getY(), "Unit Group " + i);
 				for (UnitAgent ua : ug.unitAgents) {
-					DrawEngine.drawLineMap(c.getX(), c.getY(), ua.unit.getX(), ua.unit.getY(), Color.Black);
+					DrawEngine.drawLineMap(c.getX(), c.getY(), ua.getX(), ua.getY(), Color.Black);
 				}
 				DrawEngine.drawTextMap(c.getX() + 40, c.getY() + 10, ug.task.toString());
 				DrawEngine.drawTextMap(c.getX() + 40, c.getY() + 20, "Units: " + ug.unitAgents.size());
 				DrawEngine.drawTextMap(c.getX() + 40, c.getY() + 30, "Spread: " + ug.getPercentileDistance(0.2));
+				for (int j = 0, n = ug.getHullSize(); j < n; j++) {
+					DrawEngine.drawLineMap(ug.getHullX(j), ug.getHullY(j), ug.getHullX((j + 1) % n),
+							ug.getHullY((j + 1) % n), Color.Grey);
+				}
+				DrawEngine.drawCircleMap((int) ug.getBoundingCircleX(), (int) ug.getBoundingCircleY(),
+						(int) ug.getBoundingCircleRadius(), Color.Grey, false);
+				if (ug instanceof WraithGroup) {
+					DrawEngine.drawTextMap(c.getX() + 40, c.getY() + 40,
+							"Path threat: " + Math.round(((WraithGroup) ug).getGroupPathThreat()));
+					DrawEngine.drawTextMap(c.getX() + 40, c.getY() + 50, "Stance: " + ((WraithGroup) ug).getStance()
+							+ " (trade " + Math.round(((WraithGroup) ug).getTrade()) + ")");
+				}
+			}
+		}).addCommand("sim", (c) -> {
+			final String result = CombatScenarios.run();
+			System.out.println(result);
+			for (String line : result.split("\n")) {
+				GameHandler.sendText(line);
 			}
 		}).setActive(true);
 	}
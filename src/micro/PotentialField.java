@@ -0,0 +1,129 @@
+package micro;
+
+import influence.GradientField;
+
+/**
+ * Moves the members of a group as particles in a potential field: pulled
+ * towards a goal, pushed down the slope of a threat layer and pushed apart
+ * from each other. Each member costs one evaluation per frame, which reads the
+ * threat's {@link GradientField}, built at most once per layer update, and a
+ * separation falloff table worked out once at startup.
+ *
+ * @author wesley
+ *
+ */
+public final class PotentialField {
+	/** Members closer than this many pixels push each other apart */
+	private static final int SEPARATION_RADIUS = 64;
+	/** How hard two members on top of each other push apart */
+	private static final float SEPARATION_WEIGHT = 1.5f;
+	/** The pull of the goal fades out within this many pixels of it */
+	private static final int ATTRACTION_RANGE = 64;
+	/**
+	 * Turns a threat gradient in damage per second per pixel into a push, so
+	 * that a slope of one damage per second per build tile pushes as hard as
+	 * the goal pulls
+	 */
+	private static final float THREAT_WEIGHT = 32;
+	/** A weaker force than this leaves the member where it is */
+	private static final float DEADBAND = 0.15f;
+
+	/** The separation push at each distance, falling off quadratically */
+	private static final float[] SEPARATION = new float[SEPARATION_RADIUS + 1];
+	static {
+		for (int d = 0; d <= SEPARATION_RADIUS; d++) {
+			final float f = 1 - (float) d / SEPARATION_RADIUS;
+			SEPARATION[d] = SEPARATION_WEIGHT * f * f;
+		}
+	}
+
+	/** The direction of the last force evaluated, as a unit vector */
+	private float directionX;
+	private float directionY;
+	/** The strength of the last force evaluated */
+	private float strength;
+
+	/**
+	 * Work out the force on one member of a group.
+	 *
+	 * @param group
+	 *            the group, whose other members push this one away
+	 * @param member
+	 *            the member to move
+	 * @param goalX
+	 *            where the member is pulled to, in pixels
+	 * @param goalY
+	 *            where the member is pulled to, in pixels
+	 * @param threat
+	 *            the gradient of the threat to the member, or null to ignore
+	 *            threat
+	 * @return whether the force is strong enough to move the member, in which
+	 *         case {@link #getDirectionX()} and {@link #getDirectionY()} give
+	 *         its direction
+	 */
+	public boolean evaluate(UnitGroup group, UnitAgent member, int goalX, int goalY, GradientField threat) {
+		final int x = member.getX();
+		final int y = member.getY();
+		float fx = 0;
+		float fy = 0;
+
+		final float gx = goalX - x;
+		final float gy = goalY - y;
+		final float goalDistance = (float) Math.sqrt(gx * gx + gy * gy);
+		if (goalDistance > 0) {
+			final float pull = Math.min(goalDistance, ATTRACTION_RANGE) / ATTRACTION_RANGE;
+			fx += gx / goalDistance * pull;
+			fy += gy / goalDistance * pull;
+		}
+
+		if (threat != null) {
+			fx -= THREAT_WEIGHT * threat.getX(x, y);
+			fy -= THREAT_WEIGHT * threat.getY(x, y);
+		}
+
+		for (UnitAgent other : group.unitAgents) {
+			if (other == member) {
+				continue;
+			}
+			final int dx = x - other.getX();
+			final int dy = y - other.getY();
+			if (Math.abs(dx) > SEPARATION_RADIUS || Math.abs(dy) > SEPARATION_RADIUS) {
+				continue;
+			}
+			final int d = (int) Math.sqrt(dx * dx + dy * dy);
+			if (d > SEPARATION_RADIUS) {
+				continue;
+			}
+			if (d == 0) {
+				// Stacked exactly, so split them by ID
+				fx += other.id < member.id ? SEPARATION[0] : -SEPARATION[0];
+			} else {
+				fx += dx * SEPARATION[d] / d;
+				fy += dy * SEPARATION[d] / d;
+			}
+		}
+
+		strength = (float) Math.sqrt(fx * fx + fy * fy);
+		if (strength < DEADBAND) {
+			return false;
+		}
+		directionX = fx / strength;
+		directionY = fy / strength;
+		return true;
+	}
+
+	/** @return the x of the direction of the last force evaluated */
+	public float getDirectionX() {
+		return directionX;
+	}
+
+	/** @return the y of the direction of the last force evaluated */
+	public float getDirectionY() {
+		return directionY;
+	}
+
+	/** @return the strength of the last force evaluated */
+	public float getStrength() {
+		return strength;
+	}
+}
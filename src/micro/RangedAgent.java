@@ -2,90 +2,183 @@ package micro;
 
 import bwapi.Position;
 import bwapi.Unit;
-import gamestructure.GameHandler;
+import gamestructure.CommandBuffer;
+import gamestructure.MotionTracker;
+import gamestructure.SpatialGrid;
+import gamestructure.UnitTypeTable;
+import gamestructure.WorldSnapshot;
 import pathing.NoPathFoundException;
 
 public class RangedAgent extends GroundAgent {
+	/** How far ahead to predict the enemy being kited away from, in frames */
+	private static final int KITE_LEAD_FRAMES = 8;
+
+	/** Whether an enemy was close enough to attack, decided when idle */
+	private boolean enemyNearby;
+	/** The slot of the closest enemy in the {@link WorldSnapshot}, or -1 */
+	private int nearestSlot = -1;
+	/** The ID of the closest enemy found by the last search, or -1 */
+	private int nearestId = -1;
+	/** What the last search for enemies depended on */
+	private final ChangeTracker.Dependencies searchDependencies = new ChangeTracker.Dependencies();
+	/** The distance to the closest enemy */
+	private double nearestDistance;
+	/** Whether the target is in range and in front of the unit */
+	private boolean canFire;
+	/** The distance from the closest enemy at which kiting can stop */
+	private int safeDistance;
+	/**
+	 * The weapon cooldown at which kiting has to turn back to be in range when
+	 * the weapon is ready
+	 */
+	private int returnCooldown = 1;
 
 	public RangedAgent(Unit u) {
 		super(u);
+		cooperative = true;
 	}
 
 	@Override
-	public void act() {
-		final Position predictedPosition = new Position((int) (unit.getX() + unit.getVelocityX()),
-				(int) (unit.getY() + unit.getVelocityY()));
+	protected int getUpdatePeriod() {
+		// Kiting needs every frame, but waiting and scouting do not
+		return task == UnitTask.IDLE || task == UnitTask.SCOUTING ? 4 : 1;
+	}
 
+	@Override
+	protected void decide() {
+		nearestSlot = -1;
+		canFire = false;
+		safeDistance = 0;
+		returnCooldown = 1;
+		final int slot = getSlot();
+		if (slot == -1 || (task != UnitTask.IDLE && task != UnitTask.SCOUTING && task != UnitTask.ATTACK_RUN
+				&& task != UnitTask.MOVE)) {
+			return;
+		}
+		final WorldSnapshot world = WorldSnapshot.get();
+		final int x = world.getX(slot);
+		final int y = world.getY(slot);
+		final int assigned = task == UnitTask.ATTACK_RUN ? TargetAllocator.getTargetSlot(id) : -1;
+		if (assigned != -1) {
+			// Focus fire on the target shared out to this unit
+			nearestSlot = assigned;
+		} else if (searchDependencies.isDirty(x, y, task)) {
+			search(world, x, y);
+		} else {
+			// Nothing the last search depended on has changed, so it would
+			// find the same enemy
+			nearestSlot = world.getSlot(nearestId);
+		}
+		if (task == UnitTask.IDLE || nearestSlot == -1) {
+			return;
+		}
+		final int tx = world.getX(nearestSlot);
+		final int ty = world.getY(nearestSlot);
+		nearestDistance = Math.sqrt((double) (tx - x) * (tx - x) + (double) (ty - y) * (ty - y));
+		final int typeId = world.getTypeId(slot);
+		final int targetTypeId = world.getTypeId(nearestSlot);
+		final int reach = EngagementTable.getEffectiveRange(typeId, targetTypeId);
+		if (task == UnitTask.ATTACK_RUN && reach != -1) {
+			// Where both will be on the next frame
+			final long dx = MotionTracker.predictX(world.getID(nearestSlot), 1) - MotionTracker.predictX(id, 1);
+			final long dy = MotionTracker.predictY(world.getID(nearestSlot), 1) - MotionTracker.predictY(id, 1);
+			canFire = dx * dx + dy * dy <= (long) reach * reach
+					&& EngagementTable.isFacing(typeId, world.getAngle(slot), tx - x, ty - y, nearestDistance);
+		} else if (task == UnitTask.MOVE) {
+			safeDistance = EngagementTable.getSafeDistance(typeId, targetTypeId);
+			final double speed = UnitTypeTable.getTopSpeed(typeId);
+			if (reach != -1 && speed > 0) {
+				returnCooldown = Math.max(1, (int) ((nearestDistance - reach) / speed));
+			}
+		}
+	}
+
+	/** Look for enemies around the unit and record what the answer depends on. */
+	private void search(WorldSnapshot world, int x, int y) {
+		enemyNearby = false;
+		int radius;
+		switch (task) {
+		case IDLE:
+			radius = 1000;
+			enemyNearby = SpatialGrid.anyInRadius(x, y, radius, SpatialGrid.ENEMY);
+			break;
+		case MOVE:
+			radius = 300;
+			nearestSlot = SpatialGrid.getNearestSlot(x, y, radius, SpatialGrid.ENEMY);
+			break;
+		default:
+			radius = Integer.MAX_VALUE;
+			nearestSlot = SpatialGrid.getNearestSlot(x, y, radius, SpatialGrid.ENEMY);
+			break;
+		}
+		if (nearestSlot != -1) {
+			// Only an enemy closer than the one found could take its place
+			final long dx = world.getX(nearestSlot) - x;
+			final long dy = world.getY(nearestSlot) - y;
+			radius = (int) Math.ceil(Math.sqrt(dx * dx + dy * dy));
+		}
+		nearestId = nearestSlot == -1 ? -1 : world.getID(nearestSlot);
+		searchDependencies.record(x, y, task, nearestId, radius);
+	}
+
+	@Override
+	public void act() {
+		if (getSlot() == -1) {
+			// Not in the snapshot yet, so nothing was decided
+			return;
+		}
 		switch (task) {
 		case IDLE:
-			if (GameHandler.getUnitsInRadius(unit.getPosition(), 1000).stream()
-					.anyMatch(u -> u.getPlayer().isEnemy(GameHandler.getSelfPlayer()))) {
+			if (enemyNearby) {
 				setTaskAttackRun();
 			}
 			break;
 		case SCOUTING:
 			// Scout the base...
 			scout();
-			target = GameHandler.getEnemyUnits().stream()
-					.sorted((u1,
-							u2) -> (int) (u1.getPosition().getDistance(unit.getPosition())
-									- u2.getPosition().getDistance(unit.getPosition())) * 1000)
-					.findFirst().orElse(null);
+			setTarget(nearestSlot);
 			// Switch to aggressive if enemy is nearby
-			if (target != null && unit.getPosition().getDistance(target) < 100) {
+			if (target != null && nearestDistance < 100) {
 				task = UnitTask.ATTACK_RUN;
 			}
 			break;
 		case ATTACK_RUN:
-			target = GameHandler.getEnemyUnits().stream()
-					.sorted((u1,
-							u2) -> (int) (u1.getPosition().getDistance(unit.getPosition())
-									- u2.getPosition().getDistance(unit.getPosition())) * 1000)
-					.findFirst().orElse(null);
+			setTarget(nearestSlot);
 			if (target == null) {
 				task = UnitTask.SCOUTING;
 				break;
+			} else if (canFire) {
+				// TODO remember to check weapon cooldown here too! may
+				// need to switch back to retreating state?
+				CommandBuffer.attack(id, unit, target);
+				sentWaypoint = null;
+				timeout = 3;
+				task = UnitTask.MOVE;
 			} else {
-				final int unitSize = Math.min(unit.getType().width(), unit.getType().height());
-				final int range = unit.getType().groundWeapon().maxRange();
-				final int enemySize = Math.max(target.getType().width(), target.getType().height());
-				final Vector fv = Vector.fromAngle(unit.getAngle());
-				final Vector av = new Vector(unit.getPosition(), target.getPosition()).normalize();
-				// Firing angle of 2.5 rad seems to work for vultures
-				if (predictedPosition.getDistance(target.getPosition()) <= range + enemySize
-						&& Vector.angleBetween(fv, av) < 2.5) {
-					// TODO remember to check weapon cooldown here too! may
-					// need to switch back to retreating state?
-					unit.attack(target);
-					timeout = 3;
-					task = UnitTask.MOVE;
-				} else {
-					try {
-						findPath(target.getPosition(), 64);
-						followPath();
-					} catch (NoPathFoundException e) {
-						System.err.println("No path found for escape!");
-					}
-					break;
+				try {
+					final WorldSnapshot world = WorldSnapshot.get();
+					findPath(new Position(world.getX(nearestSlot), world.getY(nearestSlot)), 64);
+					followPath();
+				} catch (NoPathFoundException e) {
+					System.err.println("No path found for escape!");
 				}
 			}
 			break;
 		case MOVE:
-			target = GameHandler.getUnitsInRadius(unit.getPosition(), 300).stream()
-					.filter(u -> u.getPlayer().isEnemy(GameHandler.getSelfPlayer()))
-					.sorted((u1,
-							u2) -> (int) (u1.getPosition().getDistance(unit.getPosition())
-									- u2.getPosition().getDistance(unit.getPosition())) * 1000)
-					.findFirst().orElse(null);
-			if (target != null) {
-				final int dx = unit.getX() - target.getX();
-				final int dy = unit.getY() - target.getY();
+			setTarget(nearestSlot);
+			if (target != null && nearestDistance < safeDistance) {
+				// Back away from where the enemy is heading, not where it is
+				final int enemyId = WorldSnapshot.get().getID(nearestSlot);
+				final int dx = getX() - MotionTracker.predictX(enemyId, KITE_LEAD_FRAMES);
+				final int dy = getY() - MotionTracker.predictY(enemyId, KITE_LEAD_FRAMES);
 				final Vector delta = new Vector(dx, dy).normalize().scalarMultiply(50);
-				unit.move(new Position(unit.getX() + delta.getXInt(), unit.getY() + delta.getYInt()).makeValid());
+				CommandBuffer.move(id, unit,
+						new Position(getX() + delta.getXInt(), getY() + delta.getYInt()).makeValid());
+				sentWaypoint = null;
 			}
 			timeout--;
 			// Go safe when threshold is reached
-			if (timeout <= 0 && unit.getGroundWeaponCooldown() <= 1) {
+			if (timeout <= 0 && getGroundWeaponCooldown() <= returnCooldown) {
 				task = UnitTask.ATTACK_RUN;
 			}
 			break;
@@ -0,0 +1,321 @@
+package micro;
+
+import java.util.Arrays;
+
+import bwapi.Color;
+import gamestructure.GameHandler;
+import gamestructure.SpatialGrid;
+import gamestructure.UnitRegistry;
+import gamestructure.UnitTypeTable;
+import gamestructure.WorldSnapshot;
+import gamestructure.debug.DebugManager;
+import gamestructure.debug.DrawEngine;
+import influence.DamageTable;
+
+/**
+ * Shares out enemy targets between my units once a frame so that they focus
+ * fire without overkill.<br>
+ * Enemies are taken in order of how much damage per second they deal for each
+ * point of health they have left, so the most threat is removed for the least
+ * damage. Each is given just enough of the units that are in range and about
+ * to fire to kill it, and the rest are left for the next enemy. Health left
+ * is counted after the damage of shots already fired at an enemy, which are
+ * kept in a ledger until the enemy's health drops or the shot is assumed to
+ * have landed.<br>
+ * Units that are not about to fire, or that are out of range of every enemy,
+ * are not given a target, and choose their own.
+ *
+ * @author wesley
+ *
+ */
+public final class TargetAllocator {
+	/** Units whose weapon is ready within this many frames are given targets */
+	private static final int READY_FRAMES = 8;
+	/**
+	 * Units this much further away than their range can be given a target,
+	 * since they will close in before they fire
+	 */
+	private static final int RANGE_SLACK = 32;
+	/** A shot stops being pending after this many frames */
+	private static final int FLIGHT_FRAMES = 16;
+	/** The threat of an enemy that cannot attack, in damage per second */
+	private static final float BASE_THREAT = 1;
+	/** The damage of the weakest attack, as in Brood War */
+	private static final float MIN_DAMAGE = 0.5f;
+
+	/** The ID of the target given to each unit ID, or -1 */
+	private static int[] assignment;
+	/** The weapon cooldown of each unit ID on the last frame */
+	private static int[] lastCooldown;
+	/** Whether the unit in each snapshot slot is waiting for a target */
+	private static boolean[] available;
+	/** The IDs of the units given a target this frame */
+	private static int[] assigned;
+	private static int assignedCount;
+
+	// The ledger of shots fired that have not landed yet
+	private static int pendingCount;
+	private static int[] pendingTarget;
+	private static int[] pendingFrame;
+	private static float[] pendingDamage;
+	/** The health of the target when the shot was fired */
+	private static float[] pendingHealth;
+	/** The pending damage on the unit in each snapshot slot */
+	private static float[] pendingBySlot;
+
+	/** Enemies in order of priority, as the priority's bits above the slot */
+	private static long[] order;
+	/** Scratch space for the units near an enemy, grown when a query fills it */
+	private static int[] nearby = new int[256];
+
+	// Counts for the last frame
+	private static int targetCount;
+	private static int focusedCount;
+	private static float overkill;
+
+	public static void init() {
+		System.out.print("Starting TargetAllocator... ");
+		assignment = new int[0];
+		lastCooldown = new int[0];
+		available = new boolean[0];
+		assigned = new int[0];
+		assignedCount = 0;
+		pendingCount = 0;
+		pendingTarget = new int[0];
+		pendingFrame = new int[0];
+		pendingDamage = new float[0];
+		pendingHealth = new float[0];
+		pendingBySlot = new float[0];
+		order = new long[0];
+		targetCount = 0;
+		focusedCount = 0;
+		overkill = 0;
+
+		registerDebugFunctions();
+		System.out.println("Success!");
+	}
+
+	/** This constructor should never be used. */
+	private TargetAllocator() {
+	}
+
+	/**
+	 * Share out targets between the agents. Called once a frame, before any
+	 * agent reads its target.
+	 */
+	public static void onFrame(UnitRegistry<UnitAgent> agents) {
+		final int frame = GameHandler.getFrameCount();
+		final WorldSnapshot world = WorldSnapshot.get();
+		if (available.length < world.size()) {
+			final int capacity = Math.max(world.size(), 2 * available.length);
+			available = new boolean[capacity];
+			pendingBySlot = new float[capacity];
+			order = new long[capacity];
+		}
+		if (assigned.length < agents.size()) {
+			assigned = new int[Math.max(agents.size(), 2 * assigned.length)];
+		}
+
+		recordShots(agents, world, frame);
+		settleShots(world, frame);
+
+		// Clear last frame's targets and find the units that are about to fire
+		for (int i = 0; i < assignedCount; i++) {
+			assignment[assigned[i]] = -1;
+		}
+		assignedCount = 0;
+		Arrays.fill(available, 0, world.size(), false);
+		int maxReach = 0;
+		for (int i = 0; i < agents.size(); i++) {
+			final int slot = world.getSlot(agents.getIdAt(i));
+			if (slot == -1 || !world.is(slot, WorldSnapshot.COMPLETED)) {
+				continue;
+			}
+			final int typeId = world.getTypeId(slot);
+			if (UnitTypeTable.is(typeId, UnitTypeTable.WORKER) || getCooldown(world, slot) > READY_FRAMES) {
+				continue;
+			}
+			final int weapons = UnitTypeTable.CAN_ATTACK_AIR | UnitTypeTable.CAN_ATTACK_GROUND;
+			if ((UnitTypeTable.getFlags(typeId) & weapons) == 0) {
+				continue;
+			}
+			final int range = Math.max(UnitTypeTable.getGroundRange(typeId), UnitTypeTable.getAirRange(typeId));
+			available[slot] = true;
+			maxReach = Math.max(maxReach, range + getRadius(typeId));
+		}
+
+		// Order the enemies by the threat removed per point of damage
+		targetCount = 0;
+		for (int slot = 0; slot < world.size(); slot++) {
+			if (world.getOwner(slot) != WorldSnapshot.ENEMY) {
+				continue;
+			}
+			final float need = getNeed(world, slot);
+			if (need <= 0) {
+				// Already dead once the shots in flight land
+				continue;
+			}
+			final int typeId = world.getTypeId(slot);
+			final float threat = BASE_THREAT + Math.max(DamageTable.getDps(typeId, false, DamageTable.SIZES - 1, 0),
+					DamageTable.getDps(typeId, true, DamageTable.SIZES - 1, 0));
+			// Positive floats order the same way as their bits
+			order[targetCount++] = (long) Float.floatToIntBits(threat / need) << 32 | slot;
+		}
+		Arrays.sort(order, 0, targetCount);
+
+		// Give each enemy just enough shooters to kill it, best enemy first
+		overkill = 0;
+		focusedCount = 0;
+		for (int o = targetCount - 1; o >= 0 && maxReach > 0; o--) {
+			final int target = (int) order[o];
+			final int targetTypeId = world.getTypeId(target);
+			final boolean flying = world.is(target, WorldSnapshot.FLYING);
+			final int tx = world.getX(target);
+			final int ty = world.getY(target);
+			final int targetRadius = getRadius(targetTypeId);
+			final float health = getNeed(world, target);
+			float need = health;
+			final int shooters = SpatialGrid.SELF
+					| (flying ? SpatialGrid.CAN_ATTACK_AIR : SpatialGrid.CAN_ATTACK_GROUND);
+			int found;
+			while ((found = SpatialGrid.getSlotsInRadius(tx, ty, maxReach + targetRadius + RANGE_SLACK, shooters,
+					nearby)) == nearby.length) {
+				nearby = new int[nearby.length * 2];
+			}
+			for (int n = 0; n < found && need > 0; n++) {
+				final int shooter = nearby[n];
+				if (!available[shooter]) {
+					continue;
+				}
+				final int typeId = world.getTypeId(shooter);
+				final long reach = (flying ? UnitTypeTable.getAirRange(typeId) : UnitTypeTable.getGroundRange(typeId))
+						+ getRadius(typeId) + targetRadius + RANGE_SLACK;
+				final long dx = world.getX(shooter) - tx;
+				final long dy = world.getY(shooter) - ty;
+				if (dx * dx + dy * dy > reach * reach) {
+					continue;
+				}
+				available[shooter] = false;
+				final int id = world.getID(shooter);
+				if (id >= assignment.length) {
+					final int oldLength = assignment.length;
+					assignment = Arrays.copyOf(assignment, Math.max(id + 1, 2 * oldLength));
+					Arrays.fill(assignment, oldLength, assignment.length, -1);
+				}
+				assignment[id] = world.getID(target);
+				assigned[assignedCount++] = id;
+				need -= Math.max(UnitTypeTable.getDamage(typeId, targetTypeId), MIN_DAMAGE);
+			}
+			if (need < health) {
+				focusedCount++;
+			}
+			if (need < 0) {
+				overkill -= need;
+			}
+		}
+	}
+
+	/**
+	 * Add a shot to the ledger for each unit that fired at its target since
+	 * the last frame, which shows as its cooldown going up.
+	 */
+	private static void recordShots(UnitRegistry<UnitAgent> agents, WorldSnapshot world, int frame) {
+		for (int i = 0; i < agents.size(); i++) {
+			final int id = agents.getIdAt(i);
+			final int slot = world.getSlot(id);
+			if (slot == -1) {
+				continue;
+			}
+			if (id >= lastCooldown.length) {
+				lastCooldown = Arrays.copyOf(lastCooldown, Math.max(id + 1, 2 * lastCooldown.length));
+			}
+			final int cooldown = getCooldown(world, slot);
+			final int targetSlot = id < assignment.length && assignment[id] != -1 ? world.getSlot(assignment[id])
+					: -1;
+			if (cooldown > lastCooldown[id] && targetSlot != -1) {
+				if (pendingCount == pendingTarget.length) {
+					final int capacity = Math.max(32, 2 * pendingCount);
+					pendingTarget = Arrays.copyOf(pendingTarget, capacity);
+					pendingFrame = Arrays.copyOf(pendingFrame, capacity);
+					pendingDamage = Arrays.copyOf(pendingDamage, capacity);
+					pendingHealth = Arrays.copyOf(pendingHealth, capacity);
+				}
+				pendingTarget[pendingCount] = assignment[id];
+				pendingFrame[pendingCount] = frame;
+				pendingDamage[pendingCount] = Math.max(
+						UnitTypeTable.getDamage(world.getTypeId(slot), world.getTypeId(targetSlot)), MIN_DAMAGE);
+				pendingHealth[pendingCount] = getHealth(world, targetSlot);
+				pendingCount++;
+			}
+			lastCooldown[id] = cooldown;
+		}
+	}
+
+	/**
+	 * Drop the shots that have landed, or that are too old or whose target is
+	 * gone, and total the rest by target.
+	 */
+	private static void settleShots(WorldSnapshot world, int frame) {
+		Arrays.fill(pendingBySlot, 0, world.size(), 0);
+		int kept = 0;
+		for (int p = 0; p < pendingCount; p++) {
+			final int slot = world.getSlot(pendingTarget[p]);
+			if (slot == -1 || frame - pendingFrame[p] >= FLIGHT_FRAMES
+					|| getHealth(world, slot) <= pendingHealth[p] - pendingDamage[p]) {
+				continue;
+			}
+			pendingBySlot[slot] += pendingDamage[p];
+			pendingTarget[kept] = pendingTarget[p];
+			pendingFrame[kept] = pendingFrame[p];
+			pendingDamage[kept] = pendingDamage[p];
+			pendingHealth[kept] = pendingHealth[p];
+			kept++;
+		}
+		pendingCount = kept;
+	}
+
+	private static int getCooldown(WorldSnapshot world, int slot) {
+		return Math.max(world.getGroundWeaponCooldown(slot), world.getAirWeaponCooldown(slot));
+	}
+
+	private static float getHealth(WorldSnapshot world, int slot) {
+		return world.getHitPoints(slot) + world.getShields(slot);
+	}
+
+	/** @return the health a unit has left once the shots at it land */
+	private static float getNeed(WorldSnapshot world, int slot) {
+		return getHealth(world, slot) - pendingBySlot[slot];
+	}
+
+	private static int getRadius(int typeId) {
+		return Math.max(UnitTypeTable.getWidth(typeId), UnitTypeTable.getHeight(typeId)) / 2;
+	}
+
+	/**
+	 * Safe to call from several threads at once.
+	 *
+	 * @return the snapshot slot of the target given to a unit this frame, or -1
+	 *         if it has none
+	 */
+	public static int getTargetSlot(int id) {
+		final int target = id < assignment.length ? assignment[id] : -1;
+		return target == -1 ? -1 : WorldSnapshot.get().getSlot(target);
+	}
+
+	private static void registerDebugFunctions() {
+		DebugManager.createDebugModule("focus").setDraw(() -> {
+			final WorldSnapshot world = WorldSnapshot.get();
+			for (int i = 0; i < assignedCount; i++) {
+				final int shooter = world.getSlot(assigned[i]);
+				final int target = getTargetSlot(assigned[i]);
+				if (shooter != -1 && target != -1) {
+					DrawEngine.drawLineMap(world.getX(shooter), world.getY(shooter), world.getX(target),
+							world.getY(target), Color.Orange);
+				}
+			}
+			DrawEngine.drawTextScreen(550, 125, "Focus fire: " + assignedCount + " units on " + focusedCount + "/"
+					+ targetCount + " enemies, " + pendingCount + " shots pending, " + Math.round(overkill)
+					+ " overkill");
+		});
+	}
+}
@@ -7,13 +7,19 @@ import java.util.Deque;
 import base.BaseManager;
 import bwapi.Position;
 import bwapi.Unit;
+import bwapi.UnitType;
 import bwta.BWTA;
+import gamestructure.CommandBuffer;
 import gamestructure.GameHandler;
+import gamestructure.UnitTypeTable;
+import gamestructure.WorldSnapshot;
 import pathing.InvalidStartNodeException;
 import pathing.NoPathFoundException;
 
 public abstract class UnitAgent {
 	public Unit unit;
+	/** The ID of the unit, kept since reading it goes through JNI */
+	public final int id;
 	protected Deque<Position> path;
 	/** The destination of the current path */
 	protected Position pathTarget;
@@ -29,16 +35,49 @@ public abstract class UnitAgent {
 	protected int pathStartFrame;
 	protected UnitTask task;
 	public Unit target;
+	/** The ID of {@link #target}, or -1, for finding it in the snapshot */
+	protected int targetId = -1;
 	protected int timeout;
+	/** The first frame on which the scheduler lets this agent think again */
+	int nextUpdateFrame = 0;
+	/** Spreads agents with the same update period over different frames */
+	int scheduleOffset = 0;
+	/** The task when the agent last thought, so that a new task is noticed */
+	UnitTask scheduledTask;
 
 	public UnitAgent(Unit u) {
 		unit = u;
+		id = u.getID();
 		path = new ArrayDeque<>();
 		task = UnitTask.IDLE;
 		target = null;
 		timeout = 0;
 	}
 
+	/**
+	 * Target the unit in a slot of the current {@link WorldSnapshot}.
+	 *
+	 * @param slot
+	 *            the slot, or -1 for no target
+	 */
+	protected void setTarget(int slot) {
+		if (slot == -1) {
+			target = null;
+			targetId = -1;
+		} else {
+			target = WorldSnapshot.get().getUnit(slot);
+			targetId = WorldSnapshot.get().getID(slot);
+		}
+	}
+
+	/**
+	 * @return how many frames apart the agent needs to think while doing its
+	 *         current task and out of danger, where 1 is every frame
+	 */
+	protected int getUpdatePeriod() {
+		return 1;
+	}
+
 	public abstract void findPath(Position toWhere, int length) throws NoPathFoundException;
 
 	public abstract void findPath(Rectangle toWhere, int length) throws NoPathFoundException;
@@ -51,8 +90,7 @@ public abstract class UnitAgent {
 		double distanceToCheckPoint;
 		while (!path.isEmpty()) {
 			moveTarget = path.element();
-			distanceToCheckPoint = unit.getPosition()
-					.getApproxDistance(new Position(moveTarget.getX(), moveTarget.getY()));
+			distanceToCheckPoint = getPosition().getApproxDistance(new Position(moveTarget.getX(), moveTarget.getY()));
 
 			if (distanceToCheckPoint > 64) {
 				// Keep following existing path
@@ -65,7 +103,7 @@ public abstract class UnitAgent {
 
 		// Issue a movement command
 		if (moveTarget != null) {
-			unit.move(moveTarget);
+			CommandBuffer.move(id, unit, moveTarget);
 		}
 	}
 
@@ -73,12 +111,30 @@ public abstract class UnitAgent {
 		return path;
 	}
 
+	/**
+	 * Replace the current path with one planned elsewhere, such as by a
+	 * {@link UnitGroup} on behalf of all of its members.
+	 * 
+	 * @param newPath
+	 *            the waypoints to follow. The agent takes ownership of it.
+	 * @param destination
+	 *            the destination of the path
+	 */
+	public void setPath(Deque<Position> newPath, Position destination) {
+		path = newPath;
+		pathTarget = destination;
+		pathTargetBox = null;
+		pathOriginalSize = path.size();
+		pathStartFrame = GameHandler.getFrameCount();
+	}
+
 	protected void beforeTaskChange() {
 		path.clear();
 		pathTarget = null;
 		pathTargetBox = null;
 		pathOriginalSize = Integer.MAX_VALUE;
 		target = null;
+		targetId = -1;
 	}
 
 	public void setTaskIdle() {
@@ -121,19 +177,35 @@ public abstract class UnitAgent {
 		beforeTaskChange();
 		task = UnitTask.ATTACK_RUN;
 		target = u;
+		targetId = u.getID();
 	}
 
 	public UnitTask getTask() {
 		return task;
 	}
 
+	/**
+	 * The first half of the agent's turn, which works out what to do from the
+	 * state at the start of the frame and remembers it for {@link #act()}.<br>
+	 * It runs on a worker thread alongside the other agents, so it may only
+	 * read the {@link WorldSnapshot}, the slot queries of the
+	 * {@link gamestructure.SpatialGrid} and the {@link UnitTypeTable}, and only
+	 * write this agent's own fields. It must not call into BWAPI.
+	 */
+	protected void decide() {
+	}
+
+	/**
+	 * The second half of the agent's turn, which carries out what was decided
+	 * and issues commands. Agents act one at a time on the BWAPI thread.
+	 */
 	protected void act() {
 		switch (task) {
 		case SCOUTING:
 			scout();
 			break;
 		case MOVE:
-			unit.move(pathTarget);
+			CommandBuffer.move(id, unit, pathTarget);
 			break;
 		default:
 			break;
@@ -153,7 +225,7 @@ public abstract class UnitAgent {
 				findPath(pathTarget, 256);
 				followPath();
 			} catch (NoPathFoundException e) {
-				System.err.println("No path to scout " + unit.getType());
+				System.err.println("No path to scout " + getType());
 				setTaskIdle();
 			}
 		}
@@ -165,7 +237,87 @@ public abstract class UnitAgent {
 		}
 	}
 
+	/**
+	 * @return the unit's slot in the current {@link WorldSnapshot}, or -1 if
+	 *         it is not in it, such as when it was created after the snapshot
+	 *         was taken
+	 */
+	protected int getSlot() {
+		return WorldSnapshot.get().getSlot(id);
+	}
+
+	// The unit's state as of the start of the frame, read from the
+	// WorldSnapshot rather than through JNI where possible
+
+	public int getX() {
+		final int slot = getSlot();
+		return slot == -1 ? unit.getX() : WorldSnapshot.get().getX(slot);
+	}
+
+	public int getY() {
+		final int slot = getSlot();
+		return slot == -1 ? unit.getY() : WorldSnapshot.get().getY(slot);
+	}
+
+	public Position getPosition() {
+		final int slot = getSlot();
+		return slot == -1 ? unit.getPosition()
+				: new Position(WorldSnapshot.get().getX(slot), WorldSnapshot.get().getY(slot));
+	}
+
+	public double getVelocityX() {
+		final int slot = getSlot();
+		return slot == -1 ? unit.getVelocityX() : WorldSnapshot.get().getVelocityX(slot);
+	}
+
+	public double getVelocityY() {
+		final int slot = getSlot();
+		return slot == -1 ? unit.getVelocityY() : WorldSnapshot.get().getVelocityY(slot);
+	}
+
+	public double getAngle() {
+		final int slot = getSlot();
+		return slot == -1 ? unit.getAngle() : WorldSnapshot.get().getAngle(slot);
+	}
+
+	public UnitType getType() {
+		final int slot = getSlot();
+		return slot == -1 ? unit.getType() : WorldSnapshot.get().getType(slot);
+	}
+
+	/** @return the {@link UnitTypeTable} id of the unit's type */
+	public int getTypeId() {
+		final int slot = getSlot();
+		return slot == -1 ? UnitTypeTable.getId(unit.getType()) : WorldSnapshot.get().getTypeId(slot);
+	}
+
+	public int getGroundWeaponCooldown() {
+		final int slot = getSlot();
+		return slot == -1 ? unit.getGroundWeaponCooldown() : WorldSnapshot.get().getGroundWeaponCooldown(slot);
+	}
+
+	public int getAirWeaponCooldown() {
+		final int slot = getSlot();
+		return slot == -1 ? unit.getAirWeaponCooldown() : WorldSnapshot.get().getAirWeaponCooldown(slot);
+	}
+
+	public boolean isConstructing() {
+		final int slot = getSlot();
+		return slot == -1 ? unit.isConstructing() : WorldSnapshot.get().is(slot, WorldSnapshot.CONSTRUCTING);
+	}
+
+	public boolean isGatheringMinerals() {
+		final int slot = getSlot();
+		return slot == -1 ? unit.isGatheringMinerals()
+				: WorldSnapshot.get().is(slot, WorldSnapshot.GATHERING_MINERALS);
+	}
+
+	public boolean isGatheringGas() {
+		final int slot = getSlot();
+		return slot == -1 ? unit.isGatheringGas() : WorldSnapshot.get().is(slot, WorldSnapshot.GATHERING_GAS);
+	}
+
 	public String toString() {
-		return unit.getType() + " @ (" + unit.getX() + ", " + unit.getY() + ")";
+		return getType() + " @ (" + getX() + ", " + getY() + ")";
 	}
 }
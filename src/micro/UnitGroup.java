@@ -1,18 +1,46 @@
 package micro;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.PriorityQueue;
 
 import bwapi.Position;
 import bwapi.Unit;
+import gamestructure.WorldSnapshot;
 
+/**
+ * A group of agents that act together.<br>
+ * The geometry of the group, which is its center, the distances of its
+ * members from the center, a bounding circle and a convex hull, is worked out
+ * at most once a frame, the first time any of it is asked for, into primitive
+ * fields that are reused between frames.
+ *
+ * @author wesley
+ *
+ */
 public abstract class UnitGroup {
 	public List<UnitAgent> unitAgents;
 	public UnitTask task;
 
 	public Unit target;
 
+	/** The snapshot frame the geometry was worked out on, or -1 */
+	private int geometryFrame = -1;
+	private double centerX;
+	private double centerY;
+	private Position centerPosition;
+	/** The distance of each member from the center, in no particular order */
+	private double[] distances = new double[0];
+	private double circleX;
+	private double circleY;
+	private double circleRadius;
+	/** The corners of the convex hull, counterclockwise */
+	private int[] hullXs = new int[0];
+	private int[] hullYs = new int[0];
+	private int hullSize;
+	/** Scratch space for the members' positions, packed as x above y */
+	private long[] points = new long[0];
+
 	public UnitGroup() {
 		unitAgents = new ArrayList<UnitAgent>();
 		task = UnitTask.IDLE;
@@ -20,27 +48,236 @@ public abstract class UnitGroup {
 
 	public abstract void act();
 
-	public Position getCenterPosition() {
+	/** Work out the geometry again the next time it is asked for. */
+	protected void invalidateGeometry() {
+		geometryFrame = -1;
+	}
+
+	private void updateGeometry() {
+		final int frame = WorldSnapshot.get().getFrame();
+		if (frame == geometryFrame) {
+			return;
+		}
+		geometryFrame = frame;
+		final int n = unitAgents.size();
+		if (distances.length < n) {
+			distances = new double[Math.max(n, 2 * distances.length)];
+			points = new long[distances.length];
+			hullXs = new int[distances.length + 1];
+			hullYs = new int[distances.length + 1];
+		}
+
 		double cx = 0;
 		double cy = 0;
-		for (UnitAgent ua : unitAgents) {
-			cx += ua.unit.getX();
-			cy += ua.unit.getY();
+		for (int i = 0; i < n; i++) {
+			final UnitAgent ua = unitAgents.get(i);
+			final int x = ua.getX();
+			final int y = ua.getY();
+			cx += x;
+			cy += y;
+			points[i] = (long) x << 32 | y;
+		}
+		centerX = n == 0 ? 0 : cx / n;
+		centerY = n == 0 ? 0 : cy / n;
+		centerPosition = new Position((int) centerX, (int) centerY);
+		for (int i = 0; i < n; i++) {
+			final double dx = (int) (points[i] >> 32) - centerX;
+			final double dy = (int) points[i] - centerY;
+			distances[i] = Math.sqrt(dx * dx + dy * dy);
+		}
+		updateCircle(n);
+		updateHull(n);
+	}
+
+	/**
+	 * Ritter's bounding circle, which is at most a few percent larger than the
+	 * smallest one: start from two far apart members and grow the circle to
+	 * take in any member outside it.
+	 */
+	private void updateCircle(int n) {
+		if (n == 0) {
+			circleX = 0;
+			circleY = 0;
+			circleRadius = 0;
+			return;
+		}
+		final int a = furthestFrom((int) (points[0] >> 32), (int) points[0], n);
+		final int b = furthestFrom((int) (points[a] >> 32), (int) points[a], n);
+		final double ax = (int) (points[a] >> 32);
+		final double ay = (int) points[a];
+		final double bx = (int) (points[b] >> 32);
+		final double by = (int) points[b];
+		circleX = (ax + bx) / 2;
+		circleY = (ay + by) / 2;
+		circleRadius = Math.sqrt((ax - bx) * (ax - bx) + (ay - by) * (ay - by)) / 2;
+		for (int i = 0; i < n; i++) {
+			final double dx = (int) (points[i] >> 32) - circleX;
+			final double dy = (int) points[i] - circleY;
+			final double d = Math.sqrt(dx * dx + dy * dy);
+			if (d > circleRadius) {
+				// Move the circle towards the member just enough to reach it
+				final double grown = (circleRadius + d) / 2;
+				circleX += dx / d * (grown - circleRadius);
+				circleY += dy / d * (grown - circleRadius);
+				circleRadius = grown;
+			}
 		}
-		return new Position((int) (cx / unitAgents.size()), (int) (cy / unitAgents.size()));
 	}
 
+	private int furthestFrom(int x, int y, int n) {
+		int furthest = 0;
+		long furthestDistance = -1;
+		for (int i = 0; i < n; i++) {
+			final long dx = (int) (points[i] >> 32) - x;
+			final long dy = (int) points[i] - y;
+			if (dx * dx + dy * dy > furthestDistance) {
+				furthest = i;
+				furthestDistance = dx * dx + dy * dy;
+			}
+		}
+		return furthest;
+	}
+
+	/** Andrew's monotone chain over the members sorted by x then y. */
+	private void updateHull(int n) {
+		// Positions are never negative, so the packed values sort by x then y
+		Arrays.sort(points, 0, n);
+		hullSize = 0;
+		if (n < 3) {
+			for (int i = 0; i < n; i++) {
+				addHullCorner(i);
+			}
+			return;
+		}
+		// Lower hull, then upper hull
+		for (int i = 0; i < n; i++) {
+			while (hullSize >= 2 && cross(hullSize - 2, hullSize - 1, i) <= 0) {
+				hullSize--;
+			}
+			addHullCorner(i);
+		}
+		final int lower = hullSize + 1;
+		for (int i = n - 2; i >= 0; i--) {
+			while (hullSize >= lower && cross(hullSize - 2, hullSize - 1, i) <= 0) {
+				hullSize--;
+			}
+			addHullCorner(i);
+		}
+		// The last corner is the first one again
+		hullSize--;
+	}
+
+	private void addHullCorner(int point) {
+		hullXs[hullSize] = (int) (points[point] >> 32);
+		hullYs[hullSize] = (int) points[point];
+		hullSize++;
+	}
+
+	/** @return the cross product of two hull corners and a point */
+	private long cross(int o, int a, int point) {
+		final long px = (int) (points[point] >> 32);
+		final long py = (int) points[point];
+		return (long) (hullXs[a] - hullXs[o]) * (py - hullYs[o]) - (long) (hullYs[a] - hullYs[o]) * (px - hullXs[o]);
+	}
+
+	public Position getCenterPosition() {
+		updateGeometry();
+		return centerPosition;
+	}
+
+	public double getCenterX() {
+		updateGeometry();
+		return centerX;
+	}
+
+	public double getCenterY() {
+		updateGeometry();
+		return centerY;
+	}
+
+	/**
+	 * @return the distance from the center within which the given fraction
+	 *         of the members are
+	 */
 	public double getPercentileDistance(double percentile) {
-		PriorityQueue<Double> distances = new PriorityQueue<>();
-		Position center = getCenterPosition();
-		for (UnitAgent ua : unitAgents) {
-			distances.add(ua.unit.getPosition().getDistance(center));
+		updateGeometry();
+		final int k = (int) Math.ceil(unitAgents.size() * percentile) - 1;
+		if (k < 0) {
+			return Double.MIN_NORMAL;
 		}
-		double distance = Double.MIN_NORMAL;
-		for (int i = 0; i < unitAgents.size() * percentile && !distances.isEmpty(); i++) {
-			distance = distances.remove();
+		return select(Math.min(k, unitAgents.size() - 1));
+	}
+
+	/**
+	 * Quickselect over the distances, which leaves them partly sorted.
+	 *
+	 * @return the kth smallest distance, counting from 0
+	 */
+	private double select(int k) {
+		int left = 0;
+		int right = unitAgents.size() - 1;
+		while (left < right) {
+			final double pivot = distances[(left + right) >>> 1];
+			int i = left;
+			int j = right;
+			while (i <= j) {
+				while (distances[i] < pivot) {
+					i++;
+				}
+				while (distances[j] > pivot) {
+					j--;
+				}
+				if (i <= j) {
+					final double swap = distances[i];
+					distances[i] = distances[j];
+					distances[j] = swap;
+					i++;
+					j--;
+				}
+			}
+			if (k <= j) {
+				right = j;
+			} else if (k >= i) {
+				left = i;
+			} else {
+				break;
+			}
 		}
-		return distance;
+		return distances[k];
+	}
+
+	public double getBoundingCircleX() {
+		updateGeometry();
+		return circleX;
+	}
+
+	public double getBoundingCircleY() {
+		updateGeometry();
+		return circleY;
+	}
+
+	/** @return the radius of a circle around every member */
+	public double getBoundingCircleRadius() {
+		updateGeometry();
+		return circleRadius;
+	}
+
+	/** @return the number of corners of the convex hull of the members */
+	public int getHullSize() {
+		updateGeometry();
+		return hullSize;
+	}
+
+	/** @return the x of a corner of the convex hull, counterclockwise */
+	public int getHullX(int corner) {
+		updateGeometry();
+		return hullXs[corner];
+	}
+
+	/** @return the y of a corner of the convex hull, counterclockwise */
+	public int getHullY(int corner) {
+		updateGeometry();
+		return hullYs[corner];
 	}
 
 	public boolean tryAddUnitAgent(UnitAgent ua) {
@@ -49,5 +286,6 @@ public abstract class UnitGroup {
 
 	public void removeUnit(UnitAgent ua) {
 		unitAgents.remove(ua);
+		invalidateGeometry();
 	}
 }
@@ -4,16 +4,64 @@ import java.awt.Rectangle;
 import java.util.Deque;
 
 import bwapi.Position;
-import bwapi.PositionOrUnit;
 import bwapi.Unit;
+import gamestructure.CommandBuffer;
+import gamestructure.GameHandler;
+import gamestructure.MotionTracker;
+import gamestructure.UnitTypeTable;
+import gamestructure.WorldSnapshot;
+import influence.InfluenceManager;
+import pathing.AirPathFinder;
 import pathing.NoPathFoundException;
 
 public class WraithAgent extends UnitAgent {
 
+	/** The furthest ahead a chase leads the target, in frames */
+	private static final int MAX_LEAD_FRAMES = 24;
+
+	/** Whether the target is in range */
+	private boolean canFire;
+	/** Where to fly to catch the target, or -1 if it is unknown */
+	private int chaseX = -1;
+	private int chaseY = -1;
+
 	public WraithAgent(Unit unit) {
 		super(unit);
 	}
 
+	@Override
+	protected int getUpdatePeriod() {
+		// The group does the thinking until the Wraiths attack
+		return task == UnitTask.IDLE || task == UnitTask.SCOUTING ? 4 : 1;
+	}
+
+	@Override
+	protected void decide() {
+		canFire = false;
+		chaseX = -1;
+		chaseY = -1;
+		final WorldSnapshot world = WorldSnapshot.get();
+		final int slot = getSlot();
+		final int targetSlot = world.getSlot(targetId);
+		if (task != UnitTask.ATTACK_RUN || slot == -1 || targetSlot == -1) {
+			return;
+		}
+		// Where both will be on the next frame
+		final int dx = MotionTracker.predictX(targetId, 1) - MotionTracker.predictX(id, 1);
+		final int dy = MotionTracker.predictY(targetId, 1) - MotionTracker.predictY(id, 1);
+		final int typeId = world.getTypeId(slot);
+		final int reach = EngagementTable.getEffectiveRange(typeId, world.getTypeId(targetSlot));
+		canFire = reach != -1 && (long) dx * dx + (long) dy * dy <= (long) reach * reach;
+
+		// Head for where the target will be when the Wraith gets there, but
+		// no further ahead than the prediction can be trusted
+		final double frames = MotionTracker.getInterceptFrames(targetId, world.getX(slot), world.getY(slot),
+				UnitTypeTable.getTopSpeed(typeId));
+		final double lead = frames < 0 ? 0 : Math.min(frames, MAX_LEAD_FRAMES);
+		chaseX = MotionTracker.predictX(targetId, lead);
+		chaseY = MotionTracker.predictY(targetId, lead);
+	}
+
 	@Override
 	public void act() {
 		super.act();
@@ -24,17 +72,11 @@ public class WraithAgent extends UnitAgent {
 			break;
 		case ATTACK_RUN:
 			if (target != null) {
-				final Position predictedPosition = new Position((int) (unit.getX() + unit.getVelocityX()),
-						(int) (unit.getY() + unit.getVelocityY()));
-
-				unit.move(target.getPosition());
-				final int unitSize = Math.min(unit.getType().width(), unit.getType().height());
-				final int range = unit.getType().groundWeapon().maxRange();
-				final int enemySize = Math.min(target.getType().width(), target.getType().height());
+				CommandBuffer.move(id, unit,
+						chaseX == -1 ? target.getPosition() : new Position(chaseX, chaseY).makeValid());
 				// Fire
-				// 205 distance seems good for Wraith
-				if (predictedPosition.getDistance(target.getPosition()) <= unitSize + range + enemySize / 2) {
-					unit.attack(new PositionOrUnit(target));
+				if (canFire) {
+					CommandBuffer.attack(id, unit, target);
 					timeout = 3;
 				}
 			}
@@ -49,9 +91,12 @@ public class WraithAgent extends UnitAgent {
 		if (!toWhere.isValid()) {
 			throw new NoPathFoundException();
 		}
-		path.clear();
-		path.add(toWhere);
-		pathTarget = toWhere;
+		// If we already have a recent path (possibly handed to us by the group)
+		if (pathTarget != null && pathTarget.equals(toWhere) && !path.isEmpty()
+				&& GameHandler.getFrameCount() - pathStartFrame < AirPathFinder.PATH_CACHE_FRAMES) {
+			return;
+		}
+		setPath(AirPathFinder.findAirPath(unit, toWhere, InfluenceManager.getThreat(getType())), toWhere);
 	}
 
 	@Override
@@ -72,9 +117,9 @@ public class WraithAgent extends UnitAgent {
 
 	@Override
 	public Deque<Position> findPathAwayFrom(Position fromWhere, int length) throws NoPathFoundException {
-		final int dx = 10 * (unit.getX() - target.getX());
-		final int dy = 10 * (unit.getY() - target.getY());
-		findPath(new Position(unit.getX() + dx, unit.getY() + dy), length);
+		final int dx = 10 * (getX() - target.getX());
+		final int dy = 10 * (getY() - target.getY());
+		findPath(new Position(getX() + dx, getY() + dy), length);
 		return path;
 	}
 
@@ -1,11 +1,89 @@
 package micro;
 
+import java.util.ArrayDeque;
+import java.util.Deque;
+
 import bwapi.Position;
 import bwapi.UnitType;
-import bwapi.WeaponType;
 import gamestructure.GameHandler;
+import gamestructure.SpatialGrid;
+import gamestructure.WorldSnapshot;
+import influence.GradientField;
+import influence.InfluenceManager;
+import influence.SummedAreaTable;
+import pathing.AirPathFinder;
+import pathing.NoPathFoundException;
 
 public class WraithGroup extends UnitGroup {
+	/**
+	 * Half the side of the area around a Wraith that is checked for anti-air
+	 * threat
+	 */
+	private static final int THREAT_CHECK_RADIUS = 32;
+	/**
+	 * The least threat that counts as being in danger, which is well above the
+	 * rounding error left on the map by stamps that were taken back
+	 */
+	private static final double MIN_THREAT = 0.01;
+	/** Enemies this close to the center of the group take part in a fight */
+	private static final int FIGHT_RADIUS = 640;
+	/** How far ahead fights are simulated */
+	private static final int FIGHT_FRAMES = 24 * 15;
+	/**
+	 * The fight is simulated again at most this often, since it changes
+	 * little from one frame to the next and costs two simulations
+	 */
+	private static final int STANCE_FRAMES = 8;
+	/** Once the group retreats it keeps retreating for at least this long */
+	private static final int RETREAT_FRAMES = 24 * 3;
+	/** How far ahead of the group a retreat is aimed, in pixels */
+	private static final int RETREAT_DISTANCE = 320;
+	/** How far ahead of a Wraith a field move is aimed, in pixels */
+	private static final int MOVE_STEP = 96;
+	/**
+	 * A field move is only sent again when the field turns further than about
+	 * 30 degrees from it, or the Wraith is halfway there
+	 */
+	private static final double REISSUE_COSINE = Math.cos(Math.PI / 6);
+
+	/** How the group fights */
+	public enum Stance {
+		/** Stay in range after firing */
+		ENGAGE,
+		/** Fall back after firing */
+		KITE,
+		/** Fly away from the enemies that can attack air for a while */
+		RETREAT
+	}
+
+	/** The path shared by all members of the group */
+	private Deque<Position> groupPath = new ArrayDeque<>();
+	/** The destination of {@link #groupPath} */
+	private Position groupPathTarget;
+	/** The frame on which {@link #groupPath} was planned */
+	private int groupPathFrame;
+	/** The threat along {@link #groupPath} when it was planned */
+	private double groupPathThreat;
+
+	private final CombatSimulator simulator = new CombatSimulator();
+	private final PotentialField field = new PotentialField();
+	private Stance stance = Stance.KITE;
+	/** The frame the stance was last chosen on */
+	private int stanceFrame = -STANCE_FRAMES;
+	/** The frame until which the group keeps retreating */
+	private int retreatUntil = -1;
+	/**
+	 * The center of the enemies that can attack air near the group, weighted
+	 * by their damage per second, as of the last simulated fight
+	 */
+	private float threatX;
+	private float threatY;
+	/**
+	 * The cost of what the enemy would lose minus the cost of what the group
+	 * would lose in the chosen stance
+	 */
+	private float trade = 0;
+
 	public void act() {
 		final Position centerPosition = getCenterPosition();
 
@@ -18,76 +96,80 @@ public class WraithGroup extends UnitGroup {
 				// Go aggressive
 				task = UnitTask.ATTACK_RUN;
 			} else {
-				for (UnitAgent ua : unitAgents) {
-					ua.setTaskScout();
-				}
+				scoutTogether();
 			}
 			break;
 		case ATTACK_RUN:
 			// Prioritize units that can attack air
-			target = null;
-			GameHandler.getUnitsInRadius(centerPosition, 500).stream()
-					.filter(e -> e.getPlayer().isEnemy(GameHandler.getSelfPlayer())
-							&& e.getType().airWeapon() != WeaponType.None && e.isVisible())
-					.sorted((u1,
-							u2) -> (int) ((u1.getPosition().getDistance(centerPosition)
-									- u2.getPosition().getDistance(centerPosition)) * 1000))
-					.findFirst().ifPresent(e -> {
-						target = e;
-					});
+			int targetSlot = SpatialGrid.getNearestSlot(centerPosition.getX(), centerPosition.getY(), 500,
+					SpatialGrid.ENEMY | SpatialGrid.CAN_ATTACK_AIR);
 			// Then workers
-			if (target == null) {
-				GameHandler.getEnemyUnits().stream().filter(e -> e.getType().isWorker())
-						.sorted((u1,
-								u2) -> (int) ((u1.getPosition().getDistance(centerPosition)
-										- u2.getPosition().getDistance(centerPosition)) * 1000))
-						.findFirst().ifPresent(e -> {
-							target = e;
-						});
+			if (targetSlot == -1) {
+				targetSlot = SpatialGrid.getNearestSlot(centerPosition.getX(), centerPosition.getY(),
+						Integer.MAX_VALUE, SpatialGrid.ENEMY | SpatialGrid.WORKER);
 			}
 			// Otherwise target anything
-			if (target == null) {
-				GameHandler.getEnemyUnits().stream().filter(e -> e.isVisible())
-						.sorted((u1,
-								u2) -> (int) ((u1.getPosition().getDistance(centerPosition)
-										- u2.getPosition().getDistance(centerPosition)) * 1000))
-						.findFirst().ifPresent(e -> {
-							target = e;
-						});
+			if (targetSlot == -1) {
+				targetSlot = SpatialGrid.getNearestSlot(centerPosition.getX(), centerPosition.getY(),
+						Integer.MAX_VALUE, SpatialGrid.ENEMY);
 			}
+			target = targetSlot == -1 ? null : WorldSnapshot.get().getUnit(targetSlot);
 			if (target == null) {
-				for (UnitAgent ua : unitAgents) {
-					ua.setTaskScout();
+				scoutTogether();
+				return;
+			}
+			final int frame = GameHandler.getFrameCount();
+			if (frame >= retreatUntil && frame - stanceFrame >= STANCE_FRAMES) {
+				chooseStance(centerPosition);
+				stanceFrame = frame;
+				if (stance == Stance.RETREAT) {
+					retreatUntil = frame + RETREAT_FRAMES;
 				}
+			}
+			final GradientField threatGradient = InfluenceManager.getThreatGradient(UnitType.Terran_Wraith);
+			if (stance == Stance.RETREAT) {
+				retreat(centerPosition, threatGradient);
 				return;
 			}
 			boolean cycleComplete = true;
 			boolean canBeAttacked = false;
+			final SummedAreaTable threat = InfluenceManager.getThreatSums(UnitType.Terran_Wraith);
+			final WorldSnapshot world = WorldSnapshot.get();
 			for (UnitAgent ua : unitAgents) {
-				ua.target = target;
-				if (ua.getTask() == UnitTask.MOVE || ua.timeout > 0) {
-					// Wraith has fired
-					final int dx = ua.unit.getX() - target.getX();
-					final int dy = ua.unit.getY() - target.getY();
-					final Vector delta = new Vector(dx, dy).normalize().scalarMultiply(50);
-					ua.setTaskMove(new Position(ua.unit.getX() + delta.getXInt(), ua.unit.getY() + delta.getYInt())
-							.makeValid());
+				// Focus fire on the target shared out to this Wraith, if any,
+				// rather than the group's
+				final int assigned = TargetAllocator.getTargetSlot(ua.id);
+				final int memberTarget = assigned != -1 ? assigned : targetSlot;
+				ua.setTarget(memberTarget);
+				final int slot = ua.getSlot();
+				if (stance == Stance.KITE && slot != -1 && (ua.getTask() == UnitTask.MOVE || ua.timeout > 0)) {
+					// Wraith has fired, so fall back to where the target cannot
+					// reach it but it can still reach the target
+					final int tx = world.getX(memberTarget);
+					final int ty = world.getY(memberTarget);
+					final int typeId = world.getTypeId(slot);
+					final int targetTypeId = world.getTypeId(memberTarget);
+					final int standOff = Math.max(EngagementTable.getSafeDistance(typeId, targetTypeId),
+							EngagementTable.getEffectiveRange(typeId, targetTypeId));
+					final double dx = ua.getX() - tx;
+					final double dy = ua.getY() - ty;
+					final double d = Math.max(Math.sqrt(dx * dx + dy * dy), 1);
+					moveByField(ua, tx + (int) (dx / d * standOff), ty + (int) (dy / d * standOff), threatGradient);
 				}
 				if (ua.timeout > 0
-						|| Math.max(ua.unit.getGroundWeaponCooldown(), ua.unit.getAirWeaponCooldown()) > 10) {
+						|| Math.max(ua.getGroundWeaponCooldown(), ua.getAirWeaponCooldown()) > 10) {
 					cycleComplete = false;
-					canBeAttacked |= GameHandler.getUnitsInRadius(ua.unit.getPosition(), 300).stream()
-							.filter(u -> u.getPlayer() != GameHandler.getSelfPlayer())
-							.anyMatch(eu -> eu.getType().airWeapon() != WeaponType.None);
+					canBeAttacked |= threat.sumPixels(ua.getX() - THREAT_CHECK_RADIUS,
+							ua.getY() - THREAT_CHECK_RADIUS, ua.getX() + THREAT_CHECK_RADIUS,
+							ua.getY() + THREAT_CHECK_RADIUS) > MIN_THREAT;
 				}
 			}
 
 			if (cycleComplete && getPercentileDistance(0.2) > Math.sqrt(unitAgents.size()) * 20) {
 				// Regather
-				Position center = getCenterPosition();
 				for (UnitAgent ua : unitAgents) {
-					if (ua.unit.getPosition().getDistance(center) > Math.sqrt(unitAgents.size()) * 20) {
-						ua.setTaskMove(centerPosition);
+					if (ua.getPosition().getDistance(centerPosition) > Math.sqrt(unitAgents.size()) * 20) {
+						moveByField(ua, centerPosition.getX(), centerPosition.getY(), threatGradient);
 					}
 				}
 			} else if (cycleComplete || !canBeAttacked) {
@@ -106,9 +188,189 @@ public class WraithGroup extends UnitGroup {
 
 	}
 
+	/**
+	 * Send every member scouting to the same place along one path planned from
+	 * the center of the group, rather than each planning its own.
+	 */
+	private void scoutTogether() {
+		for (UnitAgent ua : unitAgents) {
+			if (ua.getTask() != UnitTask.SCOUTING) {
+				ua.setTaskScout();
+			}
+		}
+		if (unitAgents.isEmpty()) {
+			return;
+		}
+		final UnitAgent leader = unitAgents.get(0);
+		if (leader.pathTarget == null) {
+			leader.pathTarget = MicroManager.getScoutingTarget(leader.unit);
+		}
+		if (leader.pathTarget != null) {
+			try {
+				findGroupPath(leader.pathTarget);
+			} catch (NoPathFoundException e) {
+				System.err.println("No air path for Wraith group!");
+			}
+		}
+	}
+
+	/**
+	 * Fly every member away from the enemies that can attack air, down the
+	 * slope of the threat as well.
+	 */
+	private void retreat(Position center, GradientField threatGradient) {
+		final double dx = center.getX() - threatX;
+		final double dy = center.getY() - threatY;
+		final double d = Math.max(Math.sqrt(dx * dx + dy * dy), 1);
+		final int goalX = center.getX() + (int) (dx / d * RETREAT_DISTANCE);
+		final int goalY = center.getY() + (int) (dy / d * RETREAT_DISTANCE);
+		for (UnitAgent ua : unitAgents) {
+			moveByField(ua, goalX, goalY, threatGradient);
+		}
+	}
+
+	/**
+	 * Move a member along the {@link PotentialField} towards a goal, away from
+	 * threat and apart from the rest of the group. The move is aimed
+	 * {@link #MOVE_STEP} pixels ahead and kept while the field still points
+	 * roughly the same way, so that a small change in the field does not send
+	 * a new order.
+	 */
+	private void moveByField(UnitAgent ua, int goalX, int goalY, GradientField threatGradient) {
+		if (!field.evaluate(this, ua, goalX, goalY, threatGradient)) {
+			return;
+		}
+		final int x = ua.getX();
+		final int y = ua.getY();
+		final float directionX = field.getDirectionX();
+		final float directionY = field.getDirectionY();
+		if (ua.getTask() == UnitTask.MOVE && ua.pathTarget != null) {
+			final int dx = ua.pathTarget.getX() - x;
+			final int dy = ua.pathTarget.getY() - y;
+			final double d = Math.sqrt(dx * dx + dy * dy);
+			if (d > MOVE_STEP / 2 && dx * directionX + dy * directionY >= REISSUE_COSINE * d) {
+				return;
+			}
+		}
+		ua.setTaskMove(new Position(x + Math.round(directionX * MOVE_STEP), y + Math.round(directionY * MOVE_STEP))
+				.makeValid());
+	}
+
+	/**
+	 * Simulate the fight around the group while engaging and while kiting, and
+	 * choose whichever trades best, or retreat if neither trades evenly.
+	 */
+	private void chooseStance(Position center) {
+		final WorldSnapshot world = WorldSnapshot.get();
+		simulator.clear();
+		for (UnitAgent ua : unitAgents) {
+			final int slot = ua.getSlot();
+			if (slot != -1) {
+				simulator.addUnit(0, world, slot);
+			}
+		}
+		final int members = simulator.size();
+		float airDps = 0;
+		float sumX = 0;
+		float sumY = 0;
+		for (int c = 0; c < ClusterManager.size(); c++) {
+			final float dx = ClusterManager.getCenterX(c) - center.getX();
+			final float dy = ClusterManager.getCenterY(c) - center.getY();
+			final float reach = FIGHT_RADIUS + ClusterManager.getRadius(c);
+			if (ClusterManager.getOwner(c) != WorldSnapshot.ENEMY || dx * dx + dy * dy > reach * reach) {
+				continue;
+			}
+			// The whole of an enemy cluster would join in
+			for (int m = ClusterManager.getMemberStart(c); m < ClusterManager.getMemberEnd(c); m++) {
+				simulator.addUnit(1, world, ClusterManager.getMemberSlot(m));
+			}
+			airDps += ClusterManager.getAirDps(c);
+			sumX += ClusterManager.getAirDps(c) * ClusterManager.getCenterX(c);
+			sumY += ClusterManager.getAirDps(c) * ClusterManager.getCenterY(c);
+		}
+		if (airDps <= 0 || members == 0) {
+			stance = Stance.KITE;
+			trade = 0;
+			return;
+		}
+		threatX = sumX / airDps;
+		threatY = sumY / airDps;
+		final float ourStrength = simulator.getStartStrength(0);
+		final float theirStrength = simulator.getStartStrength(1);
+
+		simulator.simulate(FIGHT_FRAMES);
+		final float engageTrade = theirStrength - simulator.getStrength(1) - ourStrength + simulator.getStrength(0);
+		simulator.setKiting(0, true);
+		simulator.simulate(FIGHT_FRAMES);
+		final float kiteTrade = theirStrength - simulator.getStrength(1) - ourStrength + simulator.getStrength(0);
+
+		// Prefer kiting when it trades as well, since it keeps more Wraiths alive
+		stance = kiteTrade >= engageTrade ? Stance.KITE : Stance.ENGAGE;
+		trade = Math.max(kiteTrade, engageTrade);
+		if (trade < 0) {
+			stance = Stance.RETREAT;
+		}
+	}
+
+	/** @return how the group chose to fight when it last simulated the fight */
+	public Stance getStance() {
+		return stance;
+	}
+
+	/**
+	 * @return the cost of what the enemy would lose minus the cost of what the
+	 *         group would lose, according to the last simulated fight
+	 */
+	public float getTrade() {
+		return trade;
+	}
+
+	/**
+	 * Plan a single air path from the center of the group and hand a copy of it
+	 * to every member. The path is only replanned when the destination changes
+	 * or the previous plan is older than {@link AirPathFinder#PATH_CACHE_FRAMES}.
+	 * Until then, only members that are not yet heading there get a copy.
+	 * 
+	 * @param toWhere
+	 *            the destination in pixels
+	 * @throws NoPathFoundException
+	 *             if the destination is off the map
+	 */
+	public void findGroupPath(Position toWhere) throws NoPathFoundException {
+		final int frame = GameHandler.getFrameCount();
+		if (groupPathTarget != null && groupPathTarget.equals(toWhere)
+				&& frame - groupPathFrame < AirPathFinder.PATH_CACHE_FRAMES) {
+			for (UnitAgent ua : unitAgents) {
+				if (!toWhere.equals(ua.pathTarget)) {
+					ua.setPath(new ArrayDeque<>(groupPath), toWhere);
+				}
+			}
+			return;
+		}
+		final Position center = getCenterPosition();
+		groupPath = AirPathFinder.findAirPath(center.getX(), center.getY(), toWhere.getX(), toWhere.getY(),
+				InfluenceManager.getThreat(UnitType.Terran_Wraith));
+		groupPathTarget = toWhere;
+		groupPathFrame = frame;
+		groupPathThreat = InfluenceManager.getThreatSums(UnitType.Terran_Wraith).sumAlongPath(groupPath);
+		for (UnitAgent ua : unitAgents) {
+			ua.setPath(new ArrayDeque<>(groupPath), toWhere);
+		}
+	}
+
+	/**
+	 * @return the threat along the group path when it was planned, which is
+	 *         about the damage per second a Wraith would take times the number
+	 *         of build tiles it flies through under fire
+	 */
+	public double getGroupPathThreat() {
+		return groupPathThreat;
+	}
+
 	public boolean tryAddUnitAgent(UnitAgent ua) {
-		if (ua.unit.getType() == UnitType.Terran_Wraith && unitAgents.size() < 7) {
+		if (ua.getType() == UnitType.Terran_Wraith && unitAgents.size() < 7) {
 			unitAgents.add(ua);
+			invalidateGeometry();
 			return true;
 		}
 		return false;
@@ -0,0 +1,376 @@
+package pathing;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import bwapi.Color;
+import bwapi.Position;
+import bwapi.Unit;
+import gamestructure.GameHandler;
+import gamestructure.debug.DebugManager;
+import gamestructure.debug.DrawEngine;
+import influence.InfluenceMap;
+
+/**
+ * Plans paths for flying units over the build tile grid. The cost of crossing a
+ * tile grows with the threat on that tile, so flyers will route around static
+ * defense instead of straight over it.<br>
+ * Searches are done coarse-to-fine: a search over blocks of
+ * {@link #COARSE_SIZE} by {@link #COARSE_SIZE} tiles picks a corridor, and the
+ * tile level search is only allowed inside that corridor. Results are cached
+ * for {@link #PATH_CACHE_FRAMES} frames.
+ *
+ * @author wesley
+ *
+ */
+public final class AirPathFinder {
+	/** The width and height of a coarse cell in build tiles */
+	public static final int COARSE_SIZE = 4;
+	/** How far around the coarse path the fine search may wander, in coarse cells */
+	private static final int CORRIDOR_RADIUS = 1;
+	/** The extra cost of a tile per unit of threat on it */
+	public static final double THREAT_WEIGHT = 0.25;
+	/** Number of frames a cached path stays valid */
+	public static final int PATH_CACHE_FRAMES = 24;
+	private static final int MAX_CACHED_PATHS = 64;
+	private static final double SQRT2 = Math.sqrt(2);
+
+	/** The width of the map in build tiles */
+	private static int mapWidth;
+	/** The height of the map in build tiles */
+	private static int mapHeight;
+	private static int coarseWidth;
+	private static int coarseHeight;
+
+	/** Per tile traversal cost, rebuilt at most once per frame */
+	private static double[] fineCost;
+	/** Per coarse cell traversal cost, rebuilt at most once per frame */
+	private static double[] coarseCost;
+	private static int costFrame = -1;
+	private static InfluenceMap costSource;
+
+	// Search scratch space, shared by both levels
+	private static double[] gScore;
+	private static int[] parent;
+	private static int[] seen;
+	private static int[] closed;
+	private static int[] corridor;
+	private static int generation;
+	private static IntMinHeap openSet;
+	private static int[] coarsePath;
+
+	private static Map<Long, CachedPath> cache;
+	private static int queries;
+	private static int cacheHits;
+
+	private static class CachedPath {
+		final Deque<Position> path;
+		final int frame;
+		/** The threat layer the path was planned against */
+		final InfluenceMap threat;
+
+		CachedPath(Deque<Position> ipath, int iframe, InfluenceMap ithreat) {
+			path = ipath;
+			frame = iframe;
+			threat = ithreat;
+		}
+	}
+
+	public static void init() {
+		System.out.print("Starting AirPathFinder... ");
+		mapWidth = GameHandler.getMapWidth();
+		mapHeight = GameHandler.getMapHeight();
+		coarseWidth = (mapWidth + COARSE_SIZE - 1) / COARSE_SIZE;
+		coarseHeight = (mapHeight + COARSE_SIZE - 1) / COARSE_SIZE;
+
+		fineCost = new double[mapWidth * mapHeight];
+		coarseCost = new double[coarseWidth * coarseHeight];
+		gScore = new double[mapWidth * mapHeight];
+		parent = new int[mapWidth * mapHeight];
+		seen = new int[mapWidth * mapHeight];
+		closed = new int[mapWidth * mapHeight];
+		corridor = new int[mapWidth * mapHeight];
+		coarsePath = new int[coarseWidth * coarseHeight];
+		generation = 0;
+		openSet = new IntMinHeap(256);
+
+		cache = new LinkedHashMap<Long, CachedPath>(MAX_CACHED_PATHS, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, CachedPath> eldest) {
+				return size() > MAX_CACHED_PATHS;
+			}
+		};
+
+		registerDebugFunctions();
+		System.out.println("Success!");
+	}
+
+	/** This constructor should never be used. */
+	private AirPathFinder() {
+	}
+
+	public static Deque<Position> findAirPath(Unit unit, Position end, InfluenceMap threat) throws NoPathFoundException {
+		return findAirPath(unit.getX(), unit.getY(), end.getX(), end.getY(), threat);
+	}
+
+	/**
+	 * Find a path for a flying unit that avoids threatened tiles.
+	 *
+	 * @param startx
+	 *            starting location in pixels
+	 * @param starty
+	 *            starting location in pixels
+	 * @param endx
+	 *            ending location in pixels
+	 * @param endy
+	 *            ending location in pixels
+	 * @param threat
+	 *            the threat on each build tile
+	 * @return a list of waypoints in pixels ending at the destination. The
+	 *         caller owns the returned deque.
+	 * @throws NoPathFoundException
+	 *             if the destination is off the map
+	 */
+	public static Deque<Position> findAirPath(int startx, int starty, int endx, int endy, InfluenceMap threat)
+			throws NoPathFoundException {
+		return findAirPath(startx, starty, endx, endy, threat, true);
+	}
+
+	/**
+	 * @param useCache
+	 *            whether to look the path up in the cache, store it there and
+	 *            count the query. Debug queries leave the cache alone.
+	 * @see #findAirPath(int, int, int, int, InfluenceMap)
+	 */
+	private static Deque<Position> findAirPath(int startx, int starty, int endx, int endy, InfluenceMap threat,
+			boolean useCache) throws NoPathFoundException {
+		int endTx = endx / 32;
+		int endTy = endy / 32;
+		if (endx < 0 || endy < 0 || endTx >= mapWidth || endTy >= mapHeight) {
+			throw new NoPathFoundException();
+		}
+		int startTx = Math.min(Math.max(startx / 32, 0), mapWidth - 1);
+		int startTy = Math.min(Math.max(starty / 32, 0), mapHeight - 1);
+
+		// Paths are shared by everything starting in the same coarse cell and
+		// avoiding the same threat layer
+		final int frame = GameHandler.getFrameCount();
+		final int startCoarse = (startTx / COARSE_SIZE) + (startTy / COARSE_SIZE) * coarseWidth;
+		final long key = ((long) startCoarse << 32) | ((endTx + endTy * mapWidth) & 0xFFFFFFFFL);
+		if (useCache) {
+			queries++;
+		}
+		CachedPath cached = useCache ? cache.get(key) : null;
+		if (cached != null && cached.threat == threat && frame - cached.frame < PATH_CACHE_FRAMES) {
+			cacheHits++;
+			return trimToStart(new ArrayDeque<>(cached.path), startx, starty);
+		}
+
+		updateCosts(threat, frame);
+
+		// Coarse search picks the corridor
+		int coarseGoal = (endTx / COARSE_SIZE) + (endTy / COARSE_SIZE) * coarseWidth;
+		generation++;
+		if (!search(coarseCost, coarseWidth, coarseHeight, startCoarse, coarseGoal, false)) {
+			throw new NoPathFoundException();
+		}
+		int coarseLength = 0;
+		for (int c = coarseGoal; c != -1; c = parent[c]) {
+			coarsePath[coarseLength++] = c;
+		}
+		generation++;
+		final int corridorGeneration = generation;
+		for (int i = 0; i < coarseLength; i++) {
+			markCorridor(coarsePath[i] % coarseWidth, coarsePath[i] / coarseWidth, corridorGeneration);
+		}
+
+		// Fine search inside the corridor
+		int fineStart = startTx + startTy * mapWidth;
+		int fineGoal = endTx + endTy * mapWidth;
+		generation++;
+		if (!search(fineCost, mapWidth, mapHeight, fineStart, fineGoal, true)) {
+			throw new NoPathFoundException();
+		}
+
+		Deque<Position> path = reconstructPath(fineGoal, endx, endy);
+		if (!useCache) {
+			return path;
+		}
+		cache.put(key, new CachedPath(path, frame, threat));
+		return new ArrayDeque<>(path);
+	}
+
+	/**
+	 * Rebuild the flattened cost grids if the threat map has not been read yet
+	 * this frame.
+	 */
+	private static void updateCosts(InfluenceMap threat, int frame) {
+		if (frame == costFrame && threat == costSource) {
+			return;
+		}
+		costFrame = frame;
+		costSource = threat;
+		Arrays.fill(coarseCost, 0);
+		// The threat map has the same row-major layout as the cost grid
+		final float[] values = threat.getValues();
+		for (int ty = 0; ty < mapHeight; ty++) {
+			for (int tx = 0; tx < mapWidth; tx++) {
+				double c = 1 + THREAT_WEIGHT * values[tx + ty * mapWidth];
+				fineCost[tx + ty * mapWidth] = c;
+				coarseCost[tx / COARSE_SIZE + (ty / COARSE_SIZE) * coarseWidth] += c;
+			}
+		}
+		// Average over the block, expressed per coarse cell of distance
+		for (int i = 0; i < coarseCost.length; i++) {
+			coarseCost[i] /= COARSE_SIZE;
+		}
+	}
+
+	private static void markCorridor(int cx, int cy, int gen) {
+		int fromX = Math.max(cx - CORRIDOR_RADIUS, 0) * COARSE_SIZE;
+		int toX = Math.min((cx + CORRIDOR_RADIUS + 1) * COARSE_SIZE, mapWidth);
+		int fromY = Math.max(cy - CORRIDOR_RADIUS, 0) * COARSE_SIZE;
+		int toY = Math.min((cy + CORRIDOR_RADIUS + 1) * COARSE_SIZE, mapHeight);
+		for (int x = fromX; x < toX; x++) {
+			for (int y = fromY; y < toY; y++) {
+				corridor[x + y * mapWidth] = gen;
+			}
+		}
+	}
+
+	/**
+	 * An 8-connected A* over a flattened cost grid. The result is left in
+	 * {@link #parent}.
+	 *
+	 * @param restricted
+	 *            if true, only cells marked in {@link #corridor} by the previous
+	 *            generation are expanded
+	 * @return <b>true</b> if the goal was reached
+	 */
+	private static boolean search(double[] cost, int width, int height, int start, int goal, boolean restricted) {
+		final int goalX = goal % width;
+		final int goalY = goal / width;
+		final int corridorGeneration = generation - 1;
+		openSet.clear();
+		gScore[start] = 0;
+		parent[start] = -1;
+		seen[start] = generation;
+		openSet.push(start, octile(start % width, start / width, goalX, goalY));
+
+		while (!openSet.isEmpty()) {
+			int current = openSet.pop();
+			if (closed[current] == generation) {
+				continue;
+			}
+			closed[current] = generation;
+			if (current == goal) {
+				return true;
+			}
+			int x = current % width;
+			int y = current / width;
+			for (int dx = -1; dx <= 1; dx++) {
+				for (int dy = -1; dy <= 1; dy++) {
+					int nx = x + dx;
+					int ny = y + dy;
+					if ((dx == 0 && dy == 0) || nx < 0 || ny < 0 || nx >= width || ny >= height) {
+						continue;
+					}
+					int neighbor = nx + ny * width;
+					if (closed[neighbor] == generation || (restricted && corridor[neighbor] != corridorGeneration)) {
+						continue;
+					}
+					double step = (dx != 0 && dy != 0) ? SQRT2 : 1;
+					double g = gScore[current] + step * (cost[current] + cost[neighbor]) / 2;
+					if (seen[neighbor] != generation || g < gScore[neighbor]) {
+						seen[neighbor] = generation;
+						gScore[neighbor] = g;
+						parent[neighbor] = current;
+						openSet.push(neighbor, g + octile(nx, ny, goalX, goalY));
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	private static double octile(int x1, int y1, int x2, int y2) {
+		int dx = Math.abs(x1 - x2);
+		int dy = Math.abs(y1 - y2);
+		return Math.max(dx, dy) + (SQRT2 - 1) * Math.min(dx, dy);
+	}
+
+	/**
+	 * Walk back up the fine search tree, keeping only the tiles where the
+	 * direction of travel changes.
+	 */
+	private static Deque<Position> reconstructPath(int goal, int endx, int endy) {
+		Deque<Position> path = new ArrayDeque<>();
+		path.push(new Position(endx, endy));
+		int previousDx = 0;
+		int previousDy = 0;
+		int n = goal;
+		while (parent[n] != -1) {
+			int p = parent[n];
+			int dx = n % mapWidth - p % mapWidth;
+			int dy = n / mapWidth - p / mapWidth;
+			if ((dx != previousDx || dy != previousDy) && n != goal) {
+				path.push(new Position((n % mapWidth) * 32 + 16, (n / mapWidth) * 32 + 16));
+			}
+			previousDx = dx;
+			previousDy = dy;
+			n = p;
+		}
+		return path;
+	}
+
+	/**
+	 * A cached path may have been planned from elsewhere in the same coarse
+	 * cell. Drop waypoints until the closest one to the actual start.
+	 */
+	private static Deque<Position> trimToStart(Deque<Position> path, int startx, int starty) {
+		double closest = Double.MAX_VALUE;
+		int closestIndex = 0;
+		int i = 0;
+		for (Position p : path) {
+			double d = p.getDistance(startx, starty);
+			if (d < closest) {
+				closest = d;
+				closestIndex = i;
+			}
+			// Only look near the front of the path
+			if (++i > COARSE_SIZE * 2) {
+				break;
+			}
+		}
+		for (i = 0; i < closestIndex && path.size() > 1; i++) {
+			path.remove();
+		}
+		return path;
+	}
+
+	private static void registerDebugFunctions() {
+		DebugManager.createDebugModule("airpath").setDraw(() -> {
+			for (Unit u : GameHandler.getSelectedUnits()) {
+				// Nothing to draw until a flyer has asked for a path
+				if (!u.getType().isFlyer() || costSource == null) {
+					continue;
+				}
+				try {
+					Position previous = u.getPosition();
+					final Position mouse = GameHandler.getMousePositionOnMap();
+					for (Position w : findAirPath(u.getX(), u.getY(), mouse.getX(), mouse.getY(),
+							costSource, false)) {
+						DrawEngine.drawArrowMap(previous.getX(), previous.getY(), w.getX(), w.getY(), Color.Cyan);
+						previous = w;
+					}
+				} catch (NoPathFoundException e) {
+					e.printStackTrace();
+				}
+			}
+			DrawEngine.drawTextScreen(400, 110, "Air paths: " + queries + " (" + cacheHits + " cached)");
+		});
+	}
+}
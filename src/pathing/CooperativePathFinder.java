@@ -0,0 +1,283 @@
+package pathing;
+
+import bwapi.Position;
+import bwapi.UnitType;
+import gamestructure.UnitTypeTable;
+
+/**
+ * Windowed hierarchical cooperative A* (WHCA*) for ground units. Each unit
+ * plans only the next {@link #WINDOW} steps of its route through space and
+ * time, avoiding the walk tiles other units have reserved in a shared
+ * {@link ReservationTable}, and then reserves its own steps. Units may wait in
+ * place to let others through. The remainder of the route comes from the
+ * regular ground path, whose waypoint a window's length ahead is used as the
+ * goal.<br>
+ * The search is confined to a box of {@link #WINDOW} walk tiles around the
+ * unit and a fixed number of expansions, so the cost per unit per replan is
+ * bounded no matter how far away the destination is.
+ *
+ * @author wesley
+ *
+ */
+public final class CooperativePathFinder {
+	/** How many steps ahead each unit plans and reserves */
+	public static final int WINDOW = 16;
+	/** Frames per step, which is about how long a unit takes to cross a walk tile */
+	public static final int STEP_FRAMES = 2;
+	/** Steps after which a plan is redone, before the window runs out */
+	public static final int REPLAN_STEPS = WINDOW / 2;
+	/** The most states examined per search */
+	private static final int MAX_EXPANSIONS = 600;
+	/** The cost of waiting a step anywhere other than the goal */
+	private static final double WAIT_COST = 1;
+	private static final double SQRT2 = Math.sqrt(2);
+	/** The width of the search box in walk tiles */
+	private static final int SIZE = 2 * WINDOW + 1;
+	private static final int STATES = SIZE * SIZE * (WINDOW + 1);
+
+	// Waiting first so that ties prefer staying put over moving sideways
+	private static final int[] DX = { 0, 1, -1, 0, 0, 1, 1, -1, -1 };
+	private static final int[] DY = { 0, 0, 0, 1, -1, 1, -1, 1, -1 };
+
+	private static final double[] gScore = new double[STATES];
+	private static final int[] parent = new int[STATES];
+	private static final int[] seen = new int[STATES];
+	private static final int[] closed = new int[STATES];
+	private static int generation = 0;
+	private static final IntMinHeap openSet = new IntMinHeap(256);
+
+	/** The number of searches that ran out of expansions */
+	private static int truncatedSearches = 0;
+	private static int searches = 0;
+
+	/**
+	 * A reserved plan for one unit: its position at each step, starting from
+	 * where it was when the plan was made.
+	 */
+	public static final class Plan {
+		/** The position of the unit's center at each step */
+		public final Position[] waypoints;
+		/** The slot of the first waypoint */
+		public final int startSlot;
+		/** The owner the reservations were made for */
+		private final int owner;
+		/** Reserved walk tiles as x, y, slot triples */
+		private final int[] reservations;
+		private final int reservationCount;
+
+		private Plan(Position[] iwaypoints, int istartSlot, int iowner, int[] ireservations, int ireservationCount) {
+			waypoints = iwaypoints;
+			startSlot = istartSlot;
+			owner = iowner;
+			reservations = ireservations;
+			reservationCount = ireservationCount;
+		}
+
+		/**
+		 * @return the waypoint the unit should be at on the given frame,
+		 *         clamped to the end of the plan
+		 */
+		public Position getWaypoint(int frame) {
+			int step = frame / STEP_FRAMES - startSlot;
+			return waypoints[Math.max(0, Math.min(step, waypoints.length - 1))];
+		}
+
+		/** @return how many steps of the plan have elapsed */
+		public int getElapsedSteps(int frame) {
+			return frame / STEP_FRAMES - startSlot;
+		}
+	}
+
+	/** This constructor should never be used. */
+	private CooperativePathFinder() {
+	}
+
+	/**
+	 * Plan and reserve the next window of a unit's route. Any previous plan by
+	 * the same unit is released first.
+	 *
+	 * @param table
+	 *            the reservations shared by the cooperating units
+	 * @param owner
+	 *            a unique id for the unit, such as its unit id
+	 * @param previous
+	 *            the unit's previous plan, or null
+	 * @param startx
+	 *            the unit's position in pixels
+	 * @param starty
+	 *            the unit's position in pixels
+	 * @param goalx
+	 *            where to head towards, in pixels
+	 * @param goaly
+	 *            where to head towards, in pixels
+	 * @param unitType
+	 *            the unit type used to determine clearances
+	 * @param frame
+	 *            the current frame
+	 * @return the new plan
+	 * @throws InvalidStartNodeException
+	 *             if the start node is too far from any valid ground position
+	 *             for this unit
+	 */
+	public static Plan findPath(ReservationTable table, int owner, Plan previous, int startx, int starty, int goalx,
+			int goaly, UnitType unitType, int frame) throws InvalidStartNodeException {
+		release(table, previous);
+		final Node startNode = PathFinder.findClosestWalkableNode(startx / 8, starty / 8, unitType);
+		final int clearance = PathFinder.requiredClearance(unitType);
+		final int startSlot = frame / STEP_FRAMES;
+		final int[] cells = search(table, owner, startNode.wx, startNode.wy, goalx / 8, goaly / 8, clearance,
+				startSlot);
+
+		// Reserve the footprint of the unit at every step, and keep the last
+		// tile until the end of the window so others go around a unit that
+		// has arrived
+		final int steps = cells.length / 2;
+		final int[] reservations = new int[(WINDOW + 1) * clearance * clearance * 3];
+		int reservationCount = 0;
+		final Position[] waypoints = new Position[steps];
+		final int halfWidth = UnitTypeTable.getWidth(unitType) / 2;
+		final int halfHeight = UnitTypeTable.getHeight(unitType) / 2;
+		for (int t = 0; t <= WINDOW; t++) {
+			final int i = Math.min(t, steps - 1);
+			final int wx = cells[i * 2];
+			final int wy = cells[i * 2 + 1];
+			if (t < steps) {
+				waypoints[t] = new Position(wx * 8 + halfWidth, wy * 8 + halfHeight);
+			}
+			for (int dx = 0; dx < clearance; dx++) {
+				for (int dy = 0; dy < clearance; dy++) {
+					if (table.reserve(wx + dx, wy + dy, startSlot + t, owner)) {
+						reservations[reservationCount++] = wx + dx;
+						reservations[reservationCount++] = wy + dy;
+						reservations[reservationCount++] = startSlot + t;
+					}
+				}
+			}
+		}
+		return new Plan(waypoints, startSlot, owner, reservations, reservationCount);
+	}
+
+	/** Release every reservation made for a plan. */
+	public static void release(ReservationTable table, Plan plan) {
+		if (plan == null) {
+			return;
+		}
+		for (int i = 0; i < plan.reservationCount; i += 3) {
+			table.release(plan.reservations[i], plan.reservations[i + 1], plan.reservations[i + 2], plan.owner);
+		}
+	}
+
+	/**
+	 * The space-time search itself. States are (walk tile, step) pairs inside
+	 * a box around the start. The search finishes when it reaches the end of
+	 * the window or the goal. If it runs out of expansions, it settles for the
+	 * state closest to the goal.
+	 *
+	 * @return the walk tile at each step as x, y pairs, starting from the start
+	 */
+	static int[] search(ReservationTable table, int owner, int sx, int sy, int gx, int gy, int clearance,
+			int startSlot) {
+		searches++;
+		table.setNow(startSlot);
+		generation++;
+		openSet.clear();
+
+		final int origin = WINDOW;
+		final int startIndex = origin * SIZE + origin;
+		seen[startIndex] = generation;
+		gScore[startIndex] = 0;
+		parent[startIndex] = -1;
+		openSet.push(startIndex, Math.hypot(gx - sx, gy - sy));
+
+		int done = -1;
+		int best = startIndex;
+		double bestDistance = Double.MAX_VALUE;
+		int expansions = 0;
+		while (!openSet.isEmpty()) {
+			final int current = openSet.pop();
+			if (closed[current] == generation) {
+				continue;
+			}
+			closed[current] = generation;
+			final int lx = current % SIZE;
+			final int ly = current / SIZE % SIZE;
+			final int t = current / (SIZE * SIZE);
+			final int wx = sx - origin + lx;
+			final int wy = sy - origin + ly;
+			final boolean atGoal = wx == gx && wy == gy;
+			if (t == WINDOW || atGoal) {
+				done = current;
+				break;
+			}
+			final double distance = Math.hypot(gx - wx, gy - wy);
+			if (distance < bestDistance) {
+				bestDistance = distance;
+				best = current;
+			}
+			if (++expansions > MAX_EXPANSIONS) {
+				truncatedSearches++;
+				break;
+			}
+
+			for (int a = 0; a < DX.length; a++) {
+				final int nx = wx + DX[a];
+				final int ny = wy + DY[a];
+				if (nx < 0 || ny < 0 || nx >= PathFinder.walkableNodes.length
+						|| ny >= PathFinder.walkableNodes[0].length
+						|| PathFinder.walkableNodes[nx][ny].clearance < clearance) {
+					continue;
+				}
+				// Don't step into a tile someone else is just leaving either,
+				// which would let two units pass through each other
+				if (isFootprintReserved(table, nx, ny, clearance, startSlot + t + 1, owner)
+						|| a != 0 && isFootprintReserved(table, nx, ny, clearance, startSlot + t, owner)) {
+					continue;
+				}
+				final int next = ((t + 1) * SIZE + ly + DY[a]) * SIZE + lx + DX[a];
+				if (closed[next] == generation) {
+					continue;
+				}
+				final double cost = a == 0 ? (atGoal ? 0 : WAIT_COST) : (DX[a] != 0 && DY[a] != 0 ? SQRT2 : 1);
+				final double g = gScore[current] + cost;
+				if (seen[next] != generation || g < gScore[next]) {
+					seen[next] = generation;
+					gScore[next] = g;
+					parent[next] = current;
+					openSet.push(next, g + Math.hypot(gx - nx, gy - ny));
+				}
+			}
+		}
+		if (done == -1) {
+			done = best;
+		}
+
+		final int steps = done / (SIZE * SIZE) + 1;
+		final int[] cells = new int[steps * 2];
+		for (int s = done; s != -1; s = parent[s]) {
+			final int t = s / (SIZE * SIZE);
+			cells[t * 2] = sx - origin + s % SIZE;
+			cells[t * 2 + 1] = sy - origin + s / SIZE % SIZE;
+		}
+		return cells;
+	}
+
+	private static boolean isFootprintReserved(ReservationTable table, int wx, int wy, int clearance, int slot,
+			int owner) {
+		for (int dx = 0; dx < clearance; dx++) {
+			for (int dy = 0; dy < clearance; dy++) {
+				if (table.isReserved(wx + dx, wy + dy, slot, owner)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	public static int getSearches() {
+		return searches;
+	}
+
+	public static int getTruncatedSearches() {
+		return truncatedSearches;
+	}
+}
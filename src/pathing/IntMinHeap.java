@@ -0,0 +1,98 @@
+package pathing;
+
+import java.util.Arrays;
+
+/**
+ * A binary min-heap of integer node indices keyed by a double priority. Used by
+ * the grid searches so that the open set does not allocate a wrapper object
+ * per push. Decrease-key is not supported; callers push duplicates and skip
+ * stale entries when they are popped.
+ *
+ * @author wesley
+ *
+ */
+public final class IntMinHeap {
+	private int[] nodes;
+	private double[] keys;
+	private int size;
+
+	public IntMinHeap(int initialCapacity) {
+		nodes = new int[Math.max(initialCapacity, 16)];
+		keys = new double[nodes.length];
+		size = 0;
+	}
+
+	public void push(int node, double key) {
+		if (size == nodes.length) {
+			nodes = Arrays.copyOf(nodes, size * 2);
+			keys = Arrays.copyOf(keys, size * 2);
+		}
+		// Sift up
+		int i = size++;
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (keys[parent] <= key) {
+				break;
+			}
+			nodes[i] = nodes[parent];
+			keys[i] = keys[parent];
+			i = parent;
+		}
+		nodes[i] = node;
+		keys[i] = key;
+	}
+
+	/** @return the key of the smallest element without removing it */
+	public double peekKey() {
+		return keys[0];
+	}
+
+	/** @return the node of the smallest element without removing it */
+	public int peek() {
+		return nodes[0];
+	}
+
+	/**
+	 * Removes the smallest element.
+	 *
+	 * @return the node index of the removed element
+	 */
+	public int pop() {
+		int top = nodes[0];
+		size--;
+		if (size > 0) {
+			int node = nodes[size];
+			double key = keys[size];
+			// Sift down
+			int i = 0;
+			int half = size >>> 1;
+			while (i < half) {
+				int child = 2 * i + 1;
+				if (child + 1 < size && keys[child + 1] < keys[child]) {
+					child++;
+				}
+				if (key <= keys[child]) {
+					break;
+				}
+				nodes[i] = nodes[child];
+				keys[i] = keys[child];
+				i = child;
+			}
+			nodes[i] = node;
+			keys[i] = key;
+		}
+		return top;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public void clear() {
+		size = 0;
+	}
+}
@@ -0,0 +1,372 @@
+package pathing;
+
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import bwapi.Color;
+import bwta.BWTA;
+import bwta.BaseLocation;
+import gamestructure.GameHandler;
+import gamestructure.debug.DebugManager;
+import gamestructure.debug.DrawEngine;
+
+/**
+ * An ALT (A*, landmarks, triangle inequality) heuristic for ground paths. The
+ * ground distance from a handful of landmarks to every walk tile is
+ * precomputed. For any landmark L, |d(L, goal) - d(L, n)| is a lower bound on
+ * the distance from n to the goal, which is far tighter than the straight
+ * line distance when the path has to detour around cliffs.<br>
+ * The distance fields are computed for the smallest possible unit, so they are
+ * still a lower bound for larger units. They are recomputed on a background
+ * thread whenever buildings change the walkable map. A new building only makes
+ * ground distances longer, so the old fields stay a lower bound until then,
+ * but a removed building can make them shorter. Until the fields include every
+ * removed building, searches fall back to the straight line distance.
+ *
+ * @author wesley
+ *
+ */
+public final class LandmarkHeuristic {
+	/** The most landmarks that will be placed */
+	private static final int MAX_LANDMARKS = 16;
+	/** The number of landmarks consulted during a single search */
+	private static final int ACTIVE_LANDMARKS = 4;
+	/** Distances are stored in fixed point with this many steps per walk tile */
+	private static final int SCALE = 4;
+	/** The stored value of a walk tile the landmark cannot reach */
+	private static final int UNREACHABLE = 0xFFFF;
+	/** How far to look for walkable ground around a landmark, in walk tiles */
+	private static final int MAX_LANDMARK_SEARCH = 64;
+	/** Frames to wait after the last building change before refreshing */
+	private static final int REFRESH_DELAY_FRAMES = 24;
+	private static final double SQRT2 = Math.sqrt(2);
+
+	private static int mapWalkWidth;
+	private static int mapWalkHeight;
+	/** Landmark locations as walk tile indices (wx + wy * mapWalkWidth) */
+	private static int[] landmarks;
+	/**
+	 * One distance field per landmark, indexed by walk tile. Values are unsigned
+	 * and in 1/{@link #SCALE} walk tiles. Replaced wholesale by the background
+	 * thread, so readers must only dereference it once per search.
+	 */
+	private static volatile short[][] fields;
+	/** Incremented every time a new set of fields is published */
+	private static volatile int fieldGeneration = 0;
+	/** The number of buildings removed from the walkable map so far */
+	private static int removals = 0;
+	/**
+	 * The value of {@link #removals} when the published fields were computed.
+	 * Written after {@link #fields}, so readers must read it first.
+	 */
+	private static volatile int fieldRemovals = 0;
+
+	private static ExecutorService refresher;
+	private static volatile boolean refreshRunning = false;
+	private static boolean dirty = false;
+	private static int lastChangeFrame;
+
+	// The fields and landmarks chosen for the search in progress
+	private static short[][] searchFields;
+	private static final int[] active = new int[ACTIVE_LANDMARKS];
+	private static int activeCount = 0;
+	private static final int[] goalDistances = new int[ACTIVE_LANDMARKS];
+	private static final int[] bounds = new int[ACTIVE_LANDMARKS];
+
+	// Node expansion statistics against the current heuristic
+	private static int statsGeneration = -1;
+	private static long searches = 0;
+	private static long expansions = 0;
+	private static long lastExpansions = 0;
+	/** Average expansions per search under the previous heuristic */
+	private static long previousAverage = 0;
+
+	public static void init() {
+		System.out.print("Starting LandmarkHeuristic... ");
+		mapWalkWidth = GameHandler.getMapWalkWidth();
+		mapWalkHeight = GameHandler.getMapWalkHeight();
+		landmarks = chooseLandmarks();
+		refresher = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "LandmarkHeuristic");
+			t.setDaemon(true);
+			return t;
+		});
+		startRefresh();
+
+		registerDebugFunctions();
+		System.out.println("Success!");
+	}
+
+	/** This constructor should never be used. */
+	private LandmarkHeuristic() {
+	}
+
+	/**
+	 * Place landmarks at the map corners and at base locations. Base locations
+	 * are picked farthest-first so the landmarks spread around the map.
+	 */
+	private static int[] chooseLandmarks() {
+		List<Point> candidates = new ArrayList<>();
+		for (BaseLocation b : BWTA.getBaseLocations()) {
+			candidates.add(new Point(b.getX() / 8, b.getY() / 8));
+		}
+		List<Point> chosen = new ArrayList<>();
+		chosen.add(new Point(0, 0));
+		chosen.add(new Point(mapWalkWidth - 1, 0));
+		chosen.add(new Point(0, mapWalkHeight - 1));
+		chosen.add(new Point(mapWalkWidth - 1, mapWalkHeight - 1));
+		while (chosen.size() < MAX_LANDMARKS && !candidates.isEmpty()) {
+			Point farthest = null;
+			double farthestDistance = -1;
+			for (Point c : candidates) {
+				double nearest = Double.MAX_VALUE;
+				for (Point l : chosen) {
+					nearest = Math.min(nearest, c.distance(l));
+				}
+				if (nearest > farthestDistance) {
+					farthestDistance = nearest;
+					farthest = c;
+				}
+			}
+			candidates.remove(farthest);
+			chosen.add(farthest);
+		}
+
+		// Move each landmark onto the nearest walkable tile
+		int[] result = new int[chosen.size()];
+		int count = 0;
+		for (Point p : chosen) {
+			int n = findNearestWalkable(Math.min(p.x, mapWalkWidth - 1), Math.min(p.y, mapWalkHeight - 1));
+			if (n >= 0) {
+				result[count++] = n;
+			}
+		}
+		return Arrays.copyOf(result, count);
+	}
+
+	/**
+	 * Search outward in square rings for a walk tile with any clearance.
+	 * 
+	 * @return the walk tile index, or -1 if there is none nearby
+	 */
+	private static int findNearestWalkable(int wx, int wy) {
+		for (int d = 0; d < MAX_LANDMARK_SEARCH; d++) {
+			for (int x = wx - d; x <= wx + d; x++) {
+				for (int y = wy - d; y <= wy + d; y++) {
+					if ((Math.abs(x - wx) == d || Math.abs(y - wy) == d) && x >= 0 && y >= 0 && x < mapWalkWidth
+							&& y < mapWalkHeight && PathFinder.walkableNodes[x][y].clearance > 0) {
+						return x + y * mapWalkWidth;
+					}
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Flag the distance fields as stale. Called whenever the walkable map
+	 * changes.
+	 *
+	 * @param opened
+	 *            whether walk tiles became walkable, which makes the fields
+	 *            unusable until they are recomputed
+	 */
+	public static void invalidate(boolean opened) {
+		if (opened) {
+			removals++;
+		}
+		dirty = true;
+		lastChangeFrame = GameHandler.getFrameCount();
+	}
+
+	/**
+	 * Start a background refresh if the walkable map changed a while ago and no
+	 * refresh is already running. The old fields are used until the new ones
+	 * are ready.
+	 */
+	public static void onFrame() {
+		if (dirty && !refreshRunning && GameHandler.getFrameCount() - lastChangeFrame >= REFRESH_DELAY_FRAMES) {
+			startRefresh();
+		}
+	}
+
+	private static void startRefresh() {
+		dirty = false;
+		refreshRunning = true;
+		// Snapshot the walkable map on this thread. The nodes are not safe to
+		// read while the game thread is searching.
+		final boolean[] walkable = new boolean[mapWalkWidth * mapWalkHeight];
+		for (int wx = 0; wx < mapWalkWidth; wx++) {
+			for (int wy = 0; wy < mapWalkHeight; wy++) {
+				walkable[wx + wy * mapWalkWidth] = PathFinder.walkableNodes[wx][wy].clearance > 0;
+			}
+		}
+		final int[] sources = landmarks.clone();
+		final int covered = removals;
+		refresher.execute(() -> {
+			try {
+				short[][] newFields = new short[sources.length][];
+				for (int l = 0; l < sources.length; l++) {
+					newFields[l] = computeField(sources[l], walkable, mapWalkWidth, mapWalkHeight);
+				}
+				fields = newFields;
+				fieldRemovals = covered;
+				fieldGeneration++;
+			} catch (Exception e) {
+				e.printStackTrace();
+			} finally {
+				refreshRunning = false;
+			}
+		});
+	}
+
+	/**
+	 * Dijkstra's algorithm from a single walk tile, with the same 8-connected
+	 * step costs as {@link PathFinder#findGroundPath}.
+	 */
+	static short[] computeField(int source, boolean[] walkable, int width, int height) {
+		final double[] distance = new double[width * height];
+		Arrays.fill(distance, Double.MAX_VALUE);
+		final IntMinHeap open = new IntMinHeap(1024);
+		distance[source] = 0;
+		open.push(source, 0);
+		while (!open.isEmpty()) {
+			double d = open.peekKey();
+			int current = open.pop();
+			if (d > distance[current]) {
+				continue;
+			}
+			int x = current % width;
+			int y = current / width;
+			for (int dx = -1; dx <= 1; dx++) {
+				for (int dy = -1; dy <= 1; dy++) {
+					int nx = x + dx;
+					int ny = y + dy;
+					if ((dx == 0 && dy == 0) || nx < 0 || ny < 0 || nx >= width || ny >= height) {
+						continue;
+					}
+					int neighbor = nx + ny * width;
+					if (!walkable[neighbor]) {
+						continue;
+					}
+					double nd = d + ((dx != 0 && dy != 0) ? SQRT2 : 1);
+					if (nd < distance[neighbor]) {
+						distance[neighbor] = nd;
+						open.push(neighbor, nd);
+					}
+				}
+			}
+		}
+
+		short[] field = new short[width * height];
+		for (int i = 0; i < field.length; i++) {
+			if (distance[i] == Double.MAX_VALUE) {
+				field[i] = (short) UNREACHABLE;
+			} else {
+				field[i] = (short) Math.min((int) (distance[i] * SCALE), UNREACHABLE - 1);
+			}
+		}
+		return field;
+	}
+
+	/**
+	 * Choose the landmarks that give the best bound between the start and the
+	 * goal. Must be called once at the start of every search that uses
+	 * {@link #estimate}.
+	 */
+	static void prepare(int startWx, int startWy, int goalWx, int goalWy) {
+		if (statsGeneration != fieldGeneration) {
+			previousAverage = searches == 0 ? 0 : expansions / searches;
+			statsGeneration = fieldGeneration;
+			searches = 0;
+			expansions = 0;
+		}
+		// Fields that predate a removed building may overestimate
+		final boolean valid = fieldRemovals == removals;
+		searchFields = fields;
+		activeCount = 0;
+		if (!valid || searchFields == null || goalWx < 0 || goalWy < 0 || goalWx >= mapWalkWidth
+				|| goalWy >= mapWalkHeight) {
+			return;
+		}
+		final int start = startWx + startWy * mapWalkWidth;
+		final int goal = goalWx + goalWy * mapWalkWidth;
+		for (int l = 0; l < searchFields.length; l++) {
+			int ds = searchFields[l][start] & 0xFFFF;
+			int dg = searchFields[l][goal] & 0xFFFF;
+			if (ds == UNREACHABLE || dg == UNREACHABLE) {
+				continue;
+			}
+			int bound = Math.abs(dg - ds);
+			// Insertion into the short list of best landmarks
+			int i = Math.min(activeCount, ACTIVE_LANDMARKS - 1);
+			if (activeCount == ACTIVE_LANDMARKS && bound <= bounds[i]) {
+				continue;
+			}
+			while (i > 0 && bounds[i - 1] < bound) {
+				bounds[i] = bounds[i - 1];
+				active[i] = active[i - 1];
+				goalDistances[i] = goalDistances[i - 1];
+				i--;
+			}
+			bounds[i] = bound;
+			active[i] = l;
+			goalDistances[i] = dg;
+			activeCount = Math.min(activeCount + 1, ACTIVE_LANDMARKS);
+		}
+	}
+
+	/**
+	 * Lower bound on the ground distance between a walk tile and the goal given
+	 * to {@link #prepare}, in walk tiles.
+	 */
+	static double estimate(int wx, int wy, int goalWx, int goalWy) {
+		double best = Point.distance(wx, wy, goalWx, goalWy);
+		final int n = wx + wy * mapWalkWidth;
+		for (int i = 0; i < activeCount; i++) {
+			int dn = searchFields[active[i]][n] & 0xFFFF;
+			if (dn == UNREACHABLE) {
+				continue;
+			}
+			// Both distances were rounded down, so allow one step of slack
+			double bound = (Math.abs(goalDistances[i] - dn) - 1) / (double) SCALE;
+			if (bound > best) {
+				best = bound;
+			}
+		}
+		return best;
+	}
+
+	/** Record how many nodes a finished search expanded. */
+	static void recordSearch(int expanded) {
+		searches++;
+		expansions += expanded;
+		lastExpansions = expanded;
+	}
+
+	private static void registerDebugFunctions() {
+		DebugManager.createDebugModule("landmarks").setDraw(() -> {
+			for (int l = 0; l < landmarks.length; l++) {
+				int x = (landmarks[l] % mapWalkWidth) * 8;
+				int y = (landmarks[l] / mapWalkWidth) * 8;
+				DrawEngine.drawCircleMap(x, y, 8, Color.Purple, true);
+				DrawEngine.drawTextMap(x + 10, y, "Landmark " + l);
+			}
+			String state = fields == null ? "not ready" : "generation " + fieldGeneration;
+			if (fieldRemovals != removals) {
+				state += ", stale";
+			}
+			if (refreshRunning) {
+				state += ", refreshing";
+			}
+			DrawEngine.drawTextScreen(400, 130, "ALT: " + state + " (" + activeCount + " active)");
+			DrawEngine.drawTextScreen(400, 140, "Expansions: " + lastExpansions + " last, "
+					+ (searches == 0 ? 0 : expansions / searches) + " avg over " + searches + " searches ("
+					+ previousAverage + " avg before)");
+		});
+	}
+}
@@ -0,0 +1,571 @@
+package pathing;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+import bwapi.Color;
+import bwapi.Position;
+import bwapi.UnitType;
+import gamestructure.GameHandler;
+import gamestructure.UnitTypeTable;
+import gamestructure.debug.DebugManager;
+import gamestructure.debug.DrawEngine;
+
+/**
+ * A navigation mesh built from the clearance values in
+ * {@link PathFinder#walkableNodes}. The walk tiles a unit of a given size can
+ * stand on are greedily merged into rectangles, which are convex polygons that
+ * can be searched instead of individual walk tiles. Paths are smoothed with the
+ * funnel algorithm over the shared edges of the rectangles.<br>
+ * There is one mesh per size class (the clearance a unit needs). When a
+ * building is added or removed, only the rectangles that overlap it are torn
+ * down and rebuilt.
+ *
+ * @author wesley
+ *
+ */
+public final class NavMesh {
+	/** The longest side of any rectangle, in walk tiles */
+	private static final int MAX_RECT_SIZE = 32;
+	/** Paths shorter than this, in walk tiles, are left to the grid search */
+	public static final int MIN_NAVMESH_DISTANCE = 64;
+
+	/** One mesh per required clearance */
+	private static final Map<Integer, NavMesh> meshes = new HashMap<>();
+
+	/** The clearance a walk tile needs for this mesh to include it */
+	private final int clearance;
+	private final int width;
+	private final int height;
+	/** The rectangle covering each walk tile, or -1 */
+	private final int[] owner;
+
+	// Rectangle storage. Right and bottom are exclusive. Dead rectangles have a
+	// left of -1 and their index is kept on the free list.
+	private int[] left;
+	private int[] top;
+	private int[] right;
+	private int[] bottom;
+	private int[][] neighbors;
+	private int rectCapacity;
+	private int rectCount;
+	private int liveRects;
+	private int[] freeRects;
+	private int freeCount;
+
+	// Search scratch space
+	private double[] gScore;
+	private double[] entryX;
+	private double[] entryY;
+	private int[] parent;
+	private int[] seen;
+	private int[] closed;
+	private int generation;
+	private final IntMinHeap openSet = new IntMinHeap(64);
+	private int[] scratch = new int[64];
+
+	/**
+	 * Get the mesh for units of the given type, building it the first time it
+	 * is asked for.
+	 */
+	public static NavMesh forType(UnitType type) {
+		return meshes.computeIfAbsent(PathFinder.requiredClearance(type), NavMesh::new);
+	}
+
+	/**
+	 * Rebuild the parts of every mesh affected by a change in walkability.
+	 * Clearance extends right and down from a walk tile, so the tiles up to one
+	 * unit size above and to the left of the change are affected too.
+	 *
+	 * @param minWx
+	 *            the left of the changed area in walk tiles, inclusive
+	 * @param minWy
+	 *            the top of the changed area in walk tiles, inclusive
+	 * @param maxWx
+	 *            the right of the changed area in walk tiles, exclusive
+	 * @param maxWy
+	 *            the bottom of the changed area in walk tiles, exclusive
+	 */
+	public static void onWalkableChange(int minWx, int minWy, int maxWx, int maxWy) {
+		for (NavMesh mesh : meshes.values()) {
+			mesh.rebuild(minWx - mesh.clearance + 1, minWy - mesh.clearance + 1, maxWx, maxWy);
+		}
+	}
+
+	NavMesh(int iclearance) {
+		clearance = iclearance;
+		width = PathFinder.walkableNodes.length;
+		height = PathFinder.walkableNodes[0].length;
+		owner = new int[width * height];
+		Arrays.fill(owner, -1);
+		growRects(256);
+		decompose(0, 0, width, height, null);
+		for (int r = 0; r < rectCount; r++) {
+			computeNeighbors(r);
+		}
+	}
+
+	private boolean fits(int wx, int wy) {
+		return PathFinder.walkableNodes[wx][wy].clearance >= clearance;
+	}
+
+	private void growRects(int capacity) {
+		rectCapacity = capacity;
+		left = Arrays.copyOf(left == null ? new int[0] : left, capacity);
+		top = Arrays.copyOf(top == null ? new int[0] : top, capacity);
+		right = Arrays.copyOf(right == null ? new int[0] : right, capacity);
+		bottom = Arrays.copyOf(bottom == null ? new int[0] : bottom, capacity);
+		neighbors = Arrays.copyOf(neighbors == null ? new int[0][] : neighbors, capacity);
+		freeRects = Arrays.copyOf(freeRects == null ? new int[0] : freeRects, capacity);
+		gScore = new double[capacity];
+		entryX = new double[capacity];
+		entryY = new double[capacity];
+		parent = new int[capacity];
+		seen = new int[capacity];
+		closed = new int[capacity];
+		generation = 0;
+	}
+
+	private int allocateRect(int l, int t, int r, int b) {
+		int id;
+		if (freeCount > 0) {
+			id = freeRects[--freeCount];
+		} else {
+			if (rectCount == rectCapacity) {
+				growRects(rectCapacity * 2);
+			}
+			id = rectCount++;
+		}
+		left[id] = l;
+		top[id] = t;
+		right[id] = r;
+		bottom[id] = b;
+		neighbors[id] = new int[0];
+		for (int x = l; x < r; x++) {
+			for (int y = t; y < b; y++) {
+				owner[x + y * width] = id;
+			}
+		}
+		liveRects++;
+		return id;
+	}
+
+	/**
+	 * Greedily cover every uncovered walk tile in the area with rectangles,
+	 * growing each one right first and then down.
+	 *
+	 * @param created
+	 *            if not null, receives the ids of the new rectangles. Its size
+	 *            is stored in element 0.
+	 * @return the list of created rectangles, which may have been reallocated
+	 */
+	private int[] decompose(int x0, int y0, int x1, int y1, int[] created) {
+		for (int y = y0; y < y1; y++) {
+			for (int x = x0; x < x1; x++) {
+				if (owner[x + y * width] != -1 || !fits(x, y)) {
+					continue;
+				}
+				int rx = x + 1;
+				while (rx < x1 && rx - x < MAX_RECT_SIZE && owner[rx + y * width] == -1 && fits(rx, y)) {
+					rx++;
+				}
+				int ry = y + 1;
+				rowLoop: while (ry < y1 && ry - y < MAX_RECT_SIZE) {
+					for (int xx = x; xx < rx; xx++) {
+						if (owner[xx + ry * width] != -1 || !fits(xx, ry)) {
+							break rowLoop;
+						}
+					}
+					ry++;
+				}
+				int id = allocateRect(x, y, rx, ry);
+				if (created != null) {
+					if (created[0] + 1 == created.length) {
+						created = Arrays.copyOf(created, created.length * 2);
+					}
+					created[++created[0]] = id;
+				}
+			}
+		}
+		return created;
+	}
+
+	/** Find every rectangle sharing an edge with the given one. */
+	private void computeNeighbors(int r) {
+		int count = 0;
+		// Left and right edges
+		for (int y = top[r]; y < bottom[r]; y++) {
+			if (left[r] > 0) {
+				count = addUnique(owner[left[r] - 1 + y * width], count);
+			}
+			if (right[r] < width) {
+				count = addUnique(owner[right[r] + y * width], count);
+			}
+		}
+		// Top and bottom edges
+		for (int x = left[r]; x < right[r]; x++) {
+			if (top[r] > 0) {
+				count = addUnique(owner[x + (top[r] - 1) * width], count);
+			}
+			if (bottom[r] < height) {
+				count = addUnique(owner[x + bottom[r] * width], count);
+			}
+		}
+		neighbors[r] = Arrays.copyOf(scratch, count);
+	}
+
+	private int addUnique(int id, int count) {
+		if (id == -1) {
+			return count;
+		}
+		for (int i = 0; i < count; i++) {
+			if (scratch[i] == id) {
+				return count;
+			}
+		}
+		if (count == scratch.length) {
+			scratch = Arrays.copyOf(scratch, count * 2);
+		}
+		scratch[count] = id;
+		return count + 1;
+	}
+
+	/**
+	 * Tear down every rectangle that overlaps the area and cover it again.
+	 * Neighbor lists are refreshed for the new rectangles and for any
+	 * rectangles that bordered the old ones.
+	 */
+	void rebuild(int x0, int y0, int x1, int y1) {
+		x0 = Math.max(x0, 0);
+		y0 = Math.max(y0, 0);
+		x1 = Math.min(x1, width);
+		y1 = Math.min(y1, height);
+
+		// Collect the affected rectangles, growing the area to contain them
+		int[] removed = new int[16];
+		int removedCount = 0;
+		int rx0 = x0, ry0 = y0, rx1 = x1, ry1 = y1;
+		for (int x = x0; x < x1; x++) {
+			for (int y = y0; y < y1; y++) {
+				int id = owner[x + y * width];
+				if (id != -1 && left[id] != -1) {
+					if (removedCount == removed.length) {
+						removed = Arrays.copyOf(removed, removedCount * 2);
+					}
+					removed[removedCount++] = id;
+					rx0 = Math.min(rx0, left[id]);
+					ry0 = Math.min(ry0, top[id]);
+					rx1 = Math.max(rx1, right[id]);
+					ry1 = Math.max(ry1, bottom[id]);
+					// Releasing the tiles now means it is only collected once
+					releaseTiles(id);
+				}
+			}
+		}
+
+		// Remember who bordered the removed rectangles
+		int[] border = new int[16];
+		int borderCount = 0;
+		for (int i = 0; i < removedCount; i++) {
+			for (int n : neighbors[removed[i]]) {
+				if (borderCount == border.length) {
+					border = Arrays.copyOf(border, borderCount * 2);
+				}
+				border[borderCount++] = n;
+			}
+		}
+		for (int i = 0; i < removedCount; i++) {
+			neighbors[removed[i]] = null;
+			left[removed[i]] = -1;
+			freeRects[freeCount++] = removed[i];
+			liveRects--;
+		}
+
+		int[] created = decompose(rx0, ry0, rx1, ry1, new int[16]);
+		for (int i = 1; i <= created[0]; i++) {
+			computeNeighbors(created[i]);
+		}
+		for (int i = 0; i < borderCount; i++) {
+			if (left[border[i]] != -1) {
+				computeNeighbors(border[i]);
+			}
+		}
+	}
+
+	/** Release the walk tiles of a rectangle without releasing its id yet. */
+	private void releaseTiles(int id) {
+		for (int x = left[id]; x < right[id]; x++) {
+			for (int y = top[id]; y < bottom[id]; y++) {
+				owner[x + y * width] = -1;
+			}
+		}
+	}
+
+	public int getRectCount() {
+		return liveRects;
+	}
+
+	/**
+	 * Find a ground path using the mesh. The result has the same form as
+	 * {@link PathFinder#findGroundPath}: pixel positions offset to the center of
+	 * the unit, starting from the start position.
+	 *
+	 * @throws NoPathFoundException
+	 *             if the destination cannot be reached
+	 * @throws InvalidStartNodeException
+	 *             if the start node is too far from any valid ground position
+	 *             for this unit
+	 */
+	public Deque<Position> findPath(int startx, int starty, int endx, int endy, UnitType unitType)
+			throws NoPathFoundException, InvalidStartNodeException {
+		Node startNode = PathFinder.findClosestWalkableNode(startx / 8, starty / 8, unitType);
+		Node endNode;
+		try {
+			endNode = PathFinder.findClosestWalkableNode(endx / 8, endy / 8, unitType);
+		} catch (InvalidStartNodeException e) {
+			throw new NoPathFoundException();
+		}
+		double[] points = findPath(startNode.wx, startNode.wy, endNode.wx, endNode.wy);
+		Deque<Position> path = new ArrayDeque<>();
+		final int halfWidth = UnitTypeTable.getWidth(unitType) / 2;
+		final int halfHeight = UnitTypeTable.getHeight(unitType) / 2;
+		for (int i = 0; i < points.length; i += 2) {
+			path.add(new Position((int) ((points[i] - 0.5) * 8) + halfWidth,
+					(int) ((points[i + 1] - 0.5) * 8) + halfHeight));
+		}
+		return path;
+	}
+
+	/**
+	 * Find a path between two walk tiles this mesh covers.
+	 *
+	 * @return the corners of the path in walk tile coordinates, as x and y
+	 *         pairs. A walk tile's center is at +0.5.
+	 * @throws NoPathFoundException
+	 *             if the destination cannot be reached
+	 */
+	double[] findPath(int startWx, int startWy, int endWx, int endWy) throws NoPathFoundException {
+		final int startRect = owner[startWx + startWy * width];
+		final int goalRect = owner[endWx + endWy * width];
+		if (startRect == -1 || goalRect == -1) {
+			throw new NoPathFoundException();
+		}
+		final double sx = startWx + 0.5;
+		final double sy = startWy + 0.5;
+		final double ex = endWx + 0.5;
+		final double ey = endWy + 0.5;
+
+		// A* over the rectangles, entering each one at the closest point of
+		// the shared edge
+		generation++;
+		openSet.clear();
+		gScore[startRect] = 0;
+		entryX[startRect] = sx;
+		entryY[startRect] = sy;
+		parent[startRect] = -1;
+		seen[startRect] = generation;
+		openSet.push(startRect, Math.hypot(ex - sx, ey - sy));
+		final double[] portal = new double[4];
+		boolean found = false;
+		while (!openSet.isEmpty()) {
+			int current = openSet.pop();
+			if (closed[current] == generation) {
+				continue;
+			}
+			closed[current] = generation;
+			if (current == goalRect) {
+				found = true;
+				break;
+			}
+			for (int n : neighbors[current]) {
+				if (closed[n] == generation) {
+					continue;
+				}
+				getPortal(current, n, portal);
+				// Closest point on the portal to where we entered this
+				// rectangle
+				double px = Math.min(Math.max(entryX[current], Math.min(portal[0], portal[2])),
+						Math.max(portal[0], portal[2]));
+				double py = Math.min(Math.max(entryY[current], Math.min(portal[1], portal[3])),
+						Math.max(portal[1], portal[3]));
+				double g = gScore[current] + Math.hypot(px - entryX[current], py - entryY[current]);
+				if (seen[n] != generation || g < gScore[n]) {
+					seen[n] = generation;
+					gScore[n] = g;
+					entryX[n] = px;
+					entryY[n] = py;
+					parent[n] = current;
+					openSet.push(n, g + Math.hypot(ex - px, ey - py));
+				}
+			}
+		}
+		if (!found) {
+			throw new NoPathFoundException();
+		}
+
+		// Walk back up the tree to get the corridor of rectangles
+		int corridorLength = 0;
+		for (int r = goalRect; r != -1; r = parent[r]) {
+			corridorLength++;
+		}
+		int[] corridor = new int[corridorLength];
+		for (int r = goalRect, i = corridorLength - 1; r != -1; r = parent[r], i--) {
+			corridor[i] = r;
+		}
+
+		// Portals as left and right points, with the start and end as
+		// degenerate portals
+		double[] lefts = new double[(corridorLength + 1) * 2];
+		double[] rights = new double[(corridorLength + 1) * 2];
+		lefts[0] = rights[0] = sx;
+		lefts[1] = rights[1] = sy;
+		for (int i = 1; i < corridorLength; i++) {
+			getPortal(corridor[i - 1], corridor[i], portal);
+			lefts[i * 2] = portal[0];
+			lefts[i * 2 + 1] = portal[1];
+			rights[i * 2] = portal[2];
+			rights[i * 2 + 1] = portal[3];
+		}
+		lefts[corridorLength * 2] = rights[corridorLength * 2] = ex;
+		lefts[corridorLength * 2 + 1] = rights[corridorLength * 2 + 1] = ey;
+		return stringPull(lefts, rights, corridorLength + 1);
+	}
+
+	/**
+	 * The shared edge of two neighboring rectangles, as seen when walking from
+	 * the first into the second. The left point (relative to the direction of
+	 * travel) goes in portal[0..1] and the right point in portal[2..3]. The
+	 * endpoints are pulled in to the centers of the outermost shared walk
+	 * tiles.
+	 */
+	private void getPortal(int from, int to, double[] portal) {
+		if (right[from] == left[to] || left[from] == right[to]) {
+			// Vertical edge
+			double x = right[from] == left[to] ? right[from] : left[from];
+			double y0 = Math.max(top[from], top[to]) + 0.5;
+			double y1 = Math.min(bottom[from], bottom[to]) - 0.5;
+			boolean east = right[from] == left[to];
+			portal[0] = x;
+			portal[1] = east ? y1 : y0;
+			portal[2] = x;
+			portal[3] = east ? y0 : y1;
+		} else {
+			// Horizontal edge
+			double y = bottom[from] == top[to] ? bottom[from] : top[from];
+			double x0 = Math.max(left[from], left[to]) + 0.5;
+			double x1 = Math.min(right[from], right[to]) - 0.5;
+			boolean south = bottom[from] == top[to];
+			portal[0] = south ? x0 : x1;
+			portal[1] = y;
+			portal[2] = south ? x1 : x0;
+			portal[3] = y;
+		}
+	}
+
+	/** Twice the signed area of the triangle a, b, c. */
+	private static double triarea2(double ax, double ay, double bx, double by, double cx, double cy) {
+		return (cx - ax) * (by - ay) - (bx - ax) * (cy - ay);
+	}
+
+	/**
+	 * The simple stupid funnel algorithm. Tightens a path through a list of
+	 * portals to the shortest path, which only turns at portal endpoints.
+	 */
+	private static double[] stringPull(double[] lefts, double[] rights, int count) {
+		double[] points = new double[count * 2 + 2];
+		int pointCount = 0;
+		double apexX = lefts[0], apexY = lefts[1];
+		double leftX = lefts[0], leftY = lefts[1];
+		double rightX = rights[0], rightY = rights[1];
+		int apexIndex = 0, leftIndex = 0, rightIndex = 0;
+		points[pointCount++] = apexX;
+		points[pointCount++] = apexY;
+
+		for (int i = 1; i < count; i++) {
+			double lx = lefts[i * 2], ly = lefts[i * 2 + 1];
+			double rx = rights[i * 2], ry = rights[i * 2 + 1];
+
+			// Try to narrow the funnel from the right
+			if (triarea2(apexX, apexY, rightX, rightY, rx, ry) <= 0) {
+				if ((apexX == rightX && apexY == rightY) || triarea2(apexX, apexY, leftX, leftY, rx, ry) > 0) {
+					rightX = rx;
+					rightY = ry;
+					rightIndex = i;
+				} else {
+					// Right crossed over left, so the left point is a corner
+					apexX = leftX;
+					apexY = leftY;
+					apexIndex = leftIndex;
+					points[pointCount++] = apexX;
+					points[pointCount++] = apexY;
+					rightX = leftX = apexX;
+					rightY = leftY = apexY;
+					leftIndex = rightIndex = apexIndex;
+					i = apexIndex;
+					continue;
+				}
+			}
+
+			// Try to narrow the funnel from the left
+			if (triarea2(apexX, apexY, leftX, leftY, lx, ly) >= 0) {
+				if ((apexX == leftX && apexY == leftY) || triarea2(apexX, apexY, rightX, rightY, lx, ly) < 0) {
+					leftX = lx;
+					leftY = ly;
+					leftIndex = i;
+				} else {
+					// Left crossed over right, so the right point is a corner
+					apexX = rightX;
+					apexY = rightY;
+					apexIndex = rightIndex;
+					points[pointCount++] = apexX;
+					points[pointCount++] = apexY;
+					rightX = leftX = apexX;
+					rightY = leftY = apexY;
+					leftIndex = rightIndex = apexIndex;
+					i = apexIndex;
+					continue;
+				}
+			}
+		}
+		double endX = lefts[(count - 1) * 2];
+		double endY = lefts[(count - 1) * 2 + 1];
+		if (points[pointCount - 2] != endX || points[pointCount - 1] != endY) {
+			points[pointCount++] = endX;
+			points[pointCount++] = endY;
+		}
+		return Arrays.copyOf(points, pointCount);
+	}
+
+	static void registerDebugFunctions() {
+		DebugManager.createDebugModule("navmesh").setDraw(() -> {
+			int y = 160;
+			for (NavMesh mesh : meshes.values()) {
+				DrawEngine.drawTextScreen(400, y, "Navmesh " + mesh.clearance + ": " + mesh.liveRects + " rectangles");
+				y += 10;
+			}
+			// Outline the mesh of the smallest units
+			NavMesh mesh = meshes.get(1);
+			if (mesh != null) {
+				for (int r = 0; r < mesh.rectCount; r++) {
+					if (mesh.left[r] != -1) {
+						DrawEngine.drawBoxMap(mesh.left[r] * 8, mesh.top[r] * 8, mesh.right[r] * 8,
+								mesh.bottom[r] * 8, Color.Grey, false);
+					}
+				}
+			}
+		}).addCommand("path", (c) -> {
+			for (bwapi.Unit u : GameHandler.getSelectedUnits()) {
+				Position m = GameHandler.getMousePositionOnMap();
+				try {
+					GameHandler.sendText("Navmesh path: " + forType(u.getType())
+							.findPath(u.getX(), u.getY(), m.getX(), m.getY(), u.getType()).size() + " waypoints");
+				} catch (NoPathFoundException | InvalidStartNodeException e) {
+					GameHandler.sendText("Navmesh path: none");
+				}
+			}
+		});
+	}
+}
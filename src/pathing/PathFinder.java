@@ -22,6 +22,7 @@ import bwta.BWTA;
 import bwta.Chokepoint;
 import bwta.Region;
 import gamestructure.GameHandler;
+import gamestructure.UnitTypeTable;
 import gamestructure.debug.DebugManager;
 import gamestructure.debug.DrawEngine;
 import gamestructure.debug.ShapeOverflowException;
@@ -101,14 +102,19 @@ public final class PathFinder {
 		Queue<Node> toRecalculate = new ArrayDeque<>();
 		// Add the building to the walkable map
 		TilePosition tp = building.getTilePosition();
-		for (int wx = tp.getX() * 4; wx < (tp.getX() + building.getType().tileWidth()) * 4; wx++) {
-			for (int wy = tp.getY() * 4; wy < (tp.getY() + building.getType().tileHeight()) * 4; wy++) {
+		final int tileWidth = UnitTypeTable.getTileWidth(building.getType());
+		final int tileHeight = UnitTypeTable.getTileHeight(building.getType());
+		for (int wx = tp.getX() * 4; wx < (tp.getX() + tileWidth) * 4; wx++) {
+			for (int wy = tp.getY() * 4; wy < (tp.getY() + tileHeight) * 4; wy++) {
 				zeroMe.add(walkableNodes[wx][wy]);
 				toRecalculate.add(walkableNodes[wx][wy]);
 			}
 		}
 
 		recalculateBuilding(toRecalculate, zeroMe);
+		LandmarkHeuristic.invalidate(false);
+		NavMesh.onWalkableChange(tp.getX() * 4, tp.getY() * 4, (tp.getX() + tileWidth) * 4,
+				(tp.getY() + tileHeight) * 4);
 	}
 
 	public static void removeBuilding(BuildingFootprint building) {
@@ -116,13 +122,18 @@ public final class PathFinder {
 
 		// TODO this ordering may be inefficient
 		TilePosition tp = building.getTilePosition();
-		for (int wx = tp.getX() * 4; wx < (tp.getX() + building.getType().tileWidth()) * 4; wx++) {
-			for (int wy = tp.getY() * 4; wy < (tp.getY() + building.getType().tileHeight()) * 4; wy++) {
+		final int tileWidth = UnitTypeTable.getTileWidth(building.getType());
+		final int tileHeight = UnitTypeTable.getTileHeight(building.getType());
+		for (int wx = tp.getX() * 4; wx < (tp.getX() + tileWidth) * 4; wx++) {
+			for (int wy = tp.getY() * 4; wy < (tp.getY() + tileHeight) * 4; wy++) {
 				toRecalculate.push(walkableNodes[wx][wy]);
 			}
 		}
 
 		recalculateBuilding(toRecalculate, Collections.emptySet());
+		LandmarkHeuristic.invalidate(true);
+		NavMesh.onWalkableChange(tp.getX() * 4, tp.getY() * 4, (tp.getX() + tileWidth) * 4,
+				(tp.getY() + tileHeight) * 4);
 	}
 
 	private static void recalculateBuilding(Queue<Node> toRecalculate, Set<Node> zeroMe) {
@@ -175,14 +186,24 @@ public final class PathFinder {
 	 * @return <b>true</b> if the unit does not fit, <b>false</b> otherwise.
 	 */
 	public static boolean unitDoesNotFit(UnitType type, int clearance) {
-		// Unit size is in pixels, clearance is is walk-tiles
-		// TODO use pixels to allow units to walk between buildings?
-		if (clearance < Math.max((type.width() + 4) / 8, (type.height() + 4) / 8)) {
+		if (clearance < requiredClearance(type)) {
 			return true;
 		}
 		return false;
 	}
 
+	/**
+	 * The smallest clearance a {@link UnitType} fits into.
+	 * 
+	 * @param type
+	 * @return the clearance in walk tiles
+	 */
+	public static int requiredClearance(UnitType type) {
+		// Unit size is in pixels, clearance is is walk-tiles
+		// TODO use pixels to allow units to walk between buildings?
+		return UnitTypeTable.getRequiredClearance(type);
+	}
+
 	public static Deque<Position> findGroundPath(Unit unit, Rectangle boundingBox, int maxLength)
 			throws NoPathFoundException, InvalidStartNodeException {
 		return findGroundPath(unit.getX(), unit.getY(), boundingBox, unit.getType(), maxLength);
@@ -208,6 +229,30 @@ public final class PathFinder {
 		return findGroundPath(startx, starty, endx, endy, unitType, Integer.MAX_VALUE);
 	}
 
+	public static Deque<Position> findMeshPath(Unit u, Position end, int maxLength)
+			throws NoPathFoundException, InvalidStartNodeException {
+		return findMeshPath(u.getX(), u.getY(), end.getX(), end.getY(), u.getType(), maxLength);
+	}
+
+	/**
+	 * Find a ground path cheaply. Destinations at least
+	 * {@link NavMesh#MIN_NAVMESH_DISTANCE} walk tiles away are searched over the
+	 * {@link NavMesh}, which gives only the corners of the path, as that is all
+	 * a unit needs to follow it. Nearer ones are left to the bounded walk tile search,
+	 * which gives one waypoint per walk tile like
+	 * {@link #findGroundPath(int, int, int, int, UnitType, int)}.
+	 * 
+	 * @param maxLength
+	 *            the longest a walk tile search may go, in walk tiles
+	 */
+	public static Deque<Position> findMeshPath(int startx, int starty, int endx, int endy, UnitType unitType,
+			int maxLength) throws NoPathFoundException, InvalidStartNodeException {
+		if (Point.distance(startx / 8, starty / 8, endx / 8, endy / 8) >= NavMesh.MIN_NAVMESH_DISTANCE) {
+			return NavMesh.forType(unitType).findPath(startx, starty, endx, endy, unitType);
+		}
+		return findGroundPath(startx, starty, endx, endy, unitType, maxLength);
+	}
+
 	public static Deque<Position> findGroundPath(int startx, int starty, int endx, int endy, UnitType unitType,
 			int maxLength) throws NoPathFoundException, InvalidStartNodeException {
 		int startWx = startx / 8;
@@ -252,12 +297,16 @@ public final class PathFinder {
 		startNode.costFromStart = 0;
 		openSet.add(startNode);
 		Set<Node> closedSet = new HashSet<Node>();
+		LandmarkHeuristic.prepare(startNode.wx, startNode.wy, endWx, endWy);
+		int expanded = 0;
 
 		// Iterate
 		while (openSet.size() > 0) {
 			Node currentNode = openSet.remove();
+			expanded++;
 			// Base case
 			if ((currentNode.wx == endWx && currentNode.wy == endWy) || currentNode.costFromStart > maxLength) {
+				LandmarkHeuristic.recordSearch(expanded);
 				Deque<Position> path = new ArrayDeque<>();
 				reconstructPath(path, currentNode, unitType);
 				return path;
@@ -276,14 +325,73 @@ public final class PathFinder {
 					neighbor.parent = currentNode;
 					neighbor.costFromStart = tentative_g_score;
 					neighbor.predictedTotalCost = tentative_g_score
-							+ Point.distance(neighbor.wx, neighbor.wy, endWx, endWy);
+							+ LandmarkHeuristic.estimate(neighbor.wx, neighbor.wy, endWx, endWy);
 					openSet.add(neighbor);
 				}
 			}
 		}
+		LandmarkHeuristic.recordSearch(expanded);
 		throw new NoPathFoundException();
 	}
 
+	/**
+	 * Moving-target search. When the destination of an existing path moves a
+	 * little, the prefix of the path is still good. Keep the path up to the
+	 * waypoint closest to the new destination and only search for a new tail
+	 * from there.
+	 * 
+	 * @param path
+	 *            an existing path produced by {@link #findGroundPath}. It is
+	 *            modified in place only if a new tail is found.
+	 * @param newEnd
+	 *            the new destination in pixels
+	 * @param unitType
+	 *            the unit type used to determine clearances
+	 * @param maxLength
+	 *            the length of the tail at which to terminate the search
+	 * @throws NoPathFoundException
+	 *             if no tail can be found. The path is left untouched.
+	 * @throws InvalidStartNodeException
+	 *             if the path does not start near a valid ground position
+	 */
+	public static void retargetGroundPath(Deque<Position> path, Position newEnd, UnitType unitType, int maxLength)
+			throws NoPathFoundException, InvalidStartNodeException {
+		if (path.isEmpty()) {
+			throw new NoPathFoundException();
+		}
+		// Find the waypoint closest to the new destination
+		int closestIndex = 0;
+		double closestDistance = Double.MAX_VALUE;
+		int i = 0;
+		for (Position w : path) {
+			double distance = w.getDistance(newEnd);
+			if (distance < closestDistance) {
+				closestDistance = distance;
+				closestIndex = i;
+			}
+			i++;
+		}
+		// Waypoints are offset to the center of the unit
+		Position join = null;
+		i = 0;
+		for (Position w : path) {
+			if (i++ == closestIndex) {
+				join = w;
+				break;
+			}
+		}
+		Deque<Position> tail = findGroundPath(join.getX() - UnitTypeTable.getWidth(unitType) / 2,
+				join.getY() - UnitTypeTable.getHeight(unitType) / 2, newEnd.getX(), newEnd.getY(), unitType,
+				maxLength);
+
+		// Splice the new tail on after the join point
+		while (path.size() > closestIndex + 1) {
+			path.removeLast();
+		}
+		tail.removeFirst();
+		path.addAll(tail);
+	}
+
 	/**
 	 * If the starting position is "unwalkable" to ground units, the nearest
 	 * valid location is chosen instead.
@@ -395,11 +503,13 @@ public final class PathFinder {
 	}
 
 	public static Deque<Position> reconstructPath(Deque<Position> path, Node finalNode, UnitType unitType) {
-		path.push(new Position(finalNode.wx * 8 + unitType.width() / 2, finalNode.wy * 8 + unitType.height() / 2));
+		final int halfWidth = UnitTypeTable.getWidth(unitType) / 2;
+		final int halfHeight = UnitTypeTable.getHeight(unitType) / 2;
+		path.push(new Position(finalNode.wx * 8 + halfWidth, finalNode.wy * 8 + halfHeight));
 
 		Node n = finalNode;
 		do {
-			path.push(new Position(n.wx * 8 + unitType.width() / 2, n.wy * 8 + unitType.height() / 2));
+			path.push(new Position(n.wx * 8 + halfWidth, n.wy * 8 + halfHeight));
 			n = n.parent;
 		} while (n != null);
 		return path;
@@ -437,6 +547,7 @@ public final class PathFinder {
 	}
 
 	public static void registerDebugFunctions() {
+		NavMesh.registerDebugFunctions();
 		// Clearance values
 		DebugManager.createDebugModule("clearance").setDraw(() -> {
 			// Show clearance values
@@ -0,0 +1,112 @@
+package pathing;
+
+/**
+ * A space-time reservation table over walk tiles, used by
+ * {@link CooperativePathFinder} so that ground units moving together route
+ * around each other instead of colliding on ramps.<br>
+ * Each walk tile has a fixed number of buckets, each packing a time slot and
+ * the owner in a single int. There is no hashing or allocation; a reservation
+ * is stale once its slot is in the past, so buckets are reused without ever
+ * being cleared. If every bucket of a tile is taken the reservation is
+ * dropped, which at worst lets two units bump into each other as they would
+ * without the table.
+ *
+ * @author wesley
+ *
+ */
+public final class ReservationTable {
+	/** Reservations per walk tile */
+	private static final int BUCKETS = 2;
+	/** Slots are stored modulo this */
+	private static final int SLOT_MASK = 0xFFFF;
+
+	private final int width;
+	private final int height;
+	/** (slot << 16) | owner, or 0 for an empty bucket */
+	private final int[] table;
+	/** The current slot, used to recognize stale reservations */
+	private int now;
+
+	public ReservationTable(int iwidth, int iheight) {
+		width = iwidth;
+		height = iheight;
+		table = new int[width * height * BUCKETS];
+	}
+
+	/**
+	 * Advance the table's notion of the present. Reservations before this slot
+	 * are treated as free.
+	 */
+	public void setNow(int slot) {
+		now = slot;
+	}
+
+	/** Owner ids are stored off by one so that 0 means empty. */
+	private static int ownerBits(int owner) {
+		return (owner + 1) & 0xFFFF;
+	}
+
+	/** @return whether the bucket holds a reservation at or after now */
+	private boolean isLive(int entry) {
+		return entry != 0 && ((entry >>> 16) - now & SLOT_MASK) < SLOT_MASK / 2;
+	}
+
+	/**
+	 * @return <b>true</b> if anyone other than the owner has reserved the walk
+	 *         tile for the slot
+	 */
+	public boolean isReserved(int wx, int wy, int slot, int owner) {
+		if (wx < 0 || wy < 0 || wx >= width || wy >= height) {
+			return false;
+		}
+		final int packed = (slot & SLOT_MASK) << 16;
+		final int self = ownerBits(owner);
+		final int base = (wx + wy * width) * BUCKETS;
+		for (int b = 0; b < BUCKETS; b++) {
+			final int entry = table[base + b];
+			if ((entry & 0xFFFF0000) == packed && (entry & 0xFFFF) != self && entry != 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Reserve the walk tile for the slot.
+	 *
+	 * @return <b>true</b> if there was room for the reservation
+	 */
+	public boolean reserve(int wx, int wy, int slot, int owner) {
+		if (wx < 0 || wy < 0 || wx >= width || wy >= height) {
+			return false;
+		}
+		final int entry = (slot & SLOT_MASK) << 16 | ownerBits(owner);
+		final int base = (wx + wy * width) * BUCKETS;
+		for (int b = 0; b < BUCKETS; b++) {
+			if (table[base + b] == entry) {
+				return true;
+			}
+		}
+		for (int b = 0; b < BUCKETS; b++) {
+			if (!isLive(table[base + b])) {
+				table[base + b] = entry;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** Release a reservation made by the owner, if it is still there. */
+	public void release(int wx, int wy, int slot, int owner) {
+		if (wx < 0 || wy < 0 || wx >= width || wy >= height) {
+			return;
+		}
+		final int entry = (slot & SLOT_MASK) << 16 | ownerBits(owner);
+		final int base = (wx + wy * width) * BUCKETS;
+		for (int b = 0; b < BUCKETS; b++) {
+			if (table[base + b] == entry) {
+				table[base + b] = 0;
+			}
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package state;
 
+import gamestructure.CommandBuffer;
 import gamestructure.GameHandler;
 
 import java.awt.Point;
@@ -7,7 +8,6 @@ import java.util.List;
 import java.util.Optional;
 
 import build.BuildManager;
-import bwapi.PositionOrUnit;
 import bwapi.Unit;
 import bwapi.UnitType;
 import bwta.BWTA;
@@ -42,7 +42,7 @@ public class MassMarineState extends BotState {
 					if (enemyUnit.isPresent() && Point.distance(u.getX(), u.getY(), enemyUnit.get().getX(),
 							enemyUnit.get().getY()) < 500) {
 						// Attack
-						u.attack(new PositionOrUnit(enemyUnit.get()));
+						CommandBuffer.attack(u.getID(), u, enemyUnit.get());
 					} else if (BuildManager.getMyUnitCount(UnitType.Terran_Marine) > armySize) {
 						{
 							// Scout all bases
@@ -50,7 +50,7 @@ public class MassMarineState extends BotState {
 							BaseLocation baseLoc = baseLocations.get(enemyLocation);
 							int x = baseLoc.getX();
 							int y = baseLoc.getY();
-							u.move(baseLoc.getPosition());
+							CommandBuffer.move(u.getID(), u, baseLoc.getPosition());
 
 							if (GameHandler.isVisible(x / 32, y / 32)) {
 								Optional<Unit> closestEnemy = GameHandler.getClosestEnemyUnit(x, y);
@@ -7,6 +7,7 @@ import build.BuildManager;
 import bwapi.Unit;
 import bwapi.UnitType;
 import gamestructure.GameHandler;
+import gamestructure.RegionIndex;
 import micro.MicroManager;
 import micro.UnitAgent;
 import micro.UnitTask;
@@ -23,10 +24,9 @@ public class StarportRush extends BotState {
 	public BotState onFrame() {
 		// Anti-zerg rush
 		if (BaseManager.main != null
-				&& GameHandler.getUnitsInRadius(BaseManager.main.getLocation().getPosition(), 1000).stream()
-						.filter(u -> u.getType() == UnitType.Zerg_Zergling).count() > 0
-				&& MicroManager.getUnitsByType(UnitType.Terran_Vulture).size() > 2
-				&& MicroManager.getUnitsByType(UnitType.Terran_Marine).size() > 5) {
+				&& RegionIndex.getEnemyCount(BaseManager.main.getRegionId(), UnitType.Zerg_Zergling) > 0
+				&& MicroManager.getCountByType(UnitType.Terran_Vulture) > 2
+				&& MicroManager.getCountByType(UnitType.Terran_Marine) > 5) {
 			System.out.println("Zerg rush detected");
 			MicroManager.getUnitsByType(UnitType.Terran_SCV).stream().forEach(u -> {
 				// u.setTaskDefending(UnitTask.DEFENDING);